@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.provider;
+
+
+/**
+ * A bean property expression ( "person.name.first" ) parsed once so that it
+ * can be evaluated against any number of objects. Paths are immutable and
+ * may be shared between threads.
+ *
+ * @version $Revision$
+ *
+ * @see PropertyPathProvider
+ * @see com.opensymphony.util.BeanUtils#compilePath(String)
+ */
+public interface PropertyPath {
+    //~ Methods ////////////////////////////////////////////////////////////////
+
+    /**
+     * Set the property this path refers to.
+     *
+     * @param object The object to be manipulated.
+     * @param value Value to set property to.
+     * @return Boolean indicating success.
+     */
+    boolean setValue(Object object, Object value);
+
+    /**
+     * Get the property this path refers to.
+     *
+     * @param object The object to be accessed.
+     * @return Value of property. If property was not found, null is returned.
+     */
+    Object getValue(Object object);
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.provider;
+
+
+/**
+ * BeanProvider that can parse a property expression ahead of time, for
+ * properties that are accessed over and over.
+ *
+ * @version $Revision$
+ *
+ * @see com.opensymphony.util.BeanUtils#compilePath(String)
+ */
+public interface PropertyPathProvider extends BeanProvider {
+    //~ Methods ////////////////////////////////////////////////////////////////
+
+    /**
+     * Parse a property expression, as passed to {@link #getProperty} and
+     * {@link #setProperty}. An expression that can't be parsed gives a path
+     * that finds nothing.
+     */
+    PropertyPath compilePath(String property);
+}
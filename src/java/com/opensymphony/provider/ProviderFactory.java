@@ -4,10 +4,50 @@
  */
 package com.opensymphony.provider;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import java.net.URL;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 
 /**
  * Get specific provider implementation. This is a singleton.
  *
+ * <p>One provider is loaded and initialized per system property name, on first
+ * request, and kept until {@link #destroy()}, which shuts them down in the reverse
+ * of the order they were loaded. A provider is found by trying, in turn:</p>
+ *
+ * <ol>
+ *   <li>the class named by the system property;</li>
+ *   <li>if a provider type is given, the classes named in
+ *       <code>META-INF/services/</code><i>type name</i> resources, as by
+ *       <code>java.util.ServiceLoader</code>;</li>
+ *   <li>the default class.</li>
+ * </ol>
+ *
+ * <p>Providers can be replaced while running with {@link #setProvider}. Code that
+ * holds a {@link Registration} sees the new provider on its next call, and reading
+ * the current provider takes no lock. A provider obtained with {@link #getProvider}
+ * may be held on to directly, so it is never replaced. Registrations outlive
+ * {@link #destroy()}: the next call after it loads a provider afresh.</p>
+ *
+ * <p>Applications should call <code>ProviderFactory.getInstance().destroy()</code>
+ * from their own shutdown, for example in
+ * <code>ServletContextListener.contextDestroyed()</code>, so that providers such as
+ * {@link com.opensymphony.provider.log.AsyncLogProvider} finish their work. When
+ * there is no such place, setting the system property
+ * <code>provider.shutdown.hook</code> to <code>true</code> has it called when the VM
+ * exits instead. That hook holds on to the class loader of the factory until then,
+ * so it is not for applications that are redeployed within a running VM, and
+ * providers looked up after it has run are never destroyed.</p>
+ *
  * @author <a href="mailto:joe@truemesh.com">Joe Walnes</a>
  * @version $Revision$
  *
@@ -16,14 +56,42 @@ package com.opensymphony.provider;
 public class ProviderFactory {
     //~ Static fields/initializers /////////////////////////////////////////////
 
-    private static ProviderFactory instance;
+    private static final ProviderFactory instance = new ProviderFactory();
+
+    /**
+     * Stands in for the provider of a registration that hasn't been loaded since it
+     * was added or last destroyed, so that whether it is loaded and what its provider
+     * is are read together. Null is a provider that couldn't be found.
+     */
+    private static final Provider UNLOADED = new Provider() {
+            public void destroy() {
+            }
+
+            public void init() {
+            }
+        };
+
+    //~ Instance fields ////////////////////////////////////////////////////////
+
+    /**
+     * Registrations in the order their providers were loaded. Also guards changes
+     * to the registry.
+     */
+    private final List loaded = new ArrayList();
+
+    /**
+     * Registrations by system property name.
+     */
+    private final Map registrations = new ConcurrentHashMap();
+    private Thread shutdownHook;
 
     //~ Constructors ///////////////////////////////////////////////////////////
 
     /**
-     * Private constructor. To obtain instance, use {@see #getInstance()}.
+     * Package-private constructor, for tests. To obtain instance, use
+     * {@see #getInstance()}.
      */
-    private ProviderFactory() {
+    ProviderFactory() {
     }
 
     //~ Methods ////////////////////////////////////////////////////////////////
@@ -32,20 +100,221 @@ public class ProviderFactory {
      * Obtain singleton instance of factory.
      */
     public static ProviderFactory getInstance() {
-        if (instance == null) {
-            instance = new ProviderFactory();
-        }
-
         return instance;
     }
 
     /**
-     * Find appropriate provider.
+     * Find appropriate provider. The caller may keep it, so the provider for the
+     * property can't be replaced with {@link #setProvider} afterwards.
      *
      * @param property System property under which to find class name of provider implementation.
      * @param defaultClass Name of provider to use if all else fails (this should always be able to instantiate).
      */
     public Provider getProvider(String property, String defaultClass) {
+        return getProvider(property, defaultClass, null);
+    }
+
+    /**
+     * Find appropriate provider, looking for service providers of the given type
+     * if the system property isn't set. The caller may keep it, so the provider
+     * for the property can't be replaced with {@link #setProvider} afterwards.
+     *
+     * @param property System property under which to find class name of provider implementation.
+     * @param defaultClass Name of provider to use if all else fails (this should always be able to instantiate).
+     * @param type Provider interface, or null to not look for service providers.
+     */
+    public Provider getProvider(String property, String defaultClass, Class type) {
+        Registration registration = getRegistration(property, defaultClass, type);
+
+        if (!registration.handedOut) {
+            // under the lock, so a concurrent setProvider() either comes first or fails
+            synchronized (loaded) {
+                registration.handedOut = true;
+            }
+        }
+
+        return registration.getProvider();
+    }
+
+    /**
+     * Get the registration of the provider for a system property, loading the
+     * provider if there is none yet. Only the first request for a property
+     * chooses its default class and type.
+     *
+     * @param property System property under which to find class name of provider implementation.
+     * @param defaultClass Name of provider to use if all else fails (this should always be able to instantiate).
+     * @param type Provider interface, or null to not look for service providers.
+     */
+    public Registration getRegistration(String property, String defaultClass, Class type) {
+        Registration registration = (Registration) registrations.get(property);
+
+        if ((registration == null) || !registration.configured) {
+            synchronized (loaded) {
+                registration = getOrAdd(property);
+
+                if (!registration.configured) {
+                    registration.defaultClass = defaultClass;
+                    registration.type = type;
+                    registration.configured = true;
+                }
+            }
+        }
+
+        // loads it, if need be
+        registration.getProvider();
+
+        return registration;
+    }
+
+    /**
+     * Replace the provider for a system property. The new provider is initialized
+     * and then the old one, if any, destroyed. Callers that got the old provider
+     * from a {@link Registration} just before may still be using it while it is
+     * destroyed, so providers that can be replaced should tolerate that.
+     *
+     * @return The provider replaced, or null if there was none.
+     * @exception com.opensymphony.provider.ProviderConfigurationException thrown if
+     *            the new provider fails to start, in which case the old one is kept.
+     * @exception IllegalArgumentException thrown if the provider is null.
+     * @exception IllegalStateException thrown if the provider for the property has
+     *            been handed out by {@link #getProvider}, whose callers would not
+     *            see the new one.
+     */
+    public Provider setProvider(String property, Provider provider) throws ProviderConfigurationException {
+        if (provider == null) {
+            throw new IllegalArgumentException("No provider given for " + property);
+        }
+
+        checkReplaceable((Registration) registrations.get(property), property);
+        provider.init();
+
+        Provider old;
+
+        synchronized (loaded) {
+            Registration registration = getOrAdd(property);
+
+            try {
+                checkReplaceable(registration, property);
+            } catch (IllegalStateException e) {
+                provider.destroy();
+
+                throw e;
+            }
+
+            old = registration.provider;
+            registration.provider = provider;
+
+            if (old == UNLOADED) {
+                old = null;
+                register(registration);
+            }
+        }
+
+        if ((old != null) && (old != provider)) {
+            old.destroy();
+        }
+
+        return old;
+    }
+
+    /**
+     * Destroy all providers, last loaded first. Registrations are kept, and load
+     * their providers afresh when next asked for them.
+     */
+    public void destroy() {
+        Provider[] providers;
+
+        synchronized (loaded) {
+            providers = new Provider[loaded.size()];
+
+            for (int i = 0; i < providers.length; i++) {
+                Registration registration = (Registration) loaded.get(i);
+                providers[i] = registration.provider;
+                registration.provider = UNLOADED;
+            }
+
+            loaded.clear();
+
+            if ((shutdownHook != null) && (Thread.currentThread() != shutdownHook)) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                } catch (IllegalStateException e) {
+                    // already shutting down
+                }
+            }
+
+            shutdownHook = null;
+        }
+
+        for (int i = providers.length - 1; i >= 0; i--) {
+            if (providers[i] != null) {
+                try {
+                    providers[i].destroy();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(System.err);
+                }
+            }
+        }
+    }
+
+    private void checkReplaceable(Registration registration, String property) {
+        if ((registration != null) && registration.handedOut) {
+            throw new IllegalStateException("The provider for " + property + " has been handed out by getProvider(), so can't be replaced");
+        }
+    }
+
+    private Provider discover(Class type) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+
+        if (loader == null) {
+            loader = ProviderFactory.class.getClassLoader();
+        }
+
+        try {
+            String resource = "META-INF/services/" + type.getName();
+            Enumeration configs = (loader == null) ? ClassLoader.getSystemResources(resource) : loader.getResources(resource);
+
+            while (configs.hasMoreElements()) {
+                URL config = (URL) configs.nextElement();
+                BufferedReader in = new BufferedReader(new InputStreamReader(config.openStream(), "UTF-8"));
+
+                try {
+                    String line;
+
+                    while ((line = in.readLine()) != null) {
+                        int comment = line.indexOf('#');
+
+                        if (comment >= 0) {
+                            line = line.substring(0, comment);
+                        }
+
+                        line = line.trim();
+
+                        if (line.length() == 0) {
+                            continue;
+                        }
+
+                        Provider result = load(line);
+
+                        if (type.isInstance(result)) {
+                            return result;
+                        } else if (result != null) {
+                            System.err.println("Provider " + line + " listed in " + config + " is not a " + type.getName());
+                            result.destroy();
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+
+        return null;
+    }
+
+    private Provider find(String property, String defaultClass, Class type) {
         String providerClassName = System.getProperty(property);
         Provider result = null;
 
@@ -54,9 +323,17 @@ public class ProviderFactory {
 
             if (result == null) {
                 System.err.println("Provider " + providerClassName + " cannot be loaded. \nUsing " + defaultClass + " instead.");
-                result = load(defaultClass);
             }
-        } else {
+        } else if (type != null) {
+            result = discover(type);
+        }
+
+        if (defaultClass == null) {
+            // only ever set with setProvider(), so there is nothing to fall back on
+            return result;
+        }
+
+        if (result == null) {
             result = load(defaultClass);
         }
 
@@ -68,6 +345,21 @@ public class ProviderFactory {
         return result;
     }
 
+    /**
+     * The registration for a property, added if there is none yet. Must be called
+     * holding the lock on <code>loaded</code>.
+     */
+    private Registration getOrAdd(String property) {
+        Registration registration = (Registration) registrations.get(property);
+
+        if (registration == null) {
+            registration = new Registration(this, property);
+            registrations.put(property, registration);
+        }
+
+        return registration;
+    }
+
     private Provider load(String className) {
         try {
             Class providerClass = null;
@@ -94,4 +386,74 @@ public class ProviderFactory {
             return null;
         }
     }
+
+    /**
+     * The provider of a registration, finding it if it hasn't been since it was added
+     * or last destroyed.
+     */
+    private Provider load(Registration registration) {
+        synchronized (loaded) {
+            if (registration.provider == UNLOADED) {
+                registration.provider = find(registration.property, registration.defaultClass, registration.type);
+                register(registration);
+            }
+
+            return registration.provider;
+        }
+    }
+
+    /**
+     * Add a newly loaded registration to <code>loaded</code>, holding the lock on it,
+     * and install the shutdown hook if it is asked for and not there yet.
+     */
+    private void register(Registration registration) {
+        loaded.add(registration);
+
+        if ((shutdownHook == null) && Boolean.getBoolean("provider.shutdown.hook")) {
+            shutdownHook = new Thread("ProviderFactory shutdown") {
+                        public void run() {
+                            ProviderFactory.this.destroy();
+                        }
+                    };
+
+            try {
+                Runtime.getRuntime().addShutdownHook(shutdownHook);
+            } catch (RuntimeException e) {
+                // shutting down already, or not allowed
+            }
+        }
+    }
+
+    //~ Inner Classes //////////////////////////////////////////////////////////
+
+    /**
+     * The current provider for one system property. Holding on to this rather than
+     * the provider itself means a provider replaced with {@link #setProvider}, or
+     * loaded again after {@link #destroy()}, is seen on the next call.
+     */
+    public static final class Registration {
+        private final ProviderFactory factory;
+        private final String property;
+
+        /**
+         * The default class and type, as given by the first request for the property.
+         * Guarded by the factory.
+         */
+        private Class type;
+        private String defaultClass;
+        private volatile Provider provider = UNLOADED;
+        private volatile boolean configured;
+        private volatile boolean handedOut;
+
+        Registration(ProviderFactory factory, String property) {
+            this.factory = factory;
+            this.property = property;
+        }
+
+        public Provider getProvider() {
+            Provider current = provider;
+
+            return (current != UNLOADED) ? current : factory.load(this);
+        }
+    }
 }
@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.provider.bean;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Writes the class files of {@link GeneratedBeanProvider.Accessor} subclasses
+ * that read or write one property with plain bytecode instead of reflection.
+ * The classes have no branches, so the old class file version 49 is used and
+ * no stack map frames are needed.
+ *
+ * @version $Revision$
+ */
+class AccessorGenerator {
+    //~ Static fields/initializers /////////////////////////////////////////////
+
+    private static final String ACCESSOR = "com/opensymphony/provider/bean/GeneratedBeanProvider$Accessor";
+    private static final String OBJECT_DESC = "Ljava/lang/Object;";
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+    private static final int ACONST_NULL = 0x01;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int POP = 0x57;
+    private static final int POP2 = 0x58;
+    private static final int ARETURN = 0xb0;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int CHECKCAST = 0xc0;
+
+    /**
+     * Wrapper class and unboxing method by primitive type.
+     */
+    private static final Map wrappers = new HashMap();
+
+    static {
+        wrappers.put(Boolean.TYPE, new String[] {"java/lang/Boolean", "booleanValue"});
+        wrappers.put(Byte.TYPE, new String[] {"java/lang/Byte", "byteValue"});
+        wrappers.put(Character.TYPE, new String[] {"java/lang/Character", "charValue"});
+        wrappers.put(Short.TYPE, new String[] {"java/lang/Short", "shortValue"});
+        wrappers.put(Integer.TYPE, new String[] {"java/lang/Integer", "intValue"});
+        wrappers.put(Long.TYPE, new String[] {"java/lang/Long", "longValue"});
+        wrappers.put(Float.TYPE, new String[] {"java/lang/Float", "floatValue"});
+        wrappers.put(Double.TYPE, new String[] {"java/lang/Double", "doubleValue"});
+    }
+
+    //~ Instance fields ////////////////////////////////////////////////////////
+
+    private ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private DataOutputStream pool = new DataOutputStream(poolBytes);
+
+    /**
+     * Constant pool index by entry, so each is only written once.
+     */
+    private Map entries = new HashMap();
+    private int poolCount = 1;
+
+    //~ Constructors ///////////////////////////////////////////////////////////
+
+    private AccessorGenerator() {
+    }
+
+    //~ Methods ////////////////////////////////////////////////////////////////
+
+    /**
+     * True if generated code in another package and class loader may read the
+     * member through the class, which is only so when all the classes it has
+     * to name are public.
+     */
+    static boolean canGet(Class cls, Member member) {
+        return isVisible(cls) && Modifier.isPublic(member.getModifiers()) && !Modifier.isStatic(member.getModifiers());
+    }
+
+    /**
+     * True if generated code may call the write method through the class.
+     */
+    static boolean canSet(Class cls, Method method) {
+        return canGet(cls, method) && isVisible(method.getParameterTypes()[0]);
+    }
+
+    /**
+     * Class file for an accessor whose invokeGet() returns the value of the
+     * member, boxed if need be.
+     */
+    static byte[] getter(String className, Class cls, Member member) throws IOException {
+        AccessorGenerator generator = new AccessorGenerator();
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(code);
+        String owner = internalName(cls);
+        Class type;
+
+        out.writeByte(ALOAD_1);
+        out.writeByte(CHECKCAST);
+        out.writeShort(generator.classRef(owner));
+
+        if (member instanceof Method) {
+            Method method = (Method) member;
+            type = method.getReturnType();
+            out.writeByte(INVOKEVIRTUAL);
+            out.writeShort(generator.memberRef(10, owner, method.getName(), "()" + descriptor(type)));
+        } else {
+            Field field = (Field) member;
+            type = field.getType();
+            out.writeByte(GETFIELD);
+            out.writeShort(generator.memberRef(9, owner, field.getName(), descriptor(type)));
+        }
+
+        if (type == Void.TYPE) {
+            out.writeByte(ACONST_NULL);
+        } else if (type.isPrimitive()) {
+            String wrapper = ((String[]) wrappers.get(type))[0];
+            out.writeByte(INVOKESTATIC);
+            out.writeShort(generator.memberRef(10, wrapper, "valueOf", "(" + descriptor(type) + ")L" + wrapper + ";"));
+        }
+
+        out.writeByte(ARETURN);
+
+        byte[] get = code.toByteArray();
+        byte[] set = {(byte) RETURN};
+
+        return generator.toClass(className, get, 2, set, 1);
+    }
+
+    /**
+     * Class file for an accessor whose invokeSet() passes the value, unboxed
+     * if need be, to the write method. The value must already be of the right
+     * type.
+     */
+    static byte[] setter(String className, Class cls, Method method) throws IOException {
+        AccessorGenerator generator = new AccessorGenerator();
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(code);
+        String owner = internalName(cls);
+        Class type = method.getParameterTypes()[0];
+        Class returnType = method.getReturnType();
+
+        out.writeByte(ALOAD_1);
+        out.writeByte(CHECKCAST);
+        out.writeShort(generator.classRef(owner));
+        out.writeByte(ALOAD_2);
+
+        if (type.isPrimitive()) {
+            String[] wrapper = (String[]) wrappers.get(type);
+            out.writeByte(CHECKCAST);
+            out.writeShort(generator.classRef(wrapper[0]));
+            out.writeByte(INVOKEVIRTUAL);
+            out.writeShort(generator.memberRef(10, wrapper[0], wrapper[1], "()" + descriptor(type)));
+        } else {
+            out.writeByte(CHECKCAST);
+            out.writeShort(generator.classRef(internalName(type)));
+        }
+
+        out.writeByte(INVOKEVIRTUAL);
+        out.writeShort(generator.memberRef(10, owner, method.getName(), "(" + descriptor(type) + ")" + descriptor(returnType)));
+
+        if ((returnType == Long.TYPE) || (returnType == Double.TYPE)) {
+            out.writeByte(POP2);
+        } else if (returnType != Void.TYPE) {
+            out.writeByte(POP);
+        }
+
+        out.writeByte(RETURN);
+
+        byte[] get = {(byte) ACONST_NULL, (byte) ARETURN};
+        byte[] set = code.toByteArray();
+
+        return generator.toClass(className, get, 1, set, 3);
+    }
+
+    private static String descriptor(Class type) {
+        if (type.isPrimitive()) {
+            if (type == Boolean.TYPE) {
+                return "Z";
+            } else if (type == Long.TYPE) {
+                return "J";
+            } else if (type == Void.TYPE) {
+                return "V";
+            }
+
+            // first letter of the rest: byte, char, short, int, float, double
+            return String.valueOf(Character.toUpperCase(type.getName().charAt(0)));
+        } else if (type.isArray()) {
+            return type.getName().replace('.', '/');
+        }
+
+        return "L" + internalName(type) + ";";
+    }
+
+    /**
+     * Name of a class as it appears in a class file.
+     */
+    private static String internalName(Class type) {
+        return type.getName().replace('.', '/');
+    }
+
+    private static boolean isVisible(Class type) {
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+
+        return type.isPrimitive() || Modifier.isPublic(type.getModifiers());
+    }
+
+    private int classRef(String internalName) throws IOException {
+        String key = "C" + internalName;
+        Integer index = (Integer) entries.get(key);
+
+        if (index == null) {
+            int name = utf8(internalName);
+            pool.writeByte(7);
+            pool.writeShort(name);
+            index = addEntry(key);
+        }
+
+        return index.intValue();
+    }
+
+    private Integer addEntry(String key) {
+        Integer index = Integer.valueOf(poolCount++);
+        entries.put(key, index);
+
+        return index;
+    }
+
+    /**
+     * Index of a method (tag 10) or field (tag 9) reference.
+     */
+    private int memberRef(int tag, String owner, String name, String descriptor) throws IOException {
+        String key = tag + owner + "." + name + descriptor;
+        Integer index = (Integer) entries.get(key);
+
+        if (index == null) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            pool.writeByte(12);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descriptorIndex);
+
+            int nameAndType = poolCount++;
+            pool.writeByte(tag);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+            index = addEntry(key);
+        }
+
+        return index.intValue();
+    }
+
+    private byte[] toClass(String className, byte[] get, int getStack, byte[] set, int setStack) throws IOException {
+        ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+        DataOutputStream methods = new DataOutputStream(methodBytes);
+        int thisClass = classRef(className.replace('.', '/'));
+        int superClass = classRef(ACCESSOR);
+        int superInit = memberRef(10, ACCESSOR, "<init>", "()V");
+        byte[] init = {(byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (superInit >> 8), (byte) superInit, (byte) RETURN};
+
+        writeMethod(methods, "<init>", "()V", init, 1, 1);
+        writeMethod(methods, "invokeGet", "(" + OBJECT_DESC + ")" + OBJECT_DESC, get, getStack, 2);
+        writeMethod(methods, "invokeSet", "(" + OBJECT_DESC + OBJECT_DESC + ")V", set, setStack, 3);
+
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(classBytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(49);
+        out.writeShort(poolCount);
+        poolBytes.writeTo(out);
+        out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0); // interfaces
+        out.writeShort(0); // fields
+        out.writeShort(3);
+        methodBytes.writeTo(out);
+        out.writeShort(0); // attributes
+        out.flush();
+
+        return classBytes.toByteArray();
+    }
+
+    private int utf8(String value) throws IOException {
+        String key = "U" + value;
+        Integer index = (Integer) entries.get(key);
+
+        if (index == null) {
+            pool.writeByte(1);
+            pool.writeUTF(value);
+            index = addEntry(key);
+        }
+
+        return index.intValue();
+    }
+
+    private void writeMethod(DataOutputStream out, String name, String descriptor, byte[] code, int maxStack, int maxLocals) throws IOException {
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(utf8(name));
+        out.writeShort(utf8(descriptor));
+        out.writeShort(1);
+        out.writeShort(utf8("Code"));
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+}
@@ -4,15 +4,25 @@
  */
 package com.opensymphony.provider.bean;
 
-import com.opensymphony.provider.BeanProvider;
+import com.opensymphony.provider.PropertyPath;
+import com.opensymphony.provider.PropertyPathProvider;
 import com.opensymphony.provider.ProviderConfigurationException;
 
 import java.beans.PropertyDescriptor;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -23,16 +33,29 @@ import java.util.StringTokenizer;
  *
  * Can also deal with setter methods.
  *
+ * The getters and setters found for each class are cached, misses included,
+ * so only the first access to a property of a class does any lookup. Paths
+ * used often can be parsed once with {@link #compilePath}.
+ *
  * @author <a href="mailto:joe@truemesh.com">Joe Walnes</a>
  * @version $Revision$
  */
-public class DefaultBeanProvider implements BeanProvider {
+public class DefaultBeanProvider implements PropertyPathProvider {
     //~ Static fields/initializers /////////////////////////////////////////////
 
     private static String GET = "get";
     private static String SET = "set";
     private static String IS = "is";
 
+    //~ Instance fields ////////////////////////////////////////////////////////
+
+    /**
+     * ClassAccessors by ClassKey. The classes are weakly held so that they can still
+     * be unloaded, and the ClassAccessors, which refer back to their class, softly.
+     */
+    private final ConcurrentHashMap accessorCache = new ConcurrentHashMap();
+    private final ReferenceQueue staleKeys = new ReferenceQueue();
+
     //~ Methods ////////////////////////////////////////////////////////////////
 
     public boolean setProperty(Object object, String property, Object value) {
@@ -40,45 +63,36 @@ public class DefaultBeanProvider implements BeanProvider {
             return false;
         }
 
-        // Split out property on dots ( "person.name.first" -> "person","name","first" -> getPerson().getName().getFirst() )
-        StringTokenizer st = new StringTokenizer(property, ".");
+        // the final property in the chain, ignoring any trailing dots
+        int end = property.length();
 
-        if (st.countTokens() == 0) {
+        while ((end > 0) && (property.charAt(end - 1) == '.')) {
+            end--;
+        }
+
+        if (end == 0) {
             return false;
         }
 
-        // Holder for Object at current depth along chain.
-        Object current = object;
+        int last = property.lastIndexOf('.', end - 1) + 1;
 
-        try {
-            // Loop through properties in chain.
-            for (int i = 0; st.hasMoreTokens(); i++) {
-                String currentPropertyName = st.nextToken();
+        // Getters for all but the final property in chain.
+        Object current = object;
 
-                if (i < st.countTokens()) {
-                    // This is a getter
-                    current = invokeProperty(current, currentPropertyName);
-                } else {
-                    // Final property in chain, hence setter
-                    try {
-                        // Call setter
-                        Class cls = current.getClass();
-                        PropertyDescriptor pd = new PropertyDescriptor(currentPropertyName, current.getClass());
-                        pd.getWriteMethod().invoke(current, new Object[] {value});
+        for (int start = 0, next; (start < last) && (current != null); start = next + 1) {
+            next = property.indexOf('.', start);
 
-                        return true;
-                    } catch (Exception e) {
-                        return false;
-                    }
-                }
+            if (next > start) {
+                current = getAccessors(current.getClass()).getGetter(property.substring(start, next)).get(current);
             }
+        }
 
-            // Return holder Object
-            return true;
-        } catch (NullPointerException e) {
-            // It is very likely that one of the properties returned null. If so, catch the exception and return null.
+        if (current == null) {
+            // One of the properties returned null.
             return false;
         }
+
+        return getAccessors(current.getClass()).getSetter(property.substring(last, end)).set(current, value);
     }
 
     public Object getProperty(Object object, String property) {
@@ -86,31 +100,29 @@ public class DefaultBeanProvider implements BeanProvider {
             return null;
         }
 
-        // Split out property on dots ( "person.name.first" -> "person","name","first" -> getPerson().getName().getFirst() )
-        StringTokenizer st = new StringTokenizer(property, ".");
-
-        if (st.countTokens() == 0) {
-            return null;
-        }
-
-        // Holder for Object at current depth along chain.
+        // walked without making a path, as one-off lookups are the common case
         Object result = object;
+        boolean named = false;
 
-        try {
-            // Loop through properties in chain.
-            while (st.hasMoreTokens()) {
-                String currentPropertyName = st.nextToken();
+        for (int start = 0, next; (start < property.length()) && (result != null); start = next + 1) {
+            next = property.indexOf('.', start);
 
-                // Assign to holder the next property in the chain.
-                result = invokeProperty(result, currentPropertyName);
+            if (next < 0) {
+                next = property.length();
             }
 
-            // Return holder Object
-            return result;
-        } catch (NullPointerException e) {
-            // It is very likely that one of the properties returned null. If so, catch the exception and return null.
-            return null;
+            if (next > start) {
+                result = getAccessors(result.getClass()).getGetter(property.substring(start, next)).get(result);
+                named = true;
+            }
         }
+
+        // a path with no property names in it finds nothing
+        return named ? result : null;
+    }
+
+    public PropertyPath compilePath(String property) {
+        return new DefaultPropertyPath((property == null) ? "" : property);
     }
 
     public void destroy() {
@@ -122,52 +134,325 @@ public class DefaultBeanProvider implements BeanProvider {
     /**
      * Convert property name into getProperty name ( "something" -> "getSomething" )
      */
-    private String createMethodName(String prefix, String propertyName) {
+    private static String createMethodName(String prefix, String propertyName) {
         return prefix + propertyName.toUpperCase().charAt(0) + propertyName.substring(1);
     }
 
     /**
-     * Invoke the method/field getter on the Object.
-     * It tries (in order) obj.getProperty(), obj.isProperty(), obj.property(), obj.property.
+     * The accessors of a class, from the cache if they've been looked up before.
      */
-    private Object invokeProperty(Object obj, String property) {
-        if ((property == null) || (property.length() == 0)) {
-            return null; // just in case something silly happens.
+    ClassAccessors getAccessors(Class cls) {
+        Reference ref = (Reference) accessorCache.get(new ClassKey(cls, null));
+        ClassAccessors accessors = (ref == null) ? null : (ClassAccessors) ref.get();
+
+        if (accessors == null) {
+            // drop entries for classes that have been unloaded
+            Reference stale;
+
+            while ((stale = staleKeys.poll()) != null) {
+                accessorCache.remove(stale);
+            }
+
+            // two threads may both get here, but either result will do
+            accessors = new ClassAccessors(cls);
+            accessorCache.put(new ClassKey(cls, staleKeys), new SoftReference(accessors));
         }
 
-        Class cls = obj.getClass();
-        Object[] oParams = {};
-        Class[] cParams = {};
+        return accessors;
+    }
 
-        try {
-            // First try object.getProperty()
-            Method method = cls.getMethod(createMethodName(GET, property), cParams);
+    /**
+     * Make the Getter for a property from the members it might be read through.
+     */
+    Getter createGetter(Class cls, Member[] members) {
+        return new Getter(members);
+    }
 
-            return method.invoke(obj, oParams);
-        } catch (Exception e1) {
-            try {
-                // First try object.isProperty()
-                Method method = cls.getMethod(createMethodName(IS, property), cParams);
+    /**
+     * Make the Setter for a property from its write method, which may be null.
+     */
+    Setter createSetter(Class cls, Method method) {
+        return new Setter(method);
+    }
 
-                return method.invoke(obj, oParams);
-            } catch (Exception e2) {
-                try {
-                    // Now try object.property()
-                    Method method = cls.getMethod(property, cParams);
+    //~ Inner Classes //////////////////////////////////////////////////////////
 
-                    return method.invoke(obj, oParams);
-                } catch (Exception e3) {
+    /**
+     * The getters and setters of one class that have been looked up so far, by
+     * property name. Properties that can't be read or written are kept too, so a
+     * miss is only looked up once as well.
+     */
+    class ClassAccessors {
+        private Class cls;
+        private Map getters = new ConcurrentHashMap();
+        private Map setters = new ConcurrentHashMap();
+
+        ClassAccessors(Class cls) {
+            this.cls = cls;
+        }
+
+        /**
+         * The getter for a property, made from the public members it might be read
+         * through, in the order they are tried: getProperty(), isProperty(),
+         * property() and the field property.
+         */
+        Getter getGetter(String property) {
+            Getter getter = (Getter) getters.get(property);
+
+            if (getter == null) {
+                List found = new ArrayList(4);
+                Class[] cParams = {};
+                String[] names = {
+                    createMethodName(GET, property),
+                    createMethodName(IS, property), property
+                };
+
+                for (int i = 0; i < names.length; i++) {
                     try {
-                        // Now try object.property()
-                        Field field = cls.getField(property);
+                        found.add(cls.getMethod(names[i], cParams));
+                    } catch (Exception e) {
+                    }
+                }
+
+                try {
+                    found.add(cls.getField(property));
+                } catch (Exception e) {
+                }
+
+                getter = createGetter(cls, (Member[]) found.toArray(new Member[found.size()]));
+                getters.put(property, getter);
+            }
+
+            return getter;
+        }
 
-                        return field.get(obj);
-                    } catch (Exception e4) {
-                        // oh well
-                        return null;
+        /**
+         * The setter for a property, made from the write method PropertyDescriptor
+         * finds, if any.
+         */
+        Setter getSetter(String property) {
+            Setter setter = (Setter) setters.get(property);
+
+            if (setter == null) {
+                Method method = null;
+
+                try {
+                    method = new PropertyDescriptor(property, cls).getWriteMethod();
+                } catch (Exception e) {
+                }
+
+                setter = createSetter(cls, method);
+                setters.put(property, setter);
+            }
+
+            return setter;
+        }
+    }
+
+    /**
+     * Reads a property through the first of its members that works.
+     */
+    static class Getter {
+        private static final Object[] NO_PARAMS = {};
+        Member[] members;
+
+        Getter(Member[] members) {
+            this.members = members;
+        }
+
+        /**
+         * Invoke the method/field getter on the Object, trying each member in
+         * turn from <code>first</code> on until one works.
+         */
+        Object get(Object obj, int first) {
+            for (int i = first; i < members.length; i++) {
+                try {
+                    if (members[i] instanceof Method) {
+                        return ((Method) members[i]).invoke(obj, NO_PARAMS);
+                    } else {
+                        return ((Field) members[i]).get(obj);
                     }
+                } catch (Exception e) {
+                    // try the next one
                 }
             }
+
+            // oh well
+            return null;
+        }
+
+        Object get(Object obj) {
+            return get(obj, 0);
+        }
+    }
+
+    /**
+     * Writes a property through its write method, if it has one.
+     */
+    static class Setter {
+        Method method;
+
+        Setter(Method method) {
+            this.method = method;
+        }
+
+        boolean set(Object obj, Object value) {
+            if (method == null) {
+                return false;
+            }
+
+            try {
+                method.invoke(obj, new Object[] {value});
+
+                return true;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Property path split on dots ( "person.name.first" -> "person","name","first" ->
+     * getPerson().getName().getFirst() ). Each step remembers the class it last saw
+     * and the accessors found for it, so while the classes along the path stay the
+     * same no cache lookup is needed at all.
+     */
+    private class DefaultPropertyPath implements PropertyPath {
+        private String path;
+        private String[] names;
+
+        /**
+         * What each step last resolved, or null.
+         */
+        private Resolved[] getters;
+        private Resolved setter;
+
+        DefaultPropertyPath(String path) {
+            StringTokenizer st = new StringTokenizer(path, ".");
+            this.path = path;
+            names = new String[st.countTokens()];
+            getters = new Resolved[names.length];
+
+            for (int i = 0; i < names.length; i++) {
+                names[i] = st.nextToken();
+            }
+        }
+
+        public boolean setValue(Object object, Object value) {
+            if (names.length == 0) {
+                return false;
+            }
+
+            // Holder for Object at current depth along chain.
+            Object current = object;
+
+            // Getters for all but the final property in chain.
+            for (int i = 0; (i < (names.length - 1)) && (current != null); i++) {
+                current = getGetter(i, current.getClass()).get(current);
+            }
+
+            if (current == null) {
+                // One of the properties returned null.
+                return false;
+            }
+
+            // Final property in chain, hence setter
+            Class cls = current.getClass();
+            Setter found = (setter == null) ? null : (Setter) setter.get(cls);
+
+            if (found == null) {
+                found = getAccessors(cls).getSetter(names[names.length - 1]);
+                setter = new Resolved(cls, found);
+            }
+
+            return found.set(current, value);
+        }
+
+        public Object getValue(Object object) {
+            if (names.length == 0) {
+                return null;
+            }
+
+            // Holder for Object at current depth along chain.
+            Object result = object;
+
+            for (int i = 0; (i < names.length) && (result != null); i++) {
+                // Assign to holder the next property in the chain.
+                result = getGetter(i, result.getClass()).get(result);
+            }
+
+            // Return holder Object, or null if one of the properties returned null.
+            return result;
+        }
+
+        public String toString() {
+            return path;
+        }
+
+        private Getter getGetter(int step, Class cls) {
+            Getter found = (getters[step] == null) ? null : (Getter) getters[step].get(cls);
+
+            if (found == null) {
+                found = getAccessors(cls).getGetter(names[step]);
+                getters[step] = new Resolved(cls, found);
+            }
+
+            return found;
+        }
+    }
+
+    /**
+     * The accessor found for a class, as remembered by one step of a path. Both are
+     * weakly held, so a long-lived path doesn't keep the class from being unloaded;
+     * the accessor stays reachable through the ClassAccessors cache for as long as it
+     * is kept there. Never changed once made, so it can be handed between threads
+     * without locking.
+     */
+    private static class Resolved {
+        private final Reference accessor;
+        private final Reference cls;
+
+        Resolved(Class cls, Object accessor) {
+            this.cls = new WeakReference(cls);
+            this.accessor = new WeakReference(accessor);
+        }
+
+        /**
+         * The accessor, if it was found for <code>cls</code> and is still cached.
+         */
+        Object get(Class cls) {
+            return (this.cls.get() == cls) ? accessor.get() : null;
+        }
+    }
+
+    /**
+     * Weak reference to a class that is equal to any other reference to the same
+     * class, for use as a map key.
+     */
+    private static class ClassKey extends WeakReference {
+        private int hash;
+
+        ClassKey(Class cls, ReferenceQueue queue) {
+            super(cls, queue);
+            hash = System.identityHashCode(cls);
+        }
+
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+
+            if (!(o instanceof ClassKey)) {
+                return false;
+            }
+
+            Object referent = get();
+
+            return (referent != null) && (referent == ((ClassKey) o).get());
+        }
+
+        public int hashCode() {
+            return hash;
         }
     }
 }
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.provider.bean;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+
+/**
+ * BeanProvider implementation that reads and writes properties the same way
+ * as {@link DefaultBeanProvider}, but through small classes generated at
+ * runtime that call the accessor methods directly, instead of through
+ * reflection. Accessors that generated code can't reach, such as those of
+ * classes that aren't public, are still called reflectively.
+ *
+ * <p>Generating a class takes much longer than a reflective lookup, so this
+ * provider pays off when the same properties of the same classes are used
+ * many times, as with {@link #compilePath}. Accessors of classes loaded by
+ * this class's own loader, or one it delegates to, are generated once per bean
+ * class and member and kept. Those of classes from other loaders, such as a
+ * web application's, are only kept while in use, so that those classes can
+ * still be unloaded; they may be generated again after the cached lookups of
+ * {@link DefaultBeanProvider} are dropped.</p>
+ *
+ * @version $Revision$
+ */
+public class GeneratedBeanProvider extends DefaultBeanProvider {
+    //~ Static fields/initializers /////////////////////////////////////////////
+
+    private static int generated = 0;
+
+    /**
+     * AccessorLoader by bean class loader. Those of loaders this class's own
+     * loader delegates to are kept for good, as those bean classes can't be
+     * unloaded before this class anyway. The others are only weakly held,
+     * because an AccessorLoader keeps its bean class loader loaded.
+     */
+    private static final Map loaders = new WeakHashMap();
+
+    /**
+     * Boxed type by primitive type.
+     */
+    private static final Map wrappers = new HashMap();
+
+    static {
+        wrappers.put(Boolean.TYPE, Boolean.class);
+        wrappers.put(Byte.TYPE, Byte.class);
+        wrappers.put(Character.TYPE, Character.class);
+        wrappers.put(Short.TYPE, Short.class);
+        wrappers.put(Integer.TYPE, Integer.class);
+        wrappers.put(Long.TYPE, Long.class);
+        wrappers.put(Float.TYPE, Float.class);
+        wrappers.put(Double.TYPE, Double.class);
+    }
+
+    //~ Methods ////////////////////////////////////////////////////////////////
+
+    Getter createGetter(Class cls, Member[] members) {
+        if ((members.length > 0) && AccessorGenerator.canGet(cls, members[0])) {
+            try {
+                return new GeneratedGetter(members, getLoader(cls.getClassLoader()).getAccessor(cls, members[0], false));
+            } catch (Throwable t) {
+                // fall back to reflection
+            }
+        }
+
+        return super.createGetter(cls, members);
+    }
+
+    Setter createSetter(Class cls, Method method) {
+        if ((method != null) && AccessorGenerator.canSet(cls, method)) {
+            try {
+                return new GeneratedSetter(method, getLoader(cls.getClassLoader()).getAccessor(cls, method, true));
+            } catch (Throwable t) {
+                // fall back to reflection
+            }
+        }
+
+        return super.createSetter(cls, method);
+    }
+
+    private static synchronized String nextClassName() {
+        return "com.opensymphony.provider.bean.GeneratedAccessor" + (generated++);
+    }
+
+    /**
+     * The loader for the accessors of classes loaded by <code>beanLoader</code>,
+     * which sees the classes the bean classes see.
+     */
+    private static synchronized AccessorLoader getLoader(ClassLoader beanLoader) {
+        Object held = loaders.get(beanLoader);
+        AccessorLoader loader = (AccessorLoader) ((held instanceof Reference) ? ((Reference) held).get() : held);
+
+        if (loader == null) {
+            loader = new AccessorLoader(beanLoader);
+            loaders.put(beanLoader, isShared(beanLoader) ? (Object) loader : new WeakReference(loader));
+        }
+
+        return loader;
+    }
+
+    /**
+     * True if this class's loader delegates to <code>beanLoader</code>, which
+     * then stays loaded as long as this class does.
+     */
+    private static boolean isShared(ClassLoader beanLoader) {
+        try {
+            for (ClassLoader loader = GeneratedBeanProvider.class.getClassLoader();; loader = loader.getParent()) {
+                if (loader == beanLoader) {
+                    return true;
+                } else if (loader == null) {
+                    return false;
+                }
+            }
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+
+    //~ Inner Classes //////////////////////////////////////////////////////////
+
+    /**
+     * Superclass of the generated accessors. Only public so that they, being in
+     * a different class loader, can extend it.
+     */
+    public static abstract class Accessor {
+        protected Accessor() {
+        }
+
+        /**
+         * Read the property of the bean.
+         */
+        public abstract Object invokeGet(Object bean);
+
+        /**
+         * Write the property of the bean, with a value already of the right type.
+         */
+        public abstract void invokeSet(Object bean, Object value);
+    }
+
+    /**
+     * Defines and keeps the accessors of the bean classes of one class loader.
+     */
+    private static class AccessorLoader extends ClassLoader {
+        /**
+         * Accessors by bean class, then by member.
+         */
+        private final Map accessors = new HashMap();
+
+        AccessorLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        /**
+         * The accessor for a member read or written through a class, generated
+         * the first time it is asked for.
+         */
+        synchronized Accessor getAccessor(Class cls, Member member, boolean set) throws Exception {
+            Map byMember = (Map) accessors.get(cls);
+
+            if (byMember == null) {
+                byMember = new HashMap();
+                accessors.put(cls, byMember);
+            }
+
+            Accessor accessor = (Accessor) byMember.get(member);
+
+            if (accessor == null) {
+                byte[] classFile = set ? AccessorGenerator.setter(nextClassName(), cls, (Method) member) : AccessorGenerator.getter(nextClassName(), cls, member);
+                Class accessorClass = defineClass(null, classFile, 0, classFile.length);
+                accessor = (Accessor) accessorClass.getConstructor(new Class[0]).newInstance(new Object[0]);
+                byMember.put(member, accessor);
+            }
+
+            return accessor;
+        }
+
+        protected synchronized Class loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            // the bean's loader may not see this one
+            if (name.equals(Accessor.class.getName())) {
+                return Accessor.class;
+            }
+
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    /**
+     * Reads through the generated accessor for the first member, and through
+     * the others reflectively if that fails, just as the default getter would.
+     */
+    private static class GeneratedGetter extends Getter {
+        private Accessor accessor;
+
+        GeneratedGetter(Member[] members, Accessor accessor) {
+            super(members);
+            this.accessor = accessor;
+        }
+
+        Object get(Object obj) {
+            try {
+                return accessor.invokeGet(obj);
+            } catch (Throwable t) {
+                return get(obj, 1);
+            }
+        }
+    }
+
+    /**
+     * Writes through the generated accessor when the value is of the parameter
+     * type, and reflectively otherwise, so values that reflection would widen
+     * or reject are handled as the default setter would.
+     */
+    private static class GeneratedSetter extends Setter {
+        private Accessor accessor;
+
+        /**
+         * The parameter type, boxed if it's primitive.
+         */
+        private Class type;
+        private boolean primitive;
+
+        GeneratedSetter(Method method, Accessor accessor) {
+            super(method);
+            this.accessor = accessor;
+            type = method.getParameterTypes()[0];
+            primitive = type.isPrimitive();
+
+            if (primitive) {
+                type = (Class) wrappers.get(type);
+            }
+        }
+
+        boolean set(Object obj, Object value) {
+            if ((value == null) ? primitive : !type.isInstance(value)) {
+                return super.set(obj, value);
+            }
+
+            try {
+                accessor.invokeSet(obj, value);
+
+                return true;
+            } catch (Throwable t) {
+                return false;
+            }
+        }
+    }
+}
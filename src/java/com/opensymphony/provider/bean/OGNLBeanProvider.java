@@ -4,34 +4,86 @@
  */
 package com.opensymphony.provider.bean;
 
-import com.opensymphony.provider.BeanProvider;
+import com.opensymphony.provider.PropertyPath;
+import com.opensymphony.provider.PropertyPathProvider;
 import com.opensymphony.provider.ProviderConfigurationException;
 
 import ognl.Ognl;
+import ognl.OgnlContext;
 import ognl.OgnlException;
 
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 
 /**
  * BeanProvider implementation that uses OGNL for expression evaluation.
  *
+ * Expressions are parsed once and the trees kept, up to {@link #MAX_EXPRESSIONS}
+ * of them, and each thread reuses one OgnlContext for evaluating them.
+ *
  * @author <a href="mailto:joe@truemesh.com">Joe Walnes</a>
  * @version $Revision$
  */
-public class OGNLBeanProvider implements BeanProvider {
+public class OGNLBeanProvider implements PropertyPathProvider {
+    //~ Static fields/initializers /////////////////////////////////////////////
+
+    /**
+     * Most parsed expressions kept at once.
+     */
+    public static final int MAX_EXPRESSIONS = 1000;
+
+    /**
+     * Cached in place of the tree of an expression that doesn't parse.
+     */
+    private static final Object UNPARSEABLE = new Object();
+
+    //~ Instance fields ////////////////////////////////////////////////////////
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Parsed trees by expression.
+     */
+    private final ConcurrentHashMap expressions = new ConcurrentHashMap();
+
+    /**
+     * The OgnlContext of each thread, or null while it is in use, so that an
+     * evaluation started from within another gets a context of its own.
+     */
+    private final ThreadLocal contexts = new ThreadLocal();
+
     //~ Methods ////////////////////////////////////////////////////////////////
 
+    /**
+     * Number of times an expression was found already parsed.
+     */
+    public long getCacheHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of times an expression had to be parsed.
+     */
+    public long getCacheMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Number of parsed expressions kept.
+     */
+    public int getCacheSize() {
+        return expressions.size();
+    }
+
     public boolean setProperty(Object object, String property, Object value) {
         if ((object == null) || (property == null)) {
             return false;
         }
 
-        try {
-            Ognl.setValue(property, object, value);
-
-            return true;
-        } catch (OgnlException e) {
-            return false;
-        }
+        return setValue(parse(property), object, value);
     }
 
     public Object getProperty(Object object, String property) {
@@ -39,16 +91,141 @@ public class OGNLBeanProvider implements BeanProvider {
             return null;
         }
 
+        return getValue(parse(property), object);
+    }
+
+    public PropertyPath compilePath(String property) {
+        // a path that finds nothing if it doesn't parse
+        return new OGNLPropertyPath(property, (property == null) ? null : parse(property));
+    }
+
+    public void destroy() {
+        expressions.clear();
+    }
+
+    public void init() throws ProviderConfigurationException {
+    }
+
+    /**
+     * Take the OgnlContext of this thread, or a new one if it's in use.
+     */
+    private OgnlContext borrowContext() {
+        OgnlContext context = (OgnlContext) contexts.get();
+
+        if (context == null) {
+            return new OgnlContext();
+        }
+
+        contexts.set(null);
+
+        return context;
+    }
+
+    private Object getValue(Object tree, Object object) {
+        if (tree == null) {
+            return null;
+        }
+
+        OgnlContext context = borrowContext();
+
         try {
-            return Ognl.getValue(property, object);
+            return Ognl.getValue(tree, context, object);
         } catch (OgnlException e) {
             return null;
+        } finally {
+            releaseContext(context);
         }
     }
 
-    public void destroy() {
+    /**
+     * The parsed tree of an expression, from the cache if it has been parsed
+     * before, or null if it doesn't parse.
+     */
+    private Object parse(String expression) {
+        Object tree = expressions.get(expression);
+
+        if (tree != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+
+            try {
+                tree = Ognl.parseExpression(expression);
+            } catch (OgnlException e) {
+                tree = UNPARSEABLE;
+            }
+
+            if (expressions.size() >= MAX_EXPRESSIONS) {
+                // make room by dropping whichever comes first
+                Iterator i = expressions.keySet().iterator();
+
+                if (i.hasNext()) {
+                    i.next();
+                    i.remove();
+                }
+            }
+
+            expressions.put(expression, tree);
+        }
+
+        return (tree == UNPARSEABLE) ? null : tree;
     }
 
-    public void init() throws ProviderConfigurationException {
+    private void releaseContext(OgnlContext context) {
+        context.clear();
+        contexts.set(context);
+    }
+
+    private boolean setValue(Object tree, Object object, Object value) {
+        if (tree == null) {
+            return false;
+        }
+
+        OgnlContext context = borrowContext();
+
+        try {
+            Ognl.setValue(tree, context, object, value);
+
+            return true;
+        } catch (OgnlException e) {
+            return false;
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    //~ Inner Classes //////////////////////////////////////////////////////////
+
+    /**
+     * Property path holding a parsed OGNL expression, or null if it didn't parse.
+     */
+    private class OGNLPropertyPath implements PropertyPath {
+        private Object tree;
+        private String property;
+
+        OGNLPropertyPath(String property, Object tree) {
+            this.property = property;
+            this.tree = tree;
+        }
+
+        public boolean setValue(Object object, Object value) {
+            if (object == null) {
+                return false;
+            }
+
+            return OGNLBeanProvider.this.setValue(tree, object, value);
+        }
+
+        public Object getValue(Object object) {
+            if (object == null) {
+                return null;
+            }
+
+            return OGNLBeanProvider.this.getValue(tree, object);
+        }
+
+        public String toString() {
+            return property;
+        }
     }
 }
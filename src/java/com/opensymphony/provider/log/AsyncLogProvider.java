@@ -0,0 +1,444 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.provider.log;
+
+import com.opensymphony.provider.LogProvider;
+import com.opensymphony.provider.ProviderConfigurationException;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * LogProvider implementation that writes to System.err in the format of
+ * {@link FullLogProvider}, but not on the thread that logs. Events are put in a
+ * bounded ring buffer, which takes no locks, and a background thread formats and
+ * writes them in batches, so logging threads don't contend for System.err.
+ *
+ * <p>Configured by system properties, read on init:</p>
+ * <ul>
+ *   <li><code>logger.async.level</code> - lowest level logged: debug (the
+ *       default), info, warn, error or fatal.</li>
+ *   <li><code>logger.async.buffer</code> - number of events the buffer holds,
+ *       rounded up to a power of two; 1024 by default.</li>
+ *   <li><code>logger.async.overflow</code> - what to do with an event when the
+ *       buffer is full: <code>block</code> until there is room (the default),
+ *       <code>discard</code> it, counting how many were, or <code>write</code>
+ *       it straight away on the logging thread.</li>
+ * </ul>
+ *
+ * <p>Events still buffered are written by {@link #destroy()}, which
+ * {@link com.opensymphony.provider.ProviderFactory#destroy()} calls; the application
+ * should call that from its own shutdown, or those events are lost when the VM exits.
+ * Messages other than Strings are turned into Strings when logged, so later changes
+ * to them don't show.</p>
+ *
+ * @version $Revision$
+ *
+ * @see com.opensymphony.provider.LogProvider
+ * @see com.opensymphony.util.Logger
+ */
+public class AsyncLogProvider implements LogProvider {
+    //~ Static fields/initializers /////////////////////////////////////////////
+
+    public static final int BLOCK = 0;
+    public static final int DISCARD = 1;
+    public static final int WRITE = 2;
+
+    //~ Instance fields ////////////////////////////////////////////////////////
+
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * Position the next event will be put at. Positions only ever grow, the slot of
+     * a position being <code>position & mask</code>.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * For each slot, the position it can next be put at, or that position + 1 once
+     * an event has been put there and can be taken.
+     */
+    private AtomicLongArray sequences;
+
+    /**
+     * Events, by slot. Written before, and read after, the slot's sequence.
+     */
+    private Event[] events;
+    private volatile Thread writer;
+
+    /**
+     * Position the next event will be taken from. Only used by the writer thread,
+     * or after it has stopped.
+     */
+    private long head;
+
+    /**
+     * How many of the discarded events have been reported in the log. Only used by
+     * the writer thread, or after it has stopped.
+     */
+    private long reported;
+    private int level = DEBUG;
+    private int mask;
+    private int overflow = BLOCK;
+    private volatile boolean running;
+
+    /**
+     * Set while the writer is about to park, so that loggers know to wake it.
+     */
+    private volatile boolean writerWaiting;
+
+    //~ Methods ////////////////////////////////////////////////////////////////
+
+    public Object getContext(String name) {
+        return name;
+    }
+
+    /**
+     * Number of events discarded so far because the buffer was full.
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    public boolean isEnabled(Object context, int level) {
+        return level >= this.level;
+    }
+
+    /**
+     * Stop the writer thread, writing out all the events it hadn't yet. Events
+     * logged afterwards are written on the logging thread.
+     */
+    public void destroy() {
+        Thread stopping = writer;
+
+        if (stopping == null) {
+            return;
+        }
+
+        running = false;
+        LockSupport.unpark(stopping);
+
+        try {
+            stopping.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            // the writer is gone, so whatever it left is safe to take from here
+            writeBatch();
+            writer = null;
+        }
+    }
+
+    public void init() throws ProviderConfigurationException {
+        level = parseLevel(System.getProperty("logger.async.level", "debug"));
+        overflow = parseOverflow(System.getProperty("logger.async.overflow", "block"));
+
+        int capacity;
+
+        try {
+            capacity = Integer.parseInt(System.getProperty("logger.async.buffer", "1024").trim());
+        } catch (NumberFormatException e) {
+            throw new ProviderConfigurationException("logger.async.buffer is not a number: " + System.getProperty("logger.async.buffer"));
+        }
+
+        int size = 1;
+
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        sequences = new AtomicLongArray(size);
+        events = new Event[size];
+        mask = size - 1;
+
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+
+        running = true;
+        writer = new Thread("AsyncLogProvider writer") {
+                    public void run() {
+                        write();
+                    }
+                };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void log(Object context, int level, Object msg, Throwable throwable) {
+        if (!isEnabled(context, level)) {
+            return;
+        }
+
+        Event event = new Event(context, level, ((msg == null) || (msg instanceof String)) ? msg : msg.toString(), throwable);
+
+        while (!offer(event)) {
+            if (!running || (overflow == WRITE)) {
+                writeNow(event);
+
+                return;
+            } else if (overflow == DISCARD) {
+                discarded.incrementAndGet();
+
+                return;
+            }
+
+            // BLOCK: wait for the writer to make room
+            wakeWriter();
+            LockSupport.parkNanos(100000L);
+        }
+
+        if (!running) {
+            // logged while destroy() was finishing, so there may be no writer left
+            synchronized (this) {
+                if (writer == null) {
+                    writeBatch();
+                }
+            }
+        } else if (writerWaiting) {
+            wakeWriter();
+        }
+    }
+
+    private static String getLevelDescription(int level) {
+        switch (level) {
+        case DEBUG:
+            return "DEBUG";
+
+        case INFO:
+            return "INFO ";
+
+        case WARN:
+            return "WARN ";
+
+        case ERROR:
+            return "ERROR";
+
+        case FATAL:
+            return "FATAL";
+
+        default:
+            return "?????";
+        }
+    }
+
+    private static int parseLevel(String name) throws ProviderConfigurationException {
+        name = name.trim().toLowerCase();
+
+        if (name.equals("debug")) {
+            return DEBUG;
+        } else if (name.equals("info")) {
+            return INFO;
+        } else if (name.equals("warn")) {
+            return WARN;
+        } else if (name.equals("error")) {
+            return ERROR;
+        } else if (name.equals("fatal")) {
+            return FATAL;
+        }
+
+        throw new ProviderConfigurationException("Unknown logger.async.level: " + name);
+    }
+
+    private static int parseOverflow(String name) throws ProviderConfigurationException {
+        name = name.trim().toLowerCase();
+
+        if (name.equals("block")) {
+            return BLOCK;
+        } else if (name.equals("discard")) {
+            return DISCARD;
+        } else if (name.equals("write")) {
+            return WRITE;
+        }
+
+        throw new ProviderConfigurationException("Unknown logger.async.overflow: " + name);
+    }
+
+    /**
+     * Format an event onto <code>out</code>, or if it can't be, because its context
+     * or throwable failed when turned into a String, a line saying so in its place.
+     */
+    private void append(StringBuffer out, Event event) {
+        int length = out.length();
+
+        try {
+            format(out, event);
+        } catch (RuntimeException e) {
+            out.setLength(length);
+            out.append("[ERROR] ").append(getClass().getName()).append(" : log event could not be written, ").append(e.getClass().getName());
+            out.append(System.getProperty("line.separator"));
+        }
+    }
+
+    private void format(StringBuffer out, Event event) {
+        out.append('[');
+        out.append(getLevelDescription(event.level));
+        out.append("] ");
+        out.append(event.context);
+        out.append(" : ");
+
+        if (event.msg != null) {
+            out.append(event.msg);
+        }
+
+        out.append(System.getProperty("line.separator"));
+
+        if (event.throwable != null) {
+            StringWriter trace = new StringWriter();
+            PrintWriter traceWriter = new PrintWriter(trace);
+            event.throwable.printStackTrace(traceWriter);
+            traceWriter.flush();
+            out.append(trace.getBuffer());
+        }
+    }
+
+    /**
+     * Put an event in the buffer, if there is room. May be called from any thread.
+     */
+    private boolean offer(Event event) {
+        long position = tail.get();
+
+        while (true) {
+            int slot = (int) position & mask;
+            long available = sequences.get(slot) - position;
+
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    events[slot] = event;
+                    sequences.set(slot, position + 1);
+
+                    return true;
+                }
+
+                position = tail.get();
+            } else if (available < 0) {
+                // the slot still holds the event from a lap ago
+                return false;
+            } else {
+                // another thread took this position
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Take the next event from the buffer, or null if there is none. Only called by
+     * one thread at a time.
+     */
+    private Event poll() {
+        int slot = (int) head & mask;
+
+        if (sequences.get(slot) != (head + 1)) {
+            return null;
+        }
+
+        Event event = events[slot];
+        events[slot] = null;
+        sequences.set(slot, head + events.length);
+        head++;
+
+        return event;
+    }
+
+    private void wakeWriter() {
+        Thread current = writer;
+
+        if (current != null) {
+            LockSupport.unpark(current);
+        }
+    }
+
+    /**
+     * Body of the writer thread.
+     */
+    private void write() {
+        while (running) {
+            try {
+                if (writeBatch()) {
+                    continue;
+                }
+            } catch (RuntimeException e) {
+                // System.err failed, and there is nowhere else to say so
+                continue;
+            }
+
+            writerWaiting = true;
+
+            // look again, in case an event came before the flag was seen
+            if (running && (sequences.get((int) head & mask) != (head + 1))) {
+                LockSupport.parkNanos(100000000L);
+            }
+
+            writerWaiting = false;
+        }
+    }
+
+    /**
+     * Write out everything buffered, at most a buffer full at a time.
+     *
+     * @return false if there was nothing to write.
+     */
+    private boolean writeBatch() {
+        StringBuffer batch = null;
+        Event event;
+        long lost = discarded.get() - reported;
+
+        if (lost > 0) {
+            reported += lost;
+            batch = new StringBuffer();
+            batch.append("[WARN ] ").append(getClass().getName()).append(" : ").append(lost).append(" log events discarded, buffer full");
+            batch.append(System.getProperty("line.separator"));
+        }
+
+        for (int i = 0; (i < events.length) && ((event = poll()) != null); i++) {
+            if (batch == null) {
+                batch = new StringBuffer();
+            }
+
+            append(batch, event);
+        }
+
+        if (batch == null) {
+            return false;
+        }
+
+        PrintStream err = System.err;
+        err.print(batch);
+        err.flush();
+
+        return true;
+    }
+
+    private void writeNow(Event event) {
+        StringBuffer line = new StringBuffer();
+        append(line, event);
+        System.err.print(line);
+        System.err.flush();
+    }
+
+    //~ Inner Classes //////////////////////////////////////////////////////////
+
+    private static class Event {
+        Object context;
+        Object msg;
+        Throwable throwable;
+        int level;
+
+        Event(Object context, int level, Object msg, Throwable throwable) {
+            this.context = context;
+            this.level = level;
+            this.msg = msg;
+            this.throwable = throwable;
+        }
+    }
+}
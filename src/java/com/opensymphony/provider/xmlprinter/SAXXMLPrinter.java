@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.provider.xmlprinter;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import java.util.ArrayList;
+
+
+/**
+ * SAX handler that prints the events it receives straight to a stream, so
+ * documents can be pretty-printed without ever being built as a DOM. The
+ * layout is that of {@link DefaultXMLPrinterProvider}: one node per line,
+ * text trimmed, and elements holding only text kept on a single line.
+ *
+ * <p>Only the events of {@link org.xml.sax.ContentHandler} are seen, so
+ * comments are dropped and CDATA sections are printed as ordinary text.
+ * Namespace declarations are printed whether or not the parser reports
+ * them as attributes.</p>
+ *
+ * <pre>
+ * SAXParserFactory.newInstance().newSAXParser().parse(in, new SAXXMLPrinter(out));
+ * </pre>
+ *
+ * @version $Revision$
+ * @see StreamingXMLPrinterProvider
+ */
+public class SAXXMLPrinter extends DefaultHandler {
+    //~ Instance fields ////////////////////////////////////////////////////////
+
+    /**
+     * Namespace declarations to add to the next start tag.
+     */
+    private ArrayList prefixes = new ArrayList();
+
+    /**
+     * Names of open elements, innermost last.
+     */
+    private ArrayList stack = new ArrayList();
+
+    /**
+     * Text collected for the innermost open element since its last child,
+     * or null if there is none.
+     */
+    private StringBuffer text;
+    private XMLOutput out;
+
+    /**
+     * True while the start tag of the innermost element is still missing
+     * its closing bracket, that is until it is known whether the element
+     * is empty, holds only text or has children of its own.
+     */
+    private boolean pending;
+
+    //~ Constructors ///////////////////////////////////////////////////////////
+
+    public SAXXMLPrinter(Writer out) {
+        this.out = new XMLOutput(out);
+    }
+
+    /**
+     * Print to bytes in the given encoding, which is also named in the XML
+     * declaration.
+     */
+    public SAXXMLPrinter(OutputStream out, String encoding) throws IOException {
+        this.out = new XMLOutput(out, encoding);
+    }
+
+    //~ Methods ////////////////////////////////////////////////////////////////
+
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (stack.isEmpty() || (length == 0)) {
+            return;
+        }
+
+        if (text == null) {
+            text = new StringBuffer(length);
+        }
+
+        text.append(ch, start, length);
+    }
+
+    public void endDocument() throws SAXException {
+        try {
+            out.write('\n');
+            out.flush();
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        try {
+            String name = (String) stack.remove(stack.size() - 1);
+
+            if (pending) {
+                pending = false;
+
+                if (text == null) {
+                    out.write("/>\n");
+
+                    return;
+                }
+
+                out.write('>');
+                out.escape(text.toString());
+                text = null;
+            } else {
+                flushText(stack.size() + 1);
+                out.indent(stack.size());
+            }
+
+            out.write("</");
+            out.write(name);
+            out.write(">\n");
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        characters(ch, start, length);
+    }
+
+    public void processingInstruction(String target, String data) throws SAXException {
+        if (stack.isEmpty()) {
+            return;
+        }
+
+        try {
+            beginChild();
+            out.indent(stack.size());
+            out.write("<?");
+            out.write(target);
+
+            if ((data != null) && (data.length() > 0)) {
+                out.write(' ');
+                out.write(data);
+            }
+
+            out.write("?>\n");
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    public void startDocument() throws SAXException {
+        try {
+            out.writeDeclaration();
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+        try {
+            beginChild();
+
+            String name = ((qName == null) || (qName.length() == 0)) ? localName : qName;
+            out.indent(stack.size());
+            out.write('<');
+            out.write(name);
+
+            for (int i = 0; i < prefixes.size(); i += 2) {
+                String prefix = (String) prefixes.get(i);
+                String attrName = (prefix.length() == 0) ? "xmlns" : ("xmlns:" + prefix);
+
+                if (attributes.getIndex(attrName) < 0) {
+                    writeAttribute(attrName, (String) prefixes.get(i + 1));
+                }
+            }
+
+            prefixes.clear();
+
+            for (int i = 0; i < attributes.getLength(); i++) {
+                String attrName = attributes.getQName(i);
+
+                if ((attrName == null) || (attrName.length() == 0)) {
+                    attrName = attributes.getLocalName(i);
+                }
+
+                writeAttribute(attrName, attributes.getValue(i));
+            }
+
+            stack.add(name);
+            pending = true;
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        prefixes.add(prefix);
+        prefixes.add(uri);
+    }
+
+    /**
+     * Called before a child element or processing instruction is printed:
+     * the parent now certainly has children on lines of their own, so its
+     * start tag can be finished and any text before the child written out.
+     */
+    private void beginChild() throws IOException {
+        if (pending) {
+            out.write(">\n");
+            pending = false;
+        }
+
+        flushText(stack.size());
+    }
+
+    /**
+     * Write collected text on a line of its own.
+     */
+    private void flushText(int indent) throws IOException {
+        if (text != null) {
+            out.indent(indent);
+            out.escape(text.toString());
+            out.write('\n');
+            text = null;
+        }
+    }
+
+    private void writeAttribute(String name, String value) throws IOException {
+        out.write(' ');
+        out.write(name);
+        out.write("=\"");
+        out.escape(value);
+        out.write('"');
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.provider.xmlprinter;
+
+import com.opensymphony.provider.ProviderConfigurationException;
+import com.opensymphony.provider.XMLPrinterProvider;
+
+import org.w3c.dom.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import java.util.ArrayList;
+
+
+/**
+ * XMLPrinterProvider implementation producing the same output as
+ * {@link DefaultXMLPrinterProvider}, suited to large documents. The tree is
+ * walked iteratively with an explicit stack of open elements, so deep
+ * documents can't overflow the call stack, and text is escaped in runs
+ * into a buffered writer.
+ *
+ * <p>Use {@link #print(Document, OutputStream, String)} to write bytes in a
+ * chosen encoding; characters the encoding can't represent are written as
+ * character references.</p>
+ *
+ * @version $Revision$
+ * @see SAXXMLPrinter
+ */
+public class StreamingXMLPrinterProvider implements XMLPrinterProvider {
+    //~ Methods ////////////////////////////////////////////////////////////////
+
+    public void destroy() {
+    }
+
+    public void init() throws ProviderConfigurationException {
+    }
+
+    public void print(Document doc, Writer out) throws IOException {
+        print(doc, new XMLOutput(out));
+    }
+
+    /**
+     * Print document as bytes in the given encoding, which is also named in
+     * the XML declaration.
+     */
+    public void print(Document doc, OutputStream out, String encoding) throws IOException {
+        print(doc, new XMLOutput(out, encoding));
+    }
+
+    private void print(Document doc, XMLOutput out) throws IOException {
+        out.writeDeclaration();
+        walk(out, doc.getDocumentElement());
+        out.write('\n');
+        out.flush();
+    }
+
+    /**
+     * Write the open tag of a node along with everything else that comes
+     * before its children, or the whole node if it has none.
+     *
+     * @return true if the node has children to walk.
+     */
+    private boolean open(XMLOutput out, Node node, int indent, boolean textOnly) throws IOException {
+        int type = node.getNodeType();
+        boolean keepFormatting = (textOnly && (type == Node.TEXT_NODE)) || (type == Node.CDATA_SECTION_NODE);
+
+        if (!keepFormatting) {
+            out.indent(indent);
+        }
+
+        switch (type) {
+        case Node.ELEMENT_NODE:
+            out.write('<');
+            out.write(node.getNodeName());
+
+            NamedNodeMap attrs = node.getAttributes();
+
+            for (int i = 0; i < attrs.getLength(); i++) {
+                Node attr = attrs.item(i);
+                out.write(' ');
+                out.write(attr.getNodeName());
+                out.write("=\"");
+                out.escape(attr.getNodeValue());
+                out.write('"');
+            }
+
+            Node first = node.getFirstChild();
+
+            if (first == null) {
+                out.write("/>\n");
+
+                return false;
+            }
+
+            out.write('>');
+
+            if (!isTextOnly(first)) {
+                out.write('\n');
+            }
+
+            return true;
+
+        case Node.CDATA_SECTION_NODE:
+        case Node.TEXT_NODE:
+            out.escape(node.getNodeValue());
+
+            break;
+
+        case Node.PROCESSING_INSTRUCTION_NODE:
+            out.write("<?");
+            out.write(node.getNodeName());
+
+            if ((node.getNodeValue() != null) && (node.getNodeValue().length() > 0)) {
+                out.write(' ');
+                out.write(node.getNodeValue());
+            }
+
+            out.write("?>");
+
+            break;
+
+        case Node.ENTITY_REFERENCE_NODE:
+            out.write('&');
+            out.write(node.getNodeName());
+            out.write(';');
+
+            break;
+        }
+
+        if (!keepFormatting) {
+            out.write('\n');
+        }
+
+        return false;
+    }
+
+    /**
+     * Write the close tag of an element whose children have been walked.
+     */
+    private void close(XMLOutput out, Node element, int indent, boolean textOnly) throws IOException {
+        if (!textOnly) {
+            out.indent(indent);
+        }
+
+        out.write("</");
+        out.write(element.getNodeName());
+        out.write(">\n");
+    }
+
+    /**
+     * True if the given first child is the only child of its element and
+     * is a text node, in which case the element is printed on one line.
+     */
+    private boolean isTextOnly(Node first) {
+        return (first.getNodeType() == Node.TEXT_NODE) && (first.getNextSibling() == null);
+    }
+
+    private void walk(XMLOutput out, Node root) throws IOException {
+        if (root == null) {
+            return;
+        }
+
+        // open elements, innermost last
+        ArrayList stack = new ArrayList();
+        Node node = root;
+
+        while (true) {
+            int depth = stack.size();
+            boolean textOnly = (depth > 0) && isTextOnly(((Node) stack.get(depth - 1)).getFirstChild());
+
+            if (open(out, node, depth, textOnly)) {
+                stack.add(node);
+                node = node.getFirstChild();
+
+                continue;
+            }
+
+            // climb until there is a sibling to move on to
+            while ((node != root) && (node.getNextSibling() == null)) {
+                node = (Node) stack.remove(stack.size() - 1);
+                close(out, node, stack.size(), isTextOnly(node.getFirstChild()));
+            }
+
+            if (node == root) {
+                return;
+            }
+
+            node = node.getNextSibling();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.provider.xmlprinter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+
+import java.util.Arrays;
+
+
+/**
+ * Buffered character sink shared by the streaming printers. Text is escaped
+ * in runs: the unescaped stretches between special characters are handed
+ * to the underlying writer in one call rather than a character at a time.
+ *
+ * @version $Revision$
+ */
+class XMLOutput {
+    //~ Static fields/initializers /////////////////////////////////////////////
+
+    private static final int BUFFER_SIZE = 8192;
+
+    //~ Instance fields ////////////////////////////////////////////////////////
+
+    /**
+     * Encoder used to spot characters the output encoding can't represent,
+     * or null if every character can be written as is.
+     */
+    private CharsetEncoder encoder;
+    private String encoding;
+    private Writer out;
+    private char[] spaces = new char[64];
+
+    //~ Constructors ///////////////////////////////////////////////////////////
+
+    XMLOutput(Writer out) {
+        this.out = (out instanceof BufferedWriter) ? out : new BufferedWriter(out, BUFFER_SIZE);
+        Arrays.fill(spaces, ' ');
+    }
+
+    XMLOutput(OutputStream out, String encoding) throws IOException {
+        this(new OutputStreamWriter(out, encoding));
+        this.encoding = encoding;
+
+        if (!encoding.toUpperCase().startsWith("UTF")) {
+            encoder = Charset.forName(encoding).newEncoder();
+        }
+    }
+
+    //~ Methods ////////////////////////////////////////////////////////////////
+
+    /**
+     * Escape text and strip line breaks, after trimming leading and trailing
+     * whitespace.
+     */
+    void escape(String str) throws IOException {
+        if (str == null) {
+            return;
+        }
+
+        int start = 0;
+        int end = str.length();
+
+        while ((start < end) && (str.charAt(start) <= ' ')) {
+            start++;
+        }
+
+        while ((end > start) && (str.charAt(end - 1) <= ' ')) {
+            end--;
+        }
+
+        int run = start;
+
+        for (int i = start; i < end; i++) {
+            char c = str.charAt(i);
+            String replacement;
+
+            switch (c) {
+            case '<':
+                replacement = "&lt;";
+
+                break;
+
+            case '>':
+                replacement = "&gt;";
+
+                break;
+
+            case '&':
+                replacement = "&amp;";
+
+                break;
+
+            case '"':
+                replacement = "&quot;";
+
+                break;
+
+            case '\r':
+            case '\n':
+                replacement = "";
+
+                break;
+
+            default:
+
+                if ((c < 0x80) || (encoder == null)) {
+                    continue;
+                }
+
+                int width = 1;
+
+                if (Character.isHighSurrogate(c) && ((i + 1) < end) && Character.isLowSurrogate(str.charAt(i + 1))) {
+                    width = 2;
+                }
+
+                if (encoder.canEncode(str.substring(i, i + width))) {
+                    i += (width - 1);
+
+                    continue;
+                }
+
+                out.write(str, run, i - run);
+                out.write("&#");
+                out.write(String.valueOf((width == 2) ? Character.toCodePoint(c, str.charAt(i + 1)) : c));
+                out.write(';');
+                i += (width - 1);
+                run = i + 1;
+
+                continue;
+            }
+
+            out.write(str, run, i - run);
+            out.write(replacement);
+            run = i + 1;
+        }
+
+        out.write(str, run, end - run);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Add indentation, two spaces per level.
+     */
+    void indent(int level) throws IOException {
+        int count = level * 2;
+
+        if (count > spaces.length) {
+            spaces = new char[Math.max(count, spaces.length * 2)];
+            Arrays.fill(spaces, ' ');
+        }
+
+        out.write(spaces, 0, count);
+    }
+
+    void write(String str) throws IOException {
+        out.write(str);
+    }
+
+    void write(char c) throws IOException {
+        out.write(c);
+    }
+
+    /**
+     * Write the XML declaration, naming the encoding if this output was
+     * created for a byte stream.
+     */
+    void writeDeclaration() throws IOException {
+        if (encoding == null) {
+            out.write("<?xml version=\"1.0\" ?>\n");
+        } else {
+            out.write("<?xml version=\"1.0\" encoding=\"");
+            out.write(encoding);
+            out.write("\" ?>\n");
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.provider.xpath;
+
+import com.opensymphony.provider.*;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.transform.TransformerException;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+
+/**
+ * XPathProvider implementation that uses the <code>javax.xml.xpath</code> API
+ * of JAXP 1.3 and later.
+ *
+ * <p>Neither XPath nor XPathExpression objects are thread safe, so each thread
+ * compiles into its own {@link XPathCache}. As with XalanXPathProvider, namespace
+ * prefixes are resolved against the base node.</p>
+ *
+ * @version $Revision$
+ */
+public class JAXPXPathProvider implements XPathProvider {
+    //~ Static fields/initializers /////////////////////////////////////////////
+
+    /**
+     * Used while compiling cacheable expressions, which have no prefixes to resolve.
+     */
+    private static final NamespaceContext NO_NAMESPACES = new NodeNamespaceContext(null);
+
+    //~ Instance fields ////////////////////////////////////////////////////////
+
+    private XPathFactory factory;
+
+    /**
+     * Per thread: an XPath to compile with, and its XPathCache.
+     */
+    private final ThreadLocal compilers = new ThreadLocal() {
+        protected Object initialValue() {
+            synchronized (factory) {
+                return new Object[] {factory.newXPath(), new XPathCache()};
+            }
+        }
+    };
+
+    //~ Methods ////////////////////////////////////////////////////////////////
+
+    public Node getNode(Node base, String xpath) throws ProviderInvocationException {
+        return (Node) evaluate(base, xpath, XPathConstants.NODE);
+    }
+
+    public NodeList getNodes(Node base, String xpath) throws ProviderInvocationException {
+        return (NodeList) evaluate(base, xpath, XPathConstants.NODESET);
+    }
+
+    public void destroy() {
+    }
+
+    public void init() throws ProviderConfigurationException {
+        try {
+            factory = XPathFactory.newInstance();
+        } catch (RuntimeException e) {
+            throw new ProviderConfigurationException(e);
+        } catch (LinkageError e) {
+            // javax.xml.xpath is missing before JAXP 1.3
+            throw new ProviderConfigurationException(e);
+        }
+    }
+
+    private Object evaluate(Node base, String xpath, QName returnType) throws ProviderInvocationException {
+        Object[] compiler = (Object[]) compilers.get();
+        XPath compilingXPath = (XPath) compiler[0];
+        XPathCache cache = (XPathCache) compiler[1];
+
+        try {
+            XPathExpression expression;
+
+            if (XPathCache.isCacheable(xpath)) {
+                expression = (XPathExpression) cache.get(xpath);
+
+                if (expression == null) {
+                    compilingXPath.setNamespaceContext(NO_NAMESPACES);
+                    expression = compilingXPath.compile(xpath);
+                    cache.put(xpath, expression);
+                }
+            } else {
+                compilingXPath.setNamespaceContext(new NodeNamespaceContext(base));
+                expression = compilingXPath.compile(xpath);
+            }
+
+            return expression.evaluate(base, returnType);
+        } catch (XPathExpressionException e) {
+            // XMLUtils expects the same exceptions as from Xalan
+            throw new ProviderInvocationException(new TransformerException(e));
+        }
+    }
+
+    //~ Inner Classes //////////////////////////////////////////////////////////
+
+    /**
+     * Resolves prefixes to the namespaces in scope at a node, by looking for
+     * <code>xmlns</code> attributes on it and its ancestors, like Xalan's
+     * PrefixResolverDefault. That works on DOM level 2 parsers too.
+     */
+    private static class NodeNamespaceContext implements NamespaceContext {
+        private final Node node;
+
+        NodeNamespaceContext(Node node) {
+            this.node = ((node != null) && (node.getNodeType() == Node.DOCUMENT_NODE)) ? ((Document) node).getDocumentElement() : node;
+        }
+
+        public String getNamespaceURI(String prefix) {
+            if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+                return XMLConstants.XML_NS_URI;
+            }
+
+            String attribute = (prefix.length() == 0) ? XMLConstants.XMLNS_ATTRIBUTE : (XMLConstants.XMLNS_ATTRIBUTE + ':' + prefix);
+
+            for (Node n = getElement(); n != null; n = n.getParentNode()) {
+                if ((n.getNodeType() == Node.ELEMENT_NODE) && ((Element) n).hasAttribute(attribute)) {
+                    return ((Element) n).getAttribute(attribute);
+                }
+            }
+
+            return XMLConstants.NULL_NS_URI;
+        }
+
+        public String getPrefix(String namespaceURI) {
+            Iterator<String> prefixes = getPrefixes(namespaceURI);
+
+            return prefixes.hasNext() ? prefixes.next() : null;
+        }
+
+        /**
+         * The prefixes bound to a namespace at the node, nearest declaration first,
+         * leaving out those redeclared nearer to it.
+         */
+        public Iterator<String> getPrefixes(String namespaceURI) {
+            if (namespaceURI == null) {
+                throw new IllegalArgumentException("Null namespace URI");
+            }
+
+            List<String> prefixes = new ArrayList<String>();
+
+            if (XMLConstants.XML_NS_URI.equals(namespaceURI)) {
+                prefixes.add(XMLConstants.XML_NS_PREFIX);
+            } else if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(namespaceURI)) {
+                prefixes.add(XMLConstants.XMLNS_ATTRIBUTE);
+            } else {
+                for (Node n = getElement(); n != null; n = n.getParentNode()) {
+                    NamedNodeMap attributes = (n.getNodeType() == Node.ELEMENT_NODE) ? n.getAttributes() : null;
+
+                    for (int i = 0; (attributes != null) && (i < attributes.getLength()); i++) {
+                        String name = attributes.item(i).getNodeName();
+                        String prefix = null;
+
+                        if (name.equals(XMLConstants.XMLNS_ATTRIBUTE)) {
+                            prefix = "";
+                        } else if (name.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ':')) {
+                            prefix = name.substring(XMLConstants.XMLNS_ATTRIBUTE.length() + 1);
+                        }
+
+                        if ((prefix != null) && !prefixes.contains(prefix) && namespaceURI.equals(getNamespaceURI(prefix))) {
+                            prefixes.add(prefix);
+                        }
+                    }
+                }
+
+                // no namespace, when the default namespace isn't declared
+                if (!prefixes.contains("") && namespaceURI.equals(getNamespaceURI(""))) {
+                    prefixes.add("");
+                }
+            }
+
+            return prefixes.iterator();
+        }
+
+        /**
+         * The element whose namespaces are in scope at the node.
+         */
+        private Node getElement() {
+            return ((node != null) && (node.getNodeType() == Node.ATTRIBUTE_NODE)) ? ((Attr) node).getOwnerElement() : node;
+        }
+    }
+}
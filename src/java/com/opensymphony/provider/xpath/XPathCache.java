@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.provider.xpath;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * Bounded cache of compiled XPath expressions, keyed by the expression String.
+ * When full, the least recently used expression is dropped. The size is taken
+ * from the <code>xpath.cache.size</code> system property, 100 by default.
+ *
+ * <p>Expressions with namespace prefixes are compiled against the namespaces in
+ * scope at the base node, so they can't be shared and are never cached.</p>
+ *
+ * @version $Revision$
+ */
+class XPathCache {
+    //~ Instance fields ////////////////////////////////////////////////////////
+
+    private final LinkedHashMap expressions = new LinkedHashMap(16, 0.75f, true);
+    private final int size = Integer.getInteger("xpath.cache.size", 100).intValue();
+
+    //~ Methods ////////////////////////////////////////////////////////////////
+
+    /**
+     * Whether the compiled form of <code>xpath</code> only depends on the String itself.
+     * Conservatively, any colon outside a string literal that isn't part of an axis
+     * (<code>::</code>) counts as a prefix.
+     */
+    static boolean isCacheable(String xpath) {
+        char quote = 0;
+
+        for (int i = 0; i < xpath.length(); i++) {
+            char c = xpath.charAt(i);
+
+            if (quote != 0) {
+                // literals can't contain their own quote, so there are no escapes
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if ((c == '\'') || (c == '"')) {
+                quote = c;
+            } else if (c == ':') {
+                if (((i + 1) < xpath.length()) && (xpath.charAt(i + 1) == ':')) {
+                    i++;
+                } else {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    synchronized void clear() {
+        expressions.clear();
+    }
+
+    /**
+     * @return the compiled expression, or null if it isn't cached.
+     */
+    synchronized Object get(String xpath) {
+        return expressions.get(xpath);
+    }
+
+    synchronized void put(String xpath, Object compiled) {
+        expressions.put(xpath, compiled);
+
+        Iterator i = expressions.keySet().iterator();
+
+        while ((expressions.size() > size) && i.hasNext()) {
+            i.next();
+            i.remove();
+        }
+    }
+}
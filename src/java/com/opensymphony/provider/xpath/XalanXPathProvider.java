@@ -6,8 +6,14 @@ package com.opensymphony.provider.xpath;
 
 import com.opensymphony.provider.*;
 
-import org.apache.xpath.XPathAPI;
+import org.apache.xml.utils.PrefixResolver;
+import org.apache.xml.utils.PrefixResolverDefault;
 
+import org.apache.xpath.XPath;
+import org.apache.xpath.XPathContext;
+import org.apache.xpath.objects.XObject;
+
+import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -17,15 +23,22 @@ import javax.xml.transform.TransformerException;
 /**
  * XPathProvider implementation that uses the XPath capabilities of Xalan 1.x.
  *
+ * <p>Evaluates like <code>XPathAPI</code>, but keeps compiled expressions in an
+ * {@link XPathCache} instead of compiling them on every call.</p>
+ *
  * @author <a href="mailto:joe@truemesh.com">Joe Walnes</a>
  * @version $Revision$
  */
 public class XalanXPathProvider implements XPathProvider {
+    //~ Instance fields ////////////////////////////////////////////////////////
+
+    private final XPathCache cache = new XPathCache();
+
     //~ Methods ////////////////////////////////////////////////////////////////
 
     public Node getNode(Node base, String xpath) throws ProviderInvocationException {
         try {
-            return XPathAPI.selectSingleNode(base, xpath);
+            return eval(base, xpath).nodeset().nextNode();
         } catch (TransformerException e) {
             throw new ProviderInvocationException(e);
         }
@@ -33,15 +46,39 @@ public class XalanXPathProvider implements XPathProvider {
 
     public NodeList getNodes(Node base, String xpath) throws ProviderInvocationException {
         try {
-            return XPathAPI.selectNodeList(base, xpath);
+            return eval(base, xpath).nodelist();
         } catch (TransformerException e) {
             throw new ProviderInvocationException(e);
         }
     }
 
     public void destroy() {
+        cache.clear();
     }
 
     public void init() throws ProviderConfigurationException {
     }
+
+    /**
+     * Evaluate <code>xpath</code> with <code>base</code> as both the context node
+     * and the source of namespace prefixes, as <code>XPathAPI.eval(Node, String)</code> does.
+     */
+    private XObject eval(Node base, String xpath) throws TransformerException {
+        PrefixResolver prefixResolver = new PrefixResolverDefault((base.getNodeType() == Node.DOCUMENT_NODE) ? ((Document) base).getDocumentElement() : base);
+        boolean cacheable = XPathCache.isCacheable(xpath);
+        XPath compiled = cacheable ? (XPath) cache.get(xpath) : null;
+
+        if (compiled == null) {
+            compiled = new XPath(xpath, null, prefixResolver, XPath.SELECT, null);
+
+            if (cacheable) {
+                cache.put(xpath, compiled);
+            }
+        }
+
+        // compiled expressions are shared, but each evaluation needs its own context
+        XPathContext context = new XPathContext();
+
+        return compiled.execute(context, context.getDTMHandleFromNode(base), prefixResolver);
+    }
 }
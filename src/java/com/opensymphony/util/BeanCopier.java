@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.util;
+
+import com.opensymphony.provider.BeanProvider;
+import com.opensymphony.provider.PropertyPath;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+
+/**
+ * Copies the properties of one bean or Map to another, as planned once for a
+ * source class, target class and set of allowed properties. The properties to
+ * copy are found and their paths parsed when the copier is made, so copying
+ * is only a matter of reading and writing through {@link PropertyPath}s.
+ *
+ * <p>Copiers are immutable and may be shared between threads. A copier planned
+ * before the bean.provider was replaced is planned again on its next use. The
+ * same ones are behind {@link BeanUtils#setValues(Object, Object, String[])},
+ * {@link BeanUtils#setValues(Object, Map, String[])} and
+ * {@link BeanUtils#getValues(Object, String[])}.</p>
+ *
+ * <pre>
+ * BeanCopier copier = BeanCopier.getInstance(Person.class, PersonForm.class, null);
+ * copier.copy(person, form);
+ * </pre>
+ *
+ * @version $Revision$
+ */
+public class BeanCopier {
+    //~ Static fields/initializers /////////////////////////////////////////////
+
+    /**
+     * Copiers by source class (Map for Map sources), softly held maps of them by
+     * CopierKey.
+     */
+    private static final Map copiers = new WeakHashMap();
+
+    //~ Instance fields ////////////////////////////////////////////////////////
+
+    /**
+     * The bean.provider the paths were compiled with.
+     */
+    private BeanProvider provider;
+
+    /**
+     * Writers by property name, when copying from a Map to a bean.
+     */
+    private Map targetWriters;
+
+    /**
+     * Names of the properties allowed, or null if all are.
+     */
+    private Set allowed;
+
+    /**
+     * Readers of the allowed properties of the source, or null if it is a Map.
+     */
+    private PropertyPath[] readers;
+
+    /**
+     * Writers for the properties read, or null if the target is a Map.
+     */
+    private PropertyPath[] writers;
+    private String[] names;
+
+    //~ Constructors ///////////////////////////////////////////////////////////
+
+    private BeanCopier(Class source, Class target, Set allowed) {
+        this.allowed = allowed;
+
+        // taken before compiling, so a provider replaced meanwhile makes the copier stale
+        provider = BeanUtils.getBeanProvider();
+
+        if (source != null) {
+            List found = new ArrayList();
+            PropertyDescriptor[] properties = getProperties(source);
+
+            for (int i = 0; i < properties.length; i++) {
+                if ((properties[i].getReadMethod() != null) && isAllowed(properties[i].getName())) {
+                    found.add(properties[i].getName());
+                }
+            }
+
+            names = (String[]) found.toArray(new String[found.size()]);
+            readers = compile(names);
+
+            if (target != null) {
+                writers = compile(names);
+            }
+        } else if (target != null) {
+            // only the target's own properties are kept, as the keys of a Map may be anything
+            targetWriters = new HashMap();
+
+            PropertyDescriptor[] properties = getProperties(target);
+
+            for (int i = 0; i < properties.length; i++) {
+                String name = properties[i].getName();
+
+                if ((properties[i].getWriteMethod() != null) && isAllowed(name)) {
+                    targetWriters.put(name, BeanUtils.compilePath(name));
+                }
+            }
+        }
+    }
+
+    //~ Methods ////////////////////////////////////////////////////////////////
+
+    /**
+     * Get the copier for the given classes and allowed properties, planning it
+     * if it hasn't been used before.
+     *
+     * @param source Class of the beans to copy from, or null to copy from Maps of
+     *        property-name (String) / property-value (Object) pairs.
+     * @param target Class of the beans to copy to, or null to copy into Maps.
+     * @param allowedProperties If array is NOT null, only the properties matching
+     *        names passed here shall be copied.
+     */
+    public static BeanCopier getInstance(Class source, Class target, String[] allowedProperties) {
+        Class cacheClass = (source == null) ? Map.class : source;
+        List allowedList = (allowedProperties == null) ? null : Arrays.asList(allowedProperties);
+        Map forSource;
+
+        synchronized (copiers) {
+            Reference ref = (Reference) copiers.get(cacheClass);
+            forSource = (ref == null) ? null : (Map) ref.get();
+
+            if (forSource == null) {
+                forSource = new HashMap();
+                copiers.put(cacheClass, new SoftReference(forSource));
+            }
+
+            BeanCopier copier = (BeanCopier) forSource.get(new CopierKey(target, allowedList));
+
+            if ((copier != null) && (copier.provider == BeanUtils.getBeanProvider())) {
+                return copier;
+            }
+        }
+
+        // copy the names, as the caller may change the array later
+        Set allowed = (allowedProperties == null) ? null : new HashSet(allowedList);
+        BeanCopier copier = new BeanCopier(source, target, allowed);
+
+        synchronized (copiers) {
+            forSource.put(new CopierKey(target, (allowed == null) ? null : new ArrayList(allowedList)), copier);
+        }
+
+        return copier;
+    }
+
+    /**
+     * Whether the copier copies the given property.
+     */
+    public boolean isAllowed(String property) {
+        return (allowed == null) || ((property != null) && allowed.contains(property));
+    }
+
+    /**
+     * Copy properties from one object to another. Properties the source has but
+     * the target can't take are ignored, as are null values read from a bean.
+     *
+     * @param src Bean, or Map of property-name / property-value pairs, to copy from.
+     * @param target Bean, or Map, to copy to.
+     */
+    public void copy(Object src, Object target) {
+        if (readers == null) {
+            copyMap((Map) src, target);
+
+            return;
+        }
+
+        for (int i = 0; i < readers.length; i++) {
+            Object value = readers[i].getValue(src);
+
+            if (value == null) {
+                continue;
+            }
+
+            if (writers == null) {
+                ((Map) target).put(names[i], value);
+            } else {
+                writers[i].setValue(target, value);
+            }
+        }
+    }
+
+    private static PropertyDescriptor[] getProperties(Class c) {
+        try {
+            return Introspector.getBeanInfo(c).getPropertyDescriptors();
+        } catch (IntrospectionException e) {
+            return new PropertyDescriptor[0];
+        }
+    }
+
+    private static PropertyPath[] compile(String[] names) {
+        PropertyPath[] paths = new PropertyPath[names.length];
+
+        for (int i = 0; i < names.length; i++) {
+            paths[i] = BeanUtils.compilePath(names[i]);
+        }
+
+        return paths;
+    }
+
+    private void copyMap(Map src, Object target) {
+        Iterator entries = src.entrySet().iterator();
+
+        while (entries.hasNext()) {
+            Map.Entry entry = (Map.Entry) entries.next();
+            String property = entry.getKey().toString();
+
+            if (!isAllowed(property)) {
+                continue;
+            }
+
+            if (targetWriters == null) {
+                ((Map) target).put(property, entry.getValue());
+            } else {
+                PropertyPath writer = (PropertyPath) targetWriters.get(property);
+
+                if (writer != null) {
+                    writer.setValue(target, entry.getValue());
+                } else {
+                    // a nested path perhaps, left to the bean.provider
+                    BeanUtils.setValue(target, property, entry.getValue());
+                }
+            }
+        }
+    }
+
+    //~ Inner Classes //////////////////////////////////////////////////////////
+
+    /**
+     * Target class and allowed property names of a copier.
+     */
+    private static class CopierKey {
+        private Class target;
+        private List allowed;
+
+        CopierKey(Class target, List allowed) {
+            this.target = target;
+            this.allowed = allowed;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof CopierKey)) {
+                return false;
+            }
+
+            CopierKey key = (CopierKey) o;
+
+            return (target == key.target) && ((allowed == null) ? (key.allowed == null) : allowed.equals(key.allowed));
+        }
+
+        public int hashCode() {
+            return ((target == null) ? 0 : target.hashCode()) + ((allowed == null) ? 0 : allowed.hashCode());
+        }
+    }
+}
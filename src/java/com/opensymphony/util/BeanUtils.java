@@ -5,6 +5,8 @@
 package com.opensymphony.util;
 
 import com.opensymphony.provider.BeanProvider;
+import com.opensymphony.provider.PropertyPath;
+import com.opensymphony.provider.PropertyPathProvider;
 import com.opensymphony.provider.ProviderFactory;
 
 /* ====================================================================
@@ -77,12 +79,12 @@ import javax.servlet.ServletRequest;
 public class BeanUtils {
     //~ Static fields/initializers /////////////////////////////////////////////
 
-    private static final BeanProvider beanProvider;
+    private static final ProviderFactory.Registration beanProvider;
 
     static {
         ProviderFactory factory = ProviderFactory.getInstance();
         providerModify();
-        beanProvider = (BeanProvider) factory.getProvider("bean.provider", com.opensymphony.provider.bean.DefaultBeanProvider.class.getName());
+        beanProvider = factory.getRegistration("bean.provider", com.opensymphony.provider.bean.DefaultBeanProvider.class.getName(), BeanProvider.class);
     }
 
     //~ Methods ////////////////////////////////////////////////////////////////
@@ -118,7 +120,7 @@ public class BeanUtils {
      * @return Boolean indicating success.
      */
     public final static boolean setValue(Object obj, String property, Object value) {
-        return beanProvider.setProperty(obj, property, value);
+        return getBeanProvider().setProperty(obj, property, value);
     }
 
     /**
@@ -129,7 +131,25 @@ public class BeanUtils {
      * @return Value of property. If property was not found, null is returned.
      */
     public final static Object getValue(Object obj, String property) {
-        return beanProvider.getProperty(obj, property);
+        return getBeanProvider().getProperty(obj, property);
+    }
+
+    /**
+     * Parse a property expression once, for use on any number of beans. Where the
+     * bean.provider can't parse ahead of time, the path hands the expression to it
+     * on each use.
+     *
+     * @param property Name of property, as passed to getValue() and setValue().
+     * @return Immutable path that may be shared between threads.
+     */
+    public final static PropertyPath compilePath(String property) {
+        BeanProvider provider = getBeanProvider();
+
+        if (provider instanceof PropertyPathProvider) {
+            return ((PropertyPathProvider) provider).compilePath(property);
+        }
+
+        return new ProviderPropertyPath(property);
     }
 
     /**
@@ -143,16 +163,11 @@ public class BeanUtils {
      *        passed here shall be set.
      */
     public final static void setValues(Object obj, Map valueMap, String[] allowedProperties) {
-        Iterator keys = valueMap.keySet().iterator();
-
-        while (keys.hasNext()) {
-            String property = keys.next().toString();
-            Object value = valueMap.get(property);
-
-            if (allowed(property, allowedProperties)) {
-                setValue(obj, property, value);
-            }
+        if ((obj == null) || (valueMap == null)) {
+            return;
         }
+
+        BeanCopier.getInstance(null, obj.getClass(), allowedProperties).copy(valueMap, obj);
     }
 
     /**
@@ -166,13 +181,18 @@ public class BeanUtils {
      *        passed here shall be set.
      */
     public final static void setValues(Object obj, Object src, String[] allowedProperties) {
-        setValues(obj, getValues(src, allowedProperties), allowedProperties);
+        if ((obj == null) || (src == null)) {
+            return;
+        }
+
+        BeanCopier.getInstance(src.getClass(), obj.getClass(), allowedProperties).copy(src, obj);
     }
 
     /**
      * Set multiple properties of a bean at once using the params passed across
      * from the ServletRequest (useful for mapping HTML forms to beans). Any properties
-     * not known shall be ignored.
+     * not known shall be ignored. Values are converted to the types of the properties
+     * as described in {@link RequestBinder}.
      *
      * @param obj The object to be manipulated.
      * @param request ServletRequest to get params from.
@@ -180,16 +200,11 @@ public class BeanUtils {
      *        passed here shall be set.
      */
     public final static void setValues(Object obj, ServletRequest request, String[] allowedProperties) {
-        Map params = new HashMap();
-        Enumeration paramNames = request.getParameterNames();
-
-        while (paramNames.hasMoreElements()) {
-            String paramName = (String) paramNames.nextElement();
-            String paramValue = request.getParameter(paramName);
-            params.put(paramName, paramValue);
+        if ((obj == null) || (request == null)) {
+            return;
         }
 
-        setValues(obj, params, allowedProperties);
+        RequestBinder.getInstance(obj.getClass(), allowedProperties).bind(request, obj);
     }
 
     /**
@@ -202,42 +217,16 @@ public class BeanUtils {
      */
     public final static Map getValues(Object obj, String[] allowedProperties) {
         Map result = new HashMap();
-        String[] propertyNames = getPropertyNames(obj);
-
-        for (int i = 0; i < propertyNames.length; i++) {
-            String propertyName = propertyNames[i];
-            Object propertyValue = getValue(obj, propertyName);
-
-            if ((propertyName == null) || (propertyValue == null)) {
-                continue;
-            }
-
-            if (allowed(propertyName, allowedProperties)) {
-                result.put(propertyName, propertyValue);
-            }
-        }
+        BeanCopier.getInstance(obj.getClass(), null, allowedProperties).copy(obj, result);
 
         return result;
     }
 
-    private final static boolean allowed(String string, String[] array) {
-        if (array == null) {
-            return true;
-        }
-
-        if (string == null) {
-            return false;
-        }
-
-        synchronized (array) {
-            for (int i = 0; i < array.length; i++) {
-                if (string.equals(array[i])) {
-                    return true;
-                }
-            }
-        }
-
-        return false;
+    /**
+     * The current bean.provider, which may be replaced while running.
+     */
+    final static BeanProvider getBeanProvider() {
+        return (BeanProvider) beanProvider.getProvider();
     }
 
     /**
@@ -249,10 +238,36 @@ public class BeanUtils {
             Map providerAliases = new HashMap();
             providerAliases.put("default", "com.opensymphony.provider.bean.DefaultBeanProvider");
             providerAliases.put("ognl", "com.opensymphony.provider.bean.OGNLBeanProvider");
+            providerAliases.put("generated", "com.opensymphony.provider.bean.GeneratedBeanProvider");
 
             if ((System.getProperty("bean.provider") != null) && providerAliases.containsKey(System.getProperty("bean.provider"))) {
                 System.setProperty("bean.provider", (String) providerAliases.get(System.getProperty("bean.provider")));
             }
         }
     }
+
+    //~ Inner Classes //////////////////////////////////////////////////////////
+
+    /**
+     * Path for a provider that can't parse ahead of time.
+     */
+    private static class ProviderPropertyPath implements PropertyPath {
+        private String property;
+
+        ProviderPropertyPath(String property) {
+            this.property = property;
+        }
+
+        public boolean setValue(Object object, Object value) {
+            return getBeanProvider().setProperty(object, property, value);
+        }
+
+        public Object getValue(Object object) {
+            return getBeanProvider().getProperty(object, property);
+        }
+
+        public String toString() {
+            return property;
+        }
+    }
 }
@@ -55,6 +55,11 @@ package com.opensymphony.util;
  * SUCH DAMAGE.
  * ====================================================================
  */
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
 import java.sql.Time;
 import java.sql.Timestamp;
 
@@ -65,7 +70,14 @@ import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 
 /**
@@ -172,6 +184,7 @@ public class DateUtil {
     private static final int JAN_1_1_JULIAN_DAY = 1721426; // January 1, year 1 (Gregorian)
     private static final int EPOCH_JULIAN_DAY = 2440588; // Jaunary 1, 1970 (Gregorian)
     private static final int EPOCH_YEAR = 1970;
+    private static final double EPOCH_JULIAN_DATE = 2440587.5; // midnight GMT, January 1, 1970
 
     // Useful millisecond constants.  Although ONE_DAY and ONE_WEEK can fit
     // into ints, they must be longs in order to prevent arithmetic overflow
@@ -182,15 +195,59 @@ public class DateUtil {
     private static final long ONE_DAY = 24 * ONE_HOUR;
     private static final long ONE_WEEK = 7 * ONE_DAY;
 
+    /**
+     * All ISO dates are written and read in GMT.
+     */
+    private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+
+    /**
+     * Dates before the switch to the Gregorian calendar are formatted in the Julian calendar,
+     * so they are left to <code>SimpleDateFormat</code>.
+     */
+    private static final long GREGORIAN_CUTOVER = new GregorianCalendar().getGregorianChange().getTime();
+
+    /**
+     * The first day, counted from the epoch, whose year doesn't fit in four digits.
+     */
+    private static final long YEAR_10000_DAY = daysFromCivil(10000, 1, 1);
+
+    /**
+     * SimpleDateFormat isn't thread safe, so each thread keeps its own formatter per pattern.
+     */
+    private static final ThreadLocal formatters = new ThreadLocal() {
+        protected Object initialValue() {
+            return new HashMap();
+        }
+    };
+    private static final String ZONE;
+
     static {
         // override the timezone strings
         foo = new String[0][];
         dateFormatSymbles = new DateFormatSymbols();
         dateFormatSymbles.setZoneStrings(foo);
+
+        // what zzz turns into for GMT, which depends on the JDK
+        ZONE = getFormatter(false, true, false).format(new Date(0)).substring(9);
     }
 
     //~ Methods ////////////////////////////////////////////////////////////////
 
+    /**
+     * Whether <code>year</code> is a leap year, following the rules GregorianCalendar
+     * uses by default: Julian before 1583, Gregorian after.
+     *
+     * @param year the year
+     * @return true if is leap year
+     */
+    public static final boolean isLeapYear(int year) {
+        if ((year & 3) != 0) {
+            return false;
+        }
+
+        return (year <= 1582) || ((year % 100) != 0) || ((year % 400) == 0);
+    }
+
     /**
      *
      * @param isoString
@@ -216,24 +273,25 @@ public class DateUtil {
     }
 
     public static final TimeZone getTimeZoneFromDateTime(String date, boolean expanded) throws ParseException {
-        SimpleDateFormat formatter;
-
-        if (expanded) {
-            formatter = new SimpleDateFormat(ISO_EXPANDED_DATE_FORMAT, dateFormatSymbles);
-        } else {
-            formatter = new SimpleDateFormat(ISO_DATE_FORMAT, dateFormatSymbles);
-        }
-
-        formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
-        formatter.parse(date);
+        parseISO(date, true, false, expanded);
 
-        return formatter.getTimeZone();
+        return (TimeZone) GMT.clone();
     }
 
     public static final TimeZone getTimeZoneFromDateTime(String date) throws ParseException {
         return getTimeZoneFromDateTime(date, false);
     }
 
+    /**
+     * The length of each record written by {@link #timestampsToISO(long[], boolean, char[], int)}.
+     *
+     * @param expanded use formating char's
+     * @return the number of characters in an ISO date/time
+     */
+    public static final int getISOTimestampLength(boolean expanded) {
+        return (expanded ? 23 : 18) + ZONE.length();
+    }
+
     /**
      * Date Arithmetic function.
      * Adds the specified (signed) amount of time to the given time field,
@@ -247,7 +305,7 @@ public class DateUtil {
      * @throws ParseException
      */
     public static final String add(String isoString, int field, int amount, boolean expanded) throws ParseException {
-        Calendar cal = GregorianCalendar.getInstance(TimeZone.getTimeZone("GMT"));
+        Calendar cal = GregorianCalendar.getInstance(GMT);
         cal.setTime(isoToDate(isoString, expanded));
         cal.add(field, amount);
 
@@ -278,17 +336,7 @@ public class DateUtil {
      * @return ISO date String
      */
     public static final String dateToISO(Date date, boolean expanded) {
-        SimpleDateFormat formatter;
-
-        if (expanded) {
-            formatter = new SimpleDateFormat(ISO_EXPANDED_DATE_FORMAT, dateFormatSymbles);
-        } else {
-            formatter = new SimpleDateFormat(ISO_DATE_FORMAT, dateFormatSymbles);
-        }
-
-        formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
-
-        return formatter.format(date);
+        return formatISO(date, true, false, expanded);
     }
 
     /**
@@ -320,7 +368,7 @@ public class DateUtil {
      * @param early the "first date"
      * @param late the "second date"
      * @return the days between the two dates
-         * @deprecated
+         * @deprecated use {@link #daysBetween(long, long)}
      */
     public static final int daysBetween(Date early, Date late) {
         Calendar c1 = Calendar.getInstance();
@@ -339,7 +387,7 @@ public class DateUtil {
      * @param early
      * @param late
      * @return the days between two dates.
-         * @deprecated
+         * @deprecated use {@link #daysBetween(long, long)}
      */
     public static final int daysBetween(Calendar early, Calendar late) {
         return (int) (toJulian(late) - toJulian(early));
@@ -355,14 +403,35 @@ public class DateUtil {
     * @return the days between the two dates
     */
     public static final long daysBetween(String isoEarly, String isoLate, boolean expanded) throws ParseException {
-        Calendar c1 = Calendar.getInstance();
-        Calendar c2 = Calendar.getInstance();
-        c1.setTimeZone(getTimeZoneFromDateTime(isoEarly, expanded));
-        c1.setTime(isoToDate(isoEarly, expanded));
-        c2.setTimeZone(getTimeZoneFromDateTime(isoLate, expanded));
-        c2.setTime(isoToDate(isoLate, expanded));
+        long early = parseISO(isoEarly, true, false, expanded);
+        long late = parseISO(isoLate, true, false, expanded);
 
-        return millisToJulianDay(c2.getTime().getTime()) - millisToJulianDay(c1.getTime().getTime());
+        return millisToJulianDay(late) - millisToJulianDay(early);
+    }
+
+    /**
+     * Returns the number of midnights (GMT) between two times. Positive values
+     * indicate that the second time is after the first.
+     *
+     * @param early the "first" time in milliseconds
+     * @param late the "second" time in milliseconds
+     * @return the days between the two times
+     */
+    public static final long daysBetween(long early, long late) {
+        return floorDivide(late, ONE_DAY) - floorDivide(early, ONE_DAY);
+    }
+
+    /**
+     * Batch version of {@link #daysBetween(long, long)}.
+     *
+     * @param early the "first" times in milliseconds
+     * @param late the "second" times in milliseconds, at least as many as <code>early</code>
+     * @param days receives the days between each pair, at least as many as <code>early</code>
+     */
+    public static final void daysBetween(long[] early, long[] late, long[] days) {
+        for (int i = 0; i < early.length; i++) {
+            days[i] = floorDivide(late[i], ONE_DAY) - floorDivide(early[i], ONE_DAY);
+        }
     }
 
     /**
@@ -375,17 +444,7 @@ public class DateUtil {
      * @throws java.text.ParseException
      */
     public static final Date isoToDate(String dateString, boolean expanded) throws ParseException {
-        SimpleDateFormat formatter;
-
-        if (expanded) {
-            formatter = new SimpleDateFormat(ISO_EXPANDED_DATE_FORMAT, dateFormatSymbles);
-        } else {
-            formatter = new SimpleDateFormat(ISO_DATE_FORMAT, dateFormatSymbles);
-        }
-
-        formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
-
-        return new Date(formatter.parse(dateString).getTime());
+        return new Date(parseISO(dateString, true, false, expanded));
     }
 
     /**
@@ -408,17 +467,7 @@ public class DateUtil {
      * @throws java.text.ParseException
      */
     public static final java.sql.Date isoToSQLDate(String dateString, boolean expanded) throws ParseException {
-        SimpleDateFormat formatter;
-
-        if (expanded) {
-            formatter = new SimpleDateFormat(ISO_EXPANDED_DATE_FORMAT, dateFormatSymbles);
-        } else {
-            formatter = new SimpleDateFormat(ISO_DATE_FORMAT, dateFormatSymbles);
-        }
-
-        formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
-
-        return new java.sql.Date(formatter.parse(dateString).getTime());
+        return new java.sql.Date(parseISO(dateString, true, false, expanded));
     }
 
     /**
@@ -440,17 +489,7 @@ public class DateUtil {
      * @throws java.text.ParseException
      */
     public static final Time isoToTime(String dateString, boolean expanded) throws ParseException {
-        SimpleDateFormat formatter;
-
-        if (expanded) {
-            formatter = new SimpleDateFormat(ISO_EXPANDED_TIME_FORMAT, dateFormatSymbles);
-        } else {
-            formatter = new SimpleDateFormat(ISO_TIME_FORMAT, dateFormatSymbles);
-        }
-
-        formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
-
-        return new Time(formatter.parse(dateString).getTime());
+        return new Time(parseISO(dateString, false, true, expanded));
     }
 
     /**
@@ -472,17 +511,7 @@ public class DateUtil {
      * @throws java.text.ParseException
      */
     public static final Timestamp isoToTimestamp(String dateString, boolean expanded) throws ParseException {
-        SimpleDateFormat formatter;
-
-        if (expanded) {
-            formatter = new SimpleDateFormat(ISO_EXPANDED_DATE_TIME_FORMAT, dateFormatSymbles);
-        } else {
-            formatter = new SimpleDateFormat(ISO_DATE_TIME_FORMAT, dateFormatSymbles);
-        }
-
-        formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
-
-        return new Timestamp(formatter.parse(dateString).getTime());
+        return new Timestamp(parseISO(dateString, true, true, expanded));
     }
 
     /**
@@ -496,6 +525,42 @@ public class DateUtil {
         return isoToTimestamp(dateString, false);
     }
 
+    /**
+     * Read a column of ISO date/time records, as written by
+     * {@link #timestampsToISO(long[], boolean, char[], int)}, into an array of times.
+     * Each record is parsed exactly as {@link #isoToTimestamp(String, boolean)} would.
+     *
+     * @param in the records
+     * @param offset where the first record starts in <code>in</code>
+     * @param expanded use formating charaters
+     * @param millis receives the times in milliseconds, one per record
+     * @throws ParseException if a record can't be parsed; the error offset is relative to <code>offset</code>
+     */
+    public static final void isoToTimestamps(char[] in, int offset, boolean expanded, long[] millis) throws ParseException {
+        checkRange(offset, millis.length * getISOTimestampLength(expanded), in.length);
+        new ISOColumn(millis, in, null, offset, expanded, true).execute();
+    }
+
+    /**
+     * As {@link #isoToTimestamps(char[], int, boolean, long[])}, reading one ASCII byte per
+     * character from the buffer's position, which is advanced past the last record.
+     *
+     * @param in the records
+     * @param expanded use formating charaters
+     * @param millis receives the times in milliseconds, one per record
+     * @throws ParseException if a record can't be parsed; the error offset is relative to the buffer's position
+     */
+    public static final void isoToTimestamps(ByteBuffer in, boolean expanded, long[] millis) throws ParseException {
+        int length = millis.length * getISOTimestampLength(expanded);
+
+        if (in.remaining() < length) {
+            throw new BufferUnderflowException();
+        }
+
+        new ISOColumn(millis, null, in, in.position(), expanded, true).execute();
+        in.position(in.position() + length);
+    }
+
     /**
      * Convert a julian day count to a java sql Date @ midnight
      *
@@ -537,6 +602,18 @@ public class DateUtil {
         return EPOCH_JULIAN_DAY - JAN_1_1_JULIAN_DAY + (millis / ONE_DAY);
     }
 
+    /**
+     * Batch version of {@link #millisToJulianDay(long)}.
+     *
+     * @param millis the times in milliseconds
+     * @param julian receives the Julian day numbers, at least as many as <code>millis</code>
+     */
+    public static final void millisToJulianDay(long[] millis, long[] julian) {
+        for (int i = 0; i < millis.length; i++) {
+            julian[i] = (EPOCH_JULIAN_DAY - JAN_1_1_JULIAN_DAY) + (millis[i] / ONE_DAY);
+        }
+    }
+
     /**
      * Time Field Rolling function.
      * Rolls (up/down) a single unit of time on the given time field.
@@ -548,7 +625,7 @@ public class DateUtil {
      * @exception ParseException if an unknown field value is given.
      */
     public static final String roll(String isoString, int field, boolean up, boolean expanded) throws ParseException {
-        Calendar cal = GregorianCalendar.getInstance(getTimeZoneFromDateTime(isoString, expanded));
+        Calendar cal = GregorianCalendar.getInstance(GMT);
         cal.setTime(isoToDate(isoString, expanded));
         cal.roll(field, up);
 
@@ -575,17 +652,7 @@ public class DateUtil {
      * @return ISO Time String
      */
     public static final String timeToISO(Time date, boolean expanded) {
-        SimpleDateFormat formatter;
-
-        if (expanded) {
-            formatter = new SimpleDateFormat(ISO_EXPANDED_TIME_FORMAT, dateFormatSymbles);
-        } else {
-            formatter = new SimpleDateFormat(ISO_TIME_FORMAT, dateFormatSymbles);
-        }
-
-        formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
-
-        return formatter.format(date);
+        return formatISO(date, false, true, expanded);
     }
 
     /**
@@ -605,17 +672,7 @@ public class DateUtil {
      * @return ISO Date Time String
      */
     public static final String timestampToISO(Timestamp date, boolean expanded) {
-        SimpleDateFormat formatter;
-
-        if (expanded) {
-            formatter = new SimpleDateFormat(ISO_EXPANDED_DATE_TIME_FORMAT, dateFormatSymbles);
-        } else {
-            formatter = new SimpleDateFormat(ISO_DATE_TIME_FORMAT, dateFormatSymbles);
-        }
-
-        formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
-
-        return formatter.format(date);
+        return formatISO(date, true, true, expanded);
     }
 
     /**
@@ -628,6 +685,52 @@ public class DateUtil {
         return timestampToISO(date, false);
     }
 
+    /**
+     * Write many ISO date/time Strings at once, as a column of fixed length records of
+     * {@link #getISOTimestampLength(boolean)} characters each, with nothing in between.
+     * Large arrays are split between the available processors.
+     *
+     * @param millis the times in milliseconds
+     * @param expanded use formating char's
+     * @param out receives the records
+     * @param offset where the first record starts in <code>out</code>
+     * @throws IllegalArgumentException if a year doesn't fit in four digits
+     */
+    public static final void timestampsToISO(long[] millis, boolean expanded, char[] out, int offset) {
+        checkRange(offset, millis.length * getISOTimestampLength(expanded), out.length);
+
+        try {
+            new ISOColumn(millis, out, null, offset, expanded, false).execute();
+        } catch (ParseException e) {
+            // only parsing throws this
+        }
+    }
+
+    /**
+     * As {@link #timestampsToISO(long[], boolean, char[], int)}, writing one ASCII byte per
+     * character from the buffer's position, which is advanced past the last record.
+     *
+     * @param millis the times in milliseconds
+     * @param expanded use formating char's
+     * @param out receives the records
+     * @throws IllegalArgumentException if a year doesn't fit in four digits
+     */
+    public static final void timestampsToISO(long[] millis, boolean expanded, ByteBuffer out) {
+        int length = millis.length * getISOTimestampLength(expanded);
+
+        if (out.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+
+        try {
+            new ISOColumn(millis, null, out, out.position(), expanded, false).execute();
+        } catch (ParseException e) {
+            // only parsing throws this
+        }
+
+        out.position(out.position() + length);
+    }
+
     /**
      * Returns the Date from a julian. The Julian date will be converted to noon GMT,
          * such that it matches the nearest half-integer (i.e., a julian date of 1.4 gets
@@ -635,7 +738,7 @@ public class DateUtil {
      *
      * @param JD the Julian date
      * @return the Gregorian date
-     * @deprecated
+     * @deprecated use {@link #toMillis(double)}
      */
     public static final Date toDate(float JD) {
         /* To convert a Julian Day Number to a Gregorian date, assume that it is for 0 hours, Greenwich time (so
@@ -674,6 +777,17 @@ public class DateUtil {
         return c.getTime();
     }
 
+    /**
+     * Converts a Julian date to time as milliseconds, the inverse of {@link #toJulian(long)}.
+     * Unlike {@link #toDate(float)} this keeps the time of day and has millisecond precision.
+     *
+     * @param JD the Julian date
+     * @return time as milliseconds
+     */
+    public static final long toMillis(double JD) {
+        return Math.round((JD - EPOCH_JULIAN_DATE) * ONE_DAY);
+    }
+
     /**
      * Return a Julian date based on the input parameter. This is
      * based from calculations found at
@@ -711,6 +825,30 @@ public class DateUtil {
         return toJulian(c);
     }
 
+    /**
+     * Return the Julian date of an instant: the days, including the fraction, since
+     * noon GMT on January 1, 4713 BC (Julian calendar). Unlike {@link #toJulian(Calendar)}
+     * this is exact for modern dates and needs no Calendar.
+     *
+     * @param millis time as milliseconds
+     * @return the julian date
+     */
+    public static final double toJulian(long millis) {
+        return EPOCH_JULIAN_DATE + ((double) millis / ONE_DAY);
+    }
+
+    /**
+     * Batch version of {@link #toJulian(long)}.
+     *
+     * @param millis the times in milliseconds
+     * @param JD receives the Julian dates, at least as many as <code>millis</code>
+     */
+    public static final void toJulian(long[] millis, double[] JD) {
+        for (int i = 0; i < millis.length; i++) {
+            JD[i] = EPOCH_JULIAN_DATE + ((double) millis[i] / ONE_DAY);
+        }
+    }
+
     protected static final float normalizedJulian(float JD) {
         float f = Math.round(JD + 0.5f) - 0.5f;
 
@@ -732,4 +870,438 @@ public class DateUtil {
         // a numerator of Long.MIN_VALUE correctly
         return (numerator >= 0) ? (numerator / denominator) : (((numerator + 1) / denominator) - 1);
     }
+
+    private static final void checkRange(int offset, int length, int size) {
+        if ((offset < 0) || (length > (size - offset))) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", size " + size);
+        }
+    }
+
+    /**
+     * The number of days from the epoch to the given proleptic Gregorian date.
+     */
+    private static final long daysFromCivil(int year, int month, int day) {
+        long y = (month <= 2) ? (year - 1) : year;
+        long era = floorDivide(y, 400);
+        long yearOfEra = y - (era * 400);
+        long dayOfYear = ((((153 * (month + ((month > 2) ? (-3) : 9))) + 2) / 5) + day) - 1;
+        long dayOfEra = (((yearOfEra * 365) + (yearOfEra / 4)) - (yearOfEra / 100)) + dayOfYear;
+
+        return ((era * 146097) + dayOfEra) - 719468;
+    }
+
+    /**
+     * Format a date with the ISO pattern for the given parts, writing the
+     * digits by hand where the result is known to match <code>SimpleDateFormat</code>.
+     */
+    private static final String formatISO(Date date, boolean datePart, boolean timePart, boolean expanded) {
+        char[] buf = new char[(expanded ? 23 : 18) + ZONE.length()];
+        int end = formatISO(date.getTime(), datePart, timePart, expanded, buf, 0);
+
+        if (end < 0) {
+            return getFormatter(datePart, timePart, expanded).format(date);
+        }
+
+        return new String(buf, 0, end);
+    }
+
+    /**
+     * Write the ISO text for <code>millis</code> into <code>out</code> at <code>pos</code>.
+     *
+     * @return the index after the last character written, or -1 if this has to be left
+     * to <code>SimpleDateFormat</code>
+     */
+    private static final int formatISO(long millis, boolean datePart, boolean timePart, boolean expanded, char[] out, int pos) {
+        long days = floorDivide(millis, ONE_DAY);
+
+        if (datePart && ((millis < GREGORIAN_CUTOVER) || (days >= YEAR_10000_DAY))) {
+            return -1;
+        }
+
+        if (datePart) {
+            // days since 0000-03-01, so that leap days fall at the end of each year
+            long z = days + 719468;
+            long era = floorDivide(z, 146097);
+            int dayOfEra = (int) (z - (era * 146097));
+            int yearOfEra = (((dayOfEra - (dayOfEra / 1460)) + (dayOfEra / 36524)) - (dayOfEra / 146096)) / 365;
+            int dayOfYear = dayOfEra - (((365 * yearOfEra) + (yearOfEra / 4)) - (yearOfEra / 100));
+            int shiftedMonth = ((5 * dayOfYear) + 2) / 153;
+            int day = (dayOfYear - (((153 * shiftedMonth) + 2) / 5)) + 1;
+            int month = (shiftedMonth < 10) ? (shiftedMonth + 3) : (shiftedMonth - 9);
+            int year = (int) (yearOfEra + (era * 400) + ((month <= 2) ? 1 : 0));
+
+            pos = writeDigits(out, pos, year, 4);
+
+            if (expanded) {
+                out[pos++] = '-';
+            }
+
+            pos = writeDigits(out, pos, month, 2);
+
+            if (expanded) {
+                out[pos++] = '-';
+            }
+
+            pos = writeDigits(out, pos, day, 2);
+        }
+
+        if (datePart && timePart) {
+            out[pos++] = 'T';
+        }
+
+        if (timePart) {
+            int millisOfDay = (int) (millis - (days * ONE_DAY));
+
+            pos = writeDigits(out, pos, millisOfDay / ONE_HOUR, 2);
+
+            if (expanded) {
+                out[pos++] = ':';
+            }
+
+            pos = writeDigits(out, pos, (millisOfDay / ONE_MINUTE) % 60, 2);
+
+            if (expanded) {
+                out[pos++] = ':';
+            }
+
+            pos = writeDigits(out, pos, (millisOfDay / ONE_SECOND) % 60, 2);
+
+            if (expanded) {
+                out[pos++] = ',';
+            }
+
+            pos = writeDigits(out, pos, millisOfDay % ONE_SECOND, 3);
+            ZONE.getChars(0, ZONE.length(), out, pos);
+            pos += ZONE.length();
+        }
+
+        return pos;
+    }
+
+    /**
+     * Parse a date with the ISO pattern for the given parts. Input in exactly the form
+     * {@link #formatISO(Date, boolean, boolean, boolean)} writes is read by hand; anything
+     * else goes to <code>SimpleDateFormat</code>, with all its leniency.
+     *
+     * @return the time in milliseconds
+     */
+    private static final long parseISO(String text, boolean datePart, boolean timePart, boolean expanded) throws ParseException {
+        return parseISO(text, 0, text.length(), datePart, timePart, expanded);
+    }
+
+    /**
+     * Parse the characters of <code>text</code> from <code>start</code> to <code>end</code>
+     * as if they were a String on their own.
+     */
+    private static final long parseISO(CharSequence text, int start, int end, boolean datePart, boolean timePart, boolean expanded) throws ParseException {
+        int pos = start;
+        int year = 1970;
+        int month = 1;
+        int day = 1;
+        int millisOfDay = 0;
+        boolean valid = true;
+
+        if (datePart) {
+            year = parseDigits(text, pos, end, 4);
+            pos += (expanded ? 5 : 4);
+            month = parseDigits(text, pos, end, 2);
+            pos += (expanded ? 3 : 2);
+            day = parseDigits(text, pos, end, 2);
+            pos += 2;
+            valid = (year > 1582) && (month >= 1) && (month <= 12) && (day >= 1) && (day <= 28);
+
+            if (!valid && (year > 1582) && (month >= 1) && (month <= 12) && (day >= 1)) {
+                // check the end of the month the hard way
+                valid = day <= (daysFromCivil((month == 12) ? (year + 1) : year, (month % 12) + 1, 1) - daysFromCivil(year, month, 1));
+            }
+
+            if (expanded) {
+                valid = valid && (text.charAt(start + 4) == '-') && (text.charAt(start + 7) == '-');
+            }
+
+            if (timePart) {
+                valid = valid && (pos < end) && (text.charAt(pos) == 'T');
+                pos++;
+            } else {
+                // the day is read greedily, and anything after it is ignored
+                valid = valid && ((pos == end) || (Character.digit(text.charAt(pos), 10) < 0));
+            }
+        }
+
+        if (valid && timePart) {
+            int timeStart = pos;
+            int hour = parseDigits(text, pos, end, 2);
+            pos += (expanded ? 3 : 2);
+
+            int minute = parseDigits(text, pos, end, 2);
+            pos += (expanded ? 3 : 2);
+
+            int second = parseDigits(text, pos, end, 2);
+            pos += (expanded ? 3 : 2);
+
+            int millis = parseDigits(text, pos, end, 3);
+            pos += 3;
+
+            valid = (hour >= 0) && (hour < 24) && (minute >= 0) && (minute < 60) && (second >= 0) && (second < 60) && (millis >= 0);
+
+            if (expanded) {
+                valid = valid && (text.charAt(timeStart + 2) == ':') && (text.charAt(timeStart + 5) == ':') && (text.charAt(timeStart + 8) == ',');
+            }
+
+            valid = valid && ((end - pos) == ZONE.length());
+
+            for (int i = 0; valid && (i < ZONE.length()); i++) {
+                valid = text.charAt(pos + i) == ZONE.charAt(i);
+            }
+
+            millisOfDay = (hour * ONE_HOUR) + (minute * ONE_MINUTE) + (second * ONE_SECOND) + millis;
+        }
+
+        if (!valid) {
+            return getFormatter(datePart, timePart, expanded).parse(text.subSequence(start, end).toString()).getTime();
+        }
+
+        return (daysFromCivil(year, month, day) * ONE_DAY) + millisOfDay;
+    }
+
+    /**
+     * Read <code>count</code> ASCII digits, or return -1 if there aren't that many.
+     */
+    private static final int parseDigits(CharSequence text, int start, int end, int count) {
+        if ((start + count) > end) {
+            return -1;
+        }
+
+        int value = 0;
+
+        for (int i = start; i < (start + count); i++) {
+            char c = text.charAt(i);
+
+            if ((c < '0') || (c > '9')) {
+                return -1;
+            }
+
+            value = (value * 10) + (c - '0');
+        }
+
+        return value;
+    }
+
+    private static final int writeDigits(char[] out, int pos, int value, int width) {
+        for (int i = (pos + width) - 1; i >= pos; i--) {
+            out[i] = (char) ('0' + (value % 10));
+            value /= 10;
+        }
+
+        return pos + width;
+    }
+
+    /**
+     * The formatter for the ISO pattern with the given parts, cached per thread.
+     */
+    private static final SimpleDateFormat getFormatter(boolean datePart, boolean timePart, boolean expanded) {
+        String pattern;
+
+        if (datePart && timePart) {
+            pattern = expanded ? ISO_EXPANDED_DATE_TIME_FORMAT : ISO_DATE_TIME_FORMAT;
+        } else if (datePart) {
+            pattern = expanded ? ISO_EXPANDED_DATE_FORMAT : ISO_DATE_FORMAT;
+        } else {
+            pattern = expanded ? ISO_EXPANDED_TIME_FORMAT : ISO_TIME_FORMAT;
+        }
+
+        Map cache = (Map) formatters.get();
+        SimpleDateFormat formatter = (SimpleDateFormat) cache.get(pattern);
+
+        if (formatter == null) {
+            formatter = new SimpleDateFormat(pattern, dateFormatSymbles);
+            formatter.setTimeZone(GMT);
+            cache.put(pattern, formatter);
+        }
+
+        return formatter;
+    }
+
+    //~ Inner Classes //////////////////////////////////////////////////////////
+
+    /**
+     * Formats or parses a range of a column of ISO date/time records. The column is
+     * either a <code>char[]</code> or a ByteBuffer holding one ASCII byte per character.
+     */
+    private static class ISOColumn implements Runnable {
+        /**
+         * Below this many records per processor, splitting the work costs more than it saves.
+         */
+        private static final int PARALLEL_THRESHOLD = 8192;
+        private final ByteBuffer bytes;
+        private Exception error;
+        private final boolean expanded;
+        private final boolean parse;
+        private final char[] chars;
+        private final int offset;
+        private final long[] millis;
+        private int from;
+        private int to;
+
+        ISOColumn(long[] millis, char[] chars, ByteBuffer bytes, int offset, boolean expanded, boolean parse) {
+            this.millis = millis;
+            this.chars = chars;
+            this.bytes = bytes;
+            this.offset = offset;
+            this.expanded = expanded;
+            this.parse = parse;
+            this.to = millis.length;
+        }
+
+        public void run() {
+            int length = getISOTimestampLength(expanded);
+            char[] record = new char[length];
+            CharSequence text = (chars != null) ? (CharSequence) CharBuffer.wrap(chars) : new AsciiSequence(bytes);
+            int start = offset + (from * length);
+
+            try {
+                for (int i = from; i < to; i++, start += length) {
+                    if (parse) {
+                        millis[i] = parseISO(text, start, start + length, true, true, expanded);
+                    } else if (chars != null) {
+                        format(millis[i], chars, start);
+                    } else {
+                        format(millis[i], record, 0);
+
+                        for (int j = 0; j < length; j++) {
+                            bytes.put(start + j, (byte) record[j]);
+                        }
+                    }
+                }
+            } catch (ParseException e) {
+                error = new ParseException(e.getMessage(), (start - offset) + e.getErrorOffset());
+            } catch (RuntimeException e) {
+                error = e;
+            }
+        }
+
+        /**
+         * Process the whole column, in parallel if it is large enough.
+         */
+        void execute() throws ParseException {
+            int count = to - from;
+            int threads = Math.min(Runtime.getRuntime().availableProcessors(), count / PARALLEL_THRESHOLD);
+
+            if (threads <= 1) {
+                run();
+                rethrow(error);
+
+                return;
+            }
+
+            ISOColumn[] parts = new ISOColumn[threads];
+            Future[] workers = new Future[threads];
+
+            for (int i = 0; i < threads; i++) {
+                parts[i] = new ISOColumn(millis, chars, bytes, offset, expanded, parse);
+                parts[i].from = from + (int) (((long) count * i) / threads);
+                parts[i].to = from + (int) (((long) count * (i + 1)) / threads);
+
+                if (i > 0) {
+                    workers[i] = Workers.pool.submit(parts[i]);
+                }
+            }
+
+            // the caller takes the first part rather than waiting idle
+            parts[0].run();
+
+            boolean interrupted = false;
+
+            for (int i = 1; i < threads; i++) {
+                while (true) {
+                    try {
+                        workers[i].get();
+
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        // run() keeps exceptions for rethrow, so only an Error gets here
+                        throw (Error) e.getCause();
+                    }
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            for (int i = 0; i < threads; i++) {
+                rethrow(parts[i].error);
+            }
+        }
+
+        private void format(long time, char[] out, int pos) {
+            if (formatISO(time, true, true, expanded, out, pos) < 0) {
+                String text = getFormatter(true, true, expanded).format(new Date(time));
+
+                if (text.length() != getISOTimestampLength(expanded)) {
+                    throw new IllegalArgumentException("Year doesn't fit in four digits: " + text);
+                }
+
+                text.getChars(0, text.length(), out, pos);
+            }
+        }
+
+        private void rethrow(Exception e) throws ParseException {
+            if (e instanceof ParseException) {
+                throw (ParseException) e;
+            } else if (e != null) {
+                throw (RuntimeException) e;
+            }
+        }
+    }
+
+    /**
+     * Daemon threads shared by all large column conversions, one fewer than there are
+     * processors as the calling thread does a part itself. Started on first use.
+     */
+    private static class Workers {
+        static final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "DateUtil worker");
+                        thread.setDaemon(true);
+
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * The bytes of a ByteBuffer as ISO-8859-1 characters, without copying them.
+     */
+    private static class AsciiSequence implements CharSequence {
+        private final ByteBuffer bytes;
+
+        AsciiSequence(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        public char charAt(int index) {
+            return (char) (bytes.get(index) & 0xff);
+        }
+
+        public int length() {
+            return bytes.limit();
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            char[] chars = new char[end - start];
+
+            for (int i = start; i < end; i++) {
+                chars[i - start] = charAt(i);
+            }
+
+            return new String(chars);
+        }
+
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+    }
 }
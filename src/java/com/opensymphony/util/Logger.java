@@ -71,7 +71,8 @@ import java.util.*;
  * <p>The actual logging mechanism used depends on the configured
  * {@see com.opensymphony.provider.LogProvider} - this can be set
  * using the logger.provider system property. If not specified,
- * {@see com.opensymphony.provider.log.DefaultLogProvider} is used.</p>
+ * {@see com.opensymphony.provider.log.DefaultLogProvider} is used. Loggers keep
+ * contexts made by the provider, so it can't be replaced while running.</p>
  *
  * @author <a href="mailto:joe@truemesh.com">Joe Walnes</a>
  * @author <a href="mailto:mcannon@internet.com">Mike Cannon-Brookes</a>
@@ -88,7 +89,7 @@ public class Logger implements java.io.Serializable {
     static {
         ProviderFactory factory = ProviderFactory.getInstance();
         providerModify();
-        logProvider = (LogProvider) factory.getProvider("logger.provider", com.opensymphony.provider.log.DefaultLogProvider.class.getName());
+        logProvider = (LogProvider) factory.getProvider("logger.provider", com.opensymphony.provider.log.DefaultLogProvider.class.getName(), LogProvider.class);
     }
 
     //~ Instance fields ////////////////////////////////////////////////////////
@@ -226,6 +227,7 @@ public class Logger implements java.io.Serializable {
             providerAliases.put("null", "com.opensymphony.provider.log.NullLogProvider");
             providerAliases.put("full", "com.opensymphony.provider.log.FullLogProvider");
             providerAliases.put("log4j", "com.opensymphony.provider.log.Log4JProvider");
+            providerAliases.put("async", "com.opensymphony.provider.log.AsyncLogProvider");
 
             if ((System.getProperty("logger.provider") != null) && providerAliases.containsKey(System.getProperty("logger.provider"))) {
                 System.setProperty("logger.provider", (String) providerAliases.get(System.getProperty("logger.provider")));
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.util;
+
+import com.opensymphony.provider.BeanProvider;
+import com.opensymphony.provider.PropertyPath;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.servlet.ServletRequest;
+
+
+/**
+ * Binds the parameters of a ServletRequest to the properties of a bean, as
+ * planned once for a bean class and set of allowed properties. Parameters
+ * are converted to the type of the property they are bound to, leniently as
+ * by the TextUtils parse methods: numbers that can't be parsed are 0, numbers
+ * too big or small for the property are its largest or smallest value, and
+ * booleans are true for 1, yes or true. This is the same for primitive and
+ * wrapper properties.
+ *
+ * <p>Properties of type String[] get all the values of their parameter, and
+ * properties of other types the first. Blank values set properties of the
+ * number and Boolean wrapper types to null. Parameters that aren't
+ * properties of the bean, such as nested paths, are passed as Strings to
+ * {@link BeanUtils#setValue} if allowed.</p>
+ *
+ * <p>Binders are immutable and may be shared between threads. A binder planned
+ * before the bean.provider was replaced is planned again on its next use.
+ * {@link BeanUtils#setValues(Object, ServletRequest, String[])} uses them.</p>
+ *
+ * @version $Revision$
+ */
+public class RequestBinder {
+    //~ Static fields/initializers /////////////////////////////////////////////
+
+    private static final int OTHER = 0;
+    private static final int STRINGS = 1;
+    private static final int BOOLEAN = 2;
+    private static final int BYTE = 3;
+    private static final int SHORT = 4;
+    private static final int INT = 5;
+    private static final int LONG = 6;
+    private static final int FLOAT = 7;
+    private static final int DOUBLE = 8;
+
+    /**
+     * Conversion by property type.
+     */
+    private static final Map types = new HashMap();
+
+    static {
+        types.put(String[].class, Integer.valueOf(STRINGS));
+        types.put(Boolean.TYPE, Integer.valueOf(BOOLEAN));
+        types.put(Boolean.class, Integer.valueOf(BOOLEAN));
+        types.put(Byte.TYPE, Integer.valueOf(BYTE));
+        types.put(Byte.class, Integer.valueOf(BYTE));
+        types.put(Short.TYPE, Integer.valueOf(SHORT));
+        types.put(Short.class, Integer.valueOf(SHORT));
+        types.put(Integer.TYPE, Integer.valueOf(INT));
+        types.put(Integer.class, Integer.valueOf(INT));
+        types.put(Long.TYPE, Integer.valueOf(LONG));
+        types.put(Long.class, Integer.valueOf(LONG));
+        types.put(Float.TYPE, Integer.valueOf(FLOAT));
+        types.put(Float.class, Integer.valueOf(FLOAT));
+        types.put(Double.TYPE, Integer.valueOf(DOUBLE));
+        types.put(Double.class, Integer.valueOf(DOUBLE));
+    }
+
+    /**
+     * Binders by bean class, softly held maps of them by allowed property names.
+     */
+    private static final Map binders = new WeakHashMap();
+
+    //~ Instance fields ////////////////////////////////////////////////////////
+
+    /**
+     * The bean.provider the paths were compiled with.
+     */
+    private BeanProvider provider;
+
+    /**
+     * Bindings by property name, for the allowed writable properties.
+     */
+    private Map bindings = new HashMap();
+
+    /**
+     * Names of the properties allowed, or null if all are.
+     */
+    private Set allowed;
+
+    //~ Constructors ///////////////////////////////////////////////////////////
+
+    private RequestBinder(Class target, Set allowed) {
+        this.allowed = allowed;
+
+        // taken before compiling, so a provider replaced meanwhile makes the binder stale
+        provider = BeanUtils.getBeanProvider();
+
+        PropertyDescriptor[] properties;
+
+        try {
+            properties = Introspector.getBeanInfo(target).getPropertyDescriptors();
+        } catch (IntrospectionException e) {
+            properties = new PropertyDescriptor[0];
+        }
+
+        for (int i = 0; i < properties.length; i++) {
+            String name = properties[i].getName();
+
+            if ((properties[i].getWriteMethod() != null) && isAllowed(name)) {
+                bindings.put(name, new Binding(BeanUtils.compilePath(name), properties[i].getPropertyType()));
+            }
+        }
+    }
+
+    //~ Methods ////////////////////////////////////////////////////////////////
+
+    /**
+     * Get the binder for the given class and allowed properties, planning it if
+     * it hasn't been used before.
+     *
+     * @param target Class of the beans to bind to.
+     * @param allowedProperties If array is NOT null, only the properties matching
+     *        names passed here shall be set.
+     */
+    public static RequestBinder getInstance(Class target, String[] allowedProperties) {
+        List allowedList = (allowedProperties == null) ? null : Arrays.asList(allowedProperties);
+        Map forTarget;
+
+        synchronized (binders) {
+            Reference ref = (Reference) binders.get(target);
+            forTarget = (ref == null) ? null : (Map) ref.get();
+
+            if (forTarget == null) {
+                forTarget = new HashMap();
+                binders.put(target, new SoftReference(forTarget));
+            }
+
+            RequestBinder binder = (RequestBinder) forTarget.get(allowedList);
+
+            if ((binder != null) && (binder.provider == BeanUtils.getBeanProvider())) {
+                return binder;
+            }
+        }
+
+        // copy the names, as the caller may change the array later
+        Set allowed = (allowedProperties == null) ? null : new HashSet(allowedList);
+        RequestBinder binder = new RequestBinder(target, allowed);
+
+        synchronized (binders) {
+            forTarget.put((allowed == null) ? null : new ArrayList(allowedList), binder);
+        }
+
+        return binder;
+    }
+
+    /**
+     * Whether the binder sets the given property.
+     */
+    public boolean isAllowed(String property) {
+        return (allowed == null) || ((property != null) && allowed.contains(property));
+    }
+
+    /**
+     * Set the allowed properties of the bean from the parameters of the request.
+     */
+    public void bind(ServletRequest request, Object target) {
+        Enumeration names = request.getParameterNames();
+
+        while (names.hasMoreElements()) {
+            String name = (String) names.nextElement();
+
+            if (!isAllowed(name)) {
+                continue;
+            }
+
+            Binding binding = (Binding) bindings.get(name);
+
+            if (binding == null) {
+                BeanUtils.setValue(target, name, request.getParameter(name));
+            } else if (binding.type == STRINGS) {
+                binding.writer.setValue(target, request.getParameterValues(name));
+            } else {
+                binding.writer.setValue(target, binding.convert(request.getParameter(name)));
+            }
+        }
+    }
+
+    //~ Inner Classes //////////////////////////////////////////////////////////
+
+    /**
+     * How a parameter is set on one property.
+     */
+    private static class Binding {
+        PropertyPath writer;
+        boolean primitive;
+        int type;
+
+        Binding(PropertyPath writer, Class propertyType) {
+            Integer conversion = (Integer) types.get(propertyType);
+            this.writer = writer;
+            primitive = propertyType.isPrimitive();
+            type = (conversion == null) ? OTHER : conversion.intValue();
+        }
+
+        Object convert(String value) {
+            if ((type == OTHER) || (value == null)) {
+                return value;
+            }
+
+            if (!primitive && (value.trim().length() == 0)) {
+                return null;
+            }
+
+            switch (type) {
+            case BOOLEAN:
+                return TextUtils.parseBoolean(value) ? Boolean.TRUE : Boolean.FALSE;
+
+            case BYTE:
+                // a number that doesn't fit saturates, as parseInt does for int
+                return Byte.valueOf((byte) clamp(TextUtils.parseInt(value), Byte.MIN_VALUE, Byte.MAX_VALUE));
+
+            case SHORT:
+                return Short.valueOf((short) clamp(TextUtils.parseInt(value), Short.MIN_VALUE, Short.MAX_VALUE));
+
+            case INT:
+                return Integer.valueOf(TextUtils.parseInt(value));
+
+            case LONG:
+                return Long.valueOf(TextUtils.parseLong(value));
+
+            case FLOAT:
+                return Float.valueOf(TextUtils.parseFloat(value));
+
+            default:
+                return Double.valueOf(TextUtils.parseDouble(value));
+            }
+        }
+
+        private static int clamp(int value, int min, int max) {
+            return (value < min) ? min : ((value > max) ? max : value);
+        }
+    }
+}
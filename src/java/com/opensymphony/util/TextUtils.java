@@ -86,6 +86,44 @@ public class TextUtils {
      */
     public final static String[] SINGLE_TAGS = {"br", "p", "hr"};
 
+    /**
+     * Replacement text for each character below '\377' that {@link #htmlEncode(String, boolean)}
+     * escapes, or <code>null</code> if the character is written as is.
+     */
+    private final static String[] HTML_ESCAPES = new String[0377];
+
+    static {
+        HTML_ESCAPES['"'] = "&quot;";
+        HTML_ESCAPES['&'] = "&amp;";
+        HTML_ESCAPES['<'] = "&lt;";
+        HTML_ESCAPES['>'] = "&gt;";
+
+        String hexChars = "0123456789ABCDEF";
+
+        for (int c = 0200; c < 0377; c++) {
+            HTML_ESCAPES[c] = "&#x" + hexChars.charAt(c / 16) + hexChars.charAt(c % 16) + ';';
+        }
+    }
+
+    /**
+     * Powers of ten that are exactly representable, used by {@link #parseDouble(CharSequence, int, int)}
+     * and {@link #parseFloat(CharSequence, int, int)}.
+     */
+    private final static double[] DOUBLE_POWERS_OF_TEN = new double[23];
+    private final static float[] FLOAT_POWERS_OF_TEN = new float[11];
+
+    static {
+        DOUBLE_POWERS_OF_TEN[0] = 1;
+
+        for (int i = 1; i < DOUBLE_POWERS_OF_TEN.length; i++) {
+            DOUBLE_POWERS_OF_TEN[i] = DOUBLE_POWERS_OF_TEN[i - 1] * 10;
+        }
+
+        for (int i = 0; i < FLOAT_POWERS_OF_TEN.length; i++) {
+            FLOAT_POWERS_OF_TEN[i] = (float) DOUBLE_POWERS_OF_TEN[i];
+        }
+    }
+
     //~ Methods ////////////////////////////////////////////////////////////////
 
     /**
@@ -111,96 +149,17 @@ public class TextUtils {
 
     /**
      * Search through a String for any tags that have been opened and append closing tags
-     * for those that have not been closed.
+     * for those that have not been closed. The closing tags are appended in the reverse
+     * order to which the tags were opened, so they nest properly.
      * @param str A string possibly containing unclosed HTML tags
      * @return the converted string
      * #see #SINGLE_TAGS
      */
     public final static String closeTags(String str) {
-        Map openTags = new HashMap();
         str = noNull(str);
 
-        boolean inTag = false;
-        boolean inTagName = false;
-        boolean inOpenTag = true;
-        String tagName = "";
-        List singleTags = Arrays.asList(SINGLE_TAGS);
-
-        char[] strA = str.toCharArray();
-
-        for (int i = 0; i < strA.length; i++) {
-            char c = strA[i];
-
-            if (!inTag) // not in a tag
-             {
-                if (c == '<') // start of a tag
-                 {
-                    // reset all state variables at start of each new tag
-                    inTag = true;
-                    inTagName = true;
-                    inOpenTag = true;
-                    tagName = "";
-                }
-            } else // in a tag
-             {
-                if ((tagName.length() == 0) && (c == '/')) // start of a close tag
-                 {
-                    inOpenTag = false;
-                } else if (inTagName && ((c == ' ') || (c == '>') || (c == '/'))) // end of the tagname or tag
-                 {
-                    inTagName = false;
-
-                    if (inOpenTag && !singleTags.contains(tagName.toLowerCase())) {
-                        // count this tag in the list of open tags
-                        if (openTags.get(tagName) == null) {
-                            openTags.put(tagName, new Integer(1));
-                        } else {
-                            int tagCount = ((Integer) openTags.get(tagName)).intValue();
-                            openTags.put(tagName, new Integer(tagCount + 1));
-                        }
-                    } else // in close tag
-                     {
-                        // remove it from closetags
-                        if (openTags.get(tagName) != null) {
-                            int tagCount = ((Integer) openTags.get(tagName)).intValue();
-
-                            if (tagCount > 1) {
-                                openTags.put(tagName, new Integer(tagCount - 1));
-                            } else {
-                                openTags.remove(tagName);
-                            }
-                        }
-                    }
-
-                    if (c == '>') // end of tag
-                     {
-                        inTag = false;
-                    }
-                } else if (inTagName) // still in tag name
-                 {
-                    tagName += c;
-                } else if (c == '>') // end of tag and there were attributes
-                 {
-                    inTag = false;
-                }
-            }
-        }
-
-        // cycle through remaining open tags and close them
-        Iterator openTagNames = openTags.keySet().iterator();
-        StringBuffer closedString = new StringBuffer(str);
-
-        while (openTagNames.hasNext()) {
-            String openTagName = (String) openTagNames.next();
-
-            //System.out.println("removing " + openTagName);
-            for (int i = 0;
-                    i < ((Integer) openTags.get(openTagName)).intValue();
-                    i++) {
-                //System.out.println("appended </ " + openTagName + ">");
-                closedString.append("</").append(openTagName).append('>');
-            }
-        }
+        StringBuffer closedString = new StringBuffer(str.length() + 16);
+        closeTags(str, str.length(), closedString);
 
         // return closed string
         return closedString.toString();
@@ -405,54 +364,73 @@ public class TextUtils {
     public final static String htmlEncode(String s, boolean encodeSpecialChars) {
         s = noNull(s);
 
-        StringBuffer str = new StringBuffer();
+        int length = s.length();
+        int j = 0;
 
-        for (int j = 0; j < s.length(); j++) {
-            char c = s.charAt(j);
+        // nothing to escape - don't copy
+        while ((j < length) && (htmlEscape(s.charAt(j), encodeSpecialChars) == null)) {
+            j++;
+        }
 
-            // encode standard ASCII characters into HTML entities where needed
-            if (c < '\200') {
-                switch (c) {
-                case '"':
-                    str.append("&quot;");
+        if (j == length) {
+            return s;
+        }
 
-                    break;
+        StringBuffer str = new StringBuffer(length + 16);
+        str.append(s, 0, j);
 
-                case '&':
-                    str.append("&amp;");
+        for (; j < length; j++) {
+            char c = s.charAt(j);
+            String escape = htmlEscape(c, encodeSpecialChars);
 
-                    break;
+            if (escape == null) {
+                str.append(c);
+            } else {
+                str.append(escape);
+            }
+        }
 
-                case '<':
-                    str.append("&lt;");
+        return str.toString();
+    }
 
-                    break;
+    /**
+     * Escape html entity characters and high characters, writing the result to <code>out</code>.
+     *
+     * @param s the text to escape (may be null).
+     * @param out where to write the escaped text, eg. a <code>Writer</code>.
+     * @see #htmlEncode(String)
+     */
+    public final static void htmlEncode(CharSequence s, Appendable out) throws IOException {
+        htmlEncode(s, out, true);
+    }
 
-                case '>':
-                    str.append("&gt;");
+    /**
+     * Escape html entity characters and high characters, writing the result to <code>out</code>.
+     * Runs of characters that don't need escaping are written in one go.
+     *
+     * @param s the text to escape (may be null).
+     * @param out where to write the escaped text, eg. a <code>Writer</code>.
+     * @param encodeSpecialChars if true high characters will be encode other wise not.
+     * @see #htmlEncode(String, boolean)
+     */
+    public final static void htmlEncode(CharSequence s, Appendable out, boolean encodeSpecialChars) throws IOException {
+        if (s == null) {
+            return;
+        }
 
-                    break;
+        int length = s.length();
+        int start = 0;
 
-                default:
-                    str.append(c);
-                }
-            }
-            // encode 'ugly' characters (ie Word "curvy" quotes etc)
-            else if (encodeSpecialChars && (c < '\377')) {
-                String hexChars = "0123456789ABCDEF";
-                int a = c % 16;
-                int b = (c - a) / 16;
-                String hex = "" + hexChars.charAt(b) + hexChars.charAt(a);
-                str.append("&#x" + hex + ";");
-            }
-            //add other characters back in - to handle charactersets
-            //other than ascii
-            else {
-                str.append(c);
+        for (int j = 0; j < length; j++) {
+            String escape = htmlEscape(s.charAt(j), encodeSpecialChars);
+
+            if (escape != null) {
+                out.append(s, start, j).append(escape);
+                start = j + 1;
             }
         }
 
-        return str.toString();
+        out.append(s, start, length);
     }
 
     /**
@@ -481,13 +459,27 @@ public class TextUtils {
         text = noNull(text);
 
         StringBuffer sb = new StringBuffer((int) (text.length() * 1.1));
-        sb.append(text);
-        linkEmail(sb);
-        linkURL(sb, target);
+        link(text, sb, target, true, true);
 
         return sb.toString();
     }
 
+    /**
+     * Convert all URLs and E-mail addresses in some text into hyperlinks, writing the
+     * result to <code>out</code>. The text is scanned once, from left to right.
+     *
+     * @param text The block of text to hyperlink.
+     * @param target The target attribute to use for href (optional).
+     * @param out where to write the hyperlinked text, eg. a <code>Writer</code>.
+     *
+     * @see #hyperlink(String, String)
+     */
+    public final static void hyperlink(CharSequence text, String target, Appendable out) throws IOException {
+        if (text != null) {
+            new Linker(text, out, target, true, true).link();
+        }
+    }
+
     /**
      * Indent a String with line-breaks.
      *
@@ -681,8 +673,7 @@ public class TextUtils {
      */
     public final static String linkEmail(String string) {
         StringBuffer str = new StringBuffer((int) (string.length() * 1.05));
-        str.append(string);
-        linkEmail(str);
+        link(string, str, null, true, false);
 
         return str.toString();
     }
@@ -705,8 +696,7 @@ public class TextUtils {
      */
     public final static String linkURL(String str, String target) {
         StringBuffer sb = new StringBuffer((int) (str.length() * 1.05));
-        sb.append(str);
-        linkURL(sb, target);
+        link(str, sb, target, false, true);
 
         return sb.toString();
     }
@@ -722,68 +712,88 @@ public class TextUtils {
     public final static String list(String str) {
         str = noNull(str);
 
-        String strToRet = "";
+        StringBuffer strToRet = new StringBuffer(str.length() + 16);
 
-        boolean inList = false;
+        try {
+            list(str, strToRet);
+        } catch (IOException e) {
+            // a StringBuffer never throws IOException
+        }
+
+        return strToRet.toString();
+    }
+
+    /**
+     * Create <li> elements in a piece of plain text, writing the result to <code>out</code>.
+     * Text that isn't part of the list is written in runs, not a char at a time.
+     *
+     * @param str A string, possibly containing a plaintext "list" (may be null).
+     * @param out where to write the converted text, eg. a <code>Writer</code>.
+     * @see #list(String)
+     */
+    public final static void list(CharSequence str, Appendable out) throws IOException {
+        if (str == null) {
+            return;
+        }
 
-        if (str.startsWith("-") || str.startsWith("*")) {
-            // if first char is '-' or '*' then put a linebreak before str so that the following
-            // code will take it as a list...
-            str = '\n' + str;
+        int length = str.length();
+        boolean inList = false;
+        int start = 0; // chars from start up to the current one haven't been written yet
+        int i = 0;
+
+        if ((length > 0) && ((str.charAt(0) == '-') || (str.charAt(0) == '*'))) {
+            // if first char is '-' or '*' then it's treated as if there was a linebreak before it,
+            // so that it will be taken as a list...
+            out.append("<ul><li>");
+            inList = true;
+            start = i = 1;
         }
 
-        for (int i = 0; i < str.length(); i++) {
+        for (; i < length; i++) {
             // look at whether the character at i is '\n'...
-            if (str.charAt(i) == '\n') {
-                // if so, look at the next char and see whether it's '-' or '*'...
-                if (i != (str.length() - 1)) {
-                    if ((str.charAt(i + 1) == '-') || (str.charAt(i + 1) == '*')) {
-                        // if so, and if we are not currently in a list, we start
-                        // a list...
-                        if (!inList) {
-                            strToRet += "<ul>";
-                            inList = true;
-                        } else {
-                            // if we are already in a list, then the previous point is unclosed...
-                            strToRet += "</li>";
-                        }
-
-                        // we add the <li> tag since a new point is started...
-                        strToRet += "<li>";
+            if (str.charAt(i) != '\n') {
+                continue;
+            }
 
-                        i++; // since we've taken care of the '-' or '*' char already...
-                    } else {
-                        // if we are currently in a list, and we have a linebreak char but
-                        // no '-' or '*' after it, then that means the list is closed...
-                        if (inList) {
-                            strToRet += "</li></ul>";
-                            inList = false;
-                        } else {
-                            // if we are not currently in a list, simply add the linebreak
-                            // char to the string...
-                            strToRet += str.charAt(i);
-                        }
-                    }
+            out.append(str, start, i);
+            start = i + 1;
+
+            // if so, look at the next char and see whether it's '-' or '*'...
+            if (i != (length - 1)) {
+                char next = str.charAt(i + 1);
+
+                if ((next == '-') || (next == '*')) {
+                    // if so, and if we are not currently in a list, we start a list.
+                    // if we are already in a list, then the previous point is unclosed...
+                    // either way we add the <li> tag since a new point is started.
+                    out.append(inList ? "</li><li>" : "<ul><li>");
+                    inList = true;
+
+                    i++; // since we've taken care of the '-' or '*' char already...
+                    start = i + 1;
+                } else if (inList) {
+                    // if we are currently in a list, and we have a linebreak char but
+                    // no '-' or '*' after it, then that means the list is closed...
+                    out.append("</li></ul>");
+                    inList = false;
                 } else {
-                    // there is no next char since this char is the last char in the string...
-                    // if we are in a list, then we close the list (and the current point in the list)
-                    // by adding </li> and </ul> tags...
-                    if (inList) {
-                        strToRet += "</li></ul>";
-                    }
+                    // if we are not currently in a list, the linebreak char is kept
+                    start = i;
                 }
-            } else {
-                // not a linebreak char - simply add the char to the string...
-                strToRet += str.charAt(i);
+            } else if (inList) {
+                // there is no next char since this char is the last char in the string...
+                // if we are in a list, then we close the list (and the current point in the list)
+                // by adding </li> and </ul> tags...
+                out.append("</li></ul>");
             }
         }
 
+        out.append(str, start, length);
+
         // if we're still in a list, then we close it...
         if (inList) {
-            strToRet += "</li></ul>";
+            out.append("</li></ul>");
         }
-
-        return strToRet;
     }
 
     /**
@@ -939,16 +949,21 @@ public class TextUtils {
      * @see #extractNumber(String)
      */
     public final static double parseDouble(String in) {
-        double d = 0;
-
-        try {
-            d = Double.parseDouble(in);
-        } catch (Exception e) {
-        }
-
-        ;
+        return (in == null) ? 0 : parseDouble(in, 0, in.length());
+    }
 
-        return d;
+    /**
+     * Convert a range of characters to a double. Accepts the same input as
+     * {@link Double#parseDouble(String)}, but returns 0 instead of throwing
+     * an exception, so junk input costs no more than a valid number.
+     *
+     * @param in Characters containing number to be parsed.
+     * @param start Index of the first character of the number.
+     * @param end Index after the last character of the number.
+     * @return Double value of number or 0 if error.
+     */
+    public final static double parseDouble(CharSequence in, int start, int end) {
+        return parseFloatingPoint(in, start, end, false);
     }
 
     /**
@@ -960,16 +975,21 @@ public class TextUtils {
      * @see #extractNumber(String)
      */
     public final static float parseFloat(String in) {
-        float f = 0;
-
-        try {
-            f = Float.parseFloat(in);
-        } catch (Exception e) {
-        }
-
-        ;
+        return (in == null) ? 0 : parseFloat(in, 0, in.length());
+    }
 
-        return f;
+    /**
+     * Convert a range of characters to a float. Accepts the same input as
+     * {@link Float#parseFloat(String)}, but returns 0 instead of throwing
+     * an exception.
+     *
+     * @param in Characters containing number to be parsed.
+     * @param start Index of the first character of the number.
+     * @param end Index after the last character of the number.
+     * @return Float value of number or 0 if error.
+     */
+    public final static float parseFloat(CharSequence in, int start, int end) {
+        return (float) parseFloatingPoint(in, start, end, true);
     }
 
     /**
@@ -982,17 +1002,48 @@ public class TextUtils {
      * @see #extractNumber(String)
      */
     public final static int parseInt(String in) {
-        int i;
+        return (in == null) ? 0 : parseInt(in, 0, in.length());
+    }
 
-        try {
-            i = Integer.parseInt(in);
-        } catch (Exception e) {
-            i = (int) parseFloat(in);
+    /**
+     * Convert a range of characters to an int. Anything {@link Integer#parseInt(String)}
+     * rejects is parsed as a float and truncated, just like {@link #parseInt(String)},
+     * but no exception is thrown along the way.
+     *
+     * @param in Characters containing number to be parsed.
+     * @param start Index of the first character of the number.
+     * @param end Index after the last character of the number.
+     * @return Integer value of number or 0 if error.
+     */
+    public final static int parseInt(CharSequence in, int start, int end) {
+        int i = start;
+        boolean negative = false;
+
+        if ((i < end) && ((in.charAt(i) == '-') || (in.charAt(i) == '+'))) {
+            negative = in.charAt(i) == '-';
+            i++;
+        }
+
+        if (i == end) {
+            return 0;
         }
 
-        ;
+        // accumulate negatively, so that MIN_VALUE fits
+        int limit = negative ? Integer.MIN_VALUE : (-Integer.MAX_VALUE);
+        int result = 0;
 
-        return i;
+        for (; i < end; i++) {
+            char c = in.charAt(i);
+            int digit = ((c >= '0') && (c <= '9')) ? (c - '0') : Character.digit(c, 10);
+
+            if ((digit < 0) || (result < (limit / 10)) || ((result * 10) < (limit + digit))) {
+                return (int) parseFloat(in, start, end);
+            }
+
+            result = (result * 10) - digit;
+        }
+
+        return negative ? result : (-result);
     }
 
     /**
@@ -1005,17 +1056,48 @@ public class TextUtils {
      * @see #extractNumber(String)
      */
     public final static long parseLong(String in) {
-        long l;
+        return (in == null) ? 0 : parseLong(in, 0, in.length());
+    }
 
-        try {
-            l = Long.parseLong(in);
-        } catch (Exception e) {
-            l = (long) parseDouble(in);
+    /**
+     * Convert a range of characters to a long. Anything {@link Long#parseLong(String)}
+     * rejects is parsed as a double and truncated, just like {@link #parseLong(String)},
+     * but no exception is thrown along the way.
+     *
+     * @param in Characters containing number to be parsed.
+     * @param start Index of the first character of the number.
+     * @param end Index after the last character of the number.
+     * @return Long value of number or 0 if error.
+     */
+    public final static long parseLong(CharSequence in, int start, int end) {
+        int i = start;
+        boolean negative = false;
+
+        if ((i < end) && ((in.charAt(i) == '-') || (in.charAt(i) == '+'))) {
+            negative = in.charAt(i) == '-';
+            i++;
+        }
+
+        if (i == end) {
+            return 0;
         }
 
-        ;
+        // accumulate negatively, so that MIN_VALUE fits
+        long limit = negative ? Long.MIN_VALUE : (-Long.MAX_VALUE);
+        long result = 0;
+
+        for (; i < end; i++) {
+            char c = in.charAt(i);
+            int digit = ((c >= '0') && (c <= '9')) ? (c - '0') : Character.digit(c, 10);
+
+            if ((digit < 0) || (result < (limit / 10)) || ((result * 10) < (limit + digit))) {
+                return (long) parseDouble(in, start, end);
+            }
+
+            result = (result * 10) - digit;
+        }
 
-        return l;
+        return negative ? result : (-result);
     }
 
     /**
@@ -1057,21 +1139,24 @@ public class TextUtils {
      * @return the escaped string
      */
     public final static String plainTextToHtml(String str, String target, boolean encodeSpecialChars) {
-        str = noNull(str);
-
-        //First, convert all the special chars...
-        str = htmlEncode(str, encodeSpecialChars);
-
-        //Convert all leading whitespaces
-        str = leadingSpaces(str);
-
-        //Then convert all line breaks...
-        str = br(str);
+        StringBuffer html = escapePlainText(str, encodeSpecialChars);
+        StringBuffer sb = new StringBuffer((int) (html.length() * 1.1));
+        link(html, sb, target, true, true);
 
-        //Then create hyperlinks...
-        str = hyperlink(str, target);
+        return sb.toString();
+    }
 
-        return str;
+    /**
+     * Converts plain text to html code and writes it to <code>out</code>.
+     *
+     * @param str - String containing the plain text.
+     * @param target - Target for href tags (optional).
+     * @param encodeSpecialChars - if true high characters will be encode other wise not.
+     * @param out - where to write the html (eg. a <code>Writer</code>).
+     * @see #plainTextToHtml(String, String, boolean)
+     */
+    public final static void plainTextToHtml(String str, String target, boolean encodeSpecialChars, Appendable out) throws IOException {
+        new Linker(escapePlainText(str, encodeSpecialChars), out, target, true, true).link();
     }
 
     /**
@@ -1140,7 +1225,6 @@ public class TextUtils {
     public final static String trimToEndingChar(String str, int len) {
         boolean inTag = false;
         boolean anyTags = false;
-        String result = "";
         int goodChars = 0;
         int lastEndingCharPos = -1;
 
@@ -1148,29 +1232,31 @@ public class TextUtils {
             return str;
         }
 
-        char[] strA = str.toCharArray();
+        int end = 0;
+
+        while (end < str.length()) {
+            char c = str.charAt(end);
 
-        for (int i = 0; i < strA.length; i++) {
-            if ((strA[i] == '<') && !inTag) {
+            if ((c == '<') && !inTag) {
                 anyTags = true;
                 inTag = true;
             }
 
-            if ((strA[i] == '>') && inTag) {
+            if ((c == '>') && inTag) {
                 inTag = false;
             }
 
             if (!inTag) {
                 // loop through ending chars
                 // if this char == ending char, record last seen
-                if (isEndingChar(strA[i])) {
-                    lastEndingCharPos = i;
+                if (isEndingChar(c)) {
+                    lastEndingCharPos = end;
                 }
 
                 goodChars++;
             }
 
-            result += strA[i];
+            end++;
 
             if (goodChars == len) {
                 break;
@@ -1183,26 +1269,30 @@ public class TextUtils {
         // of some sentence in the original string. In this case, we would have to trim the string further so
         // that the end of the string corresponds to the end of some sentence, but keeping the length of the string
         // closest to the specified len. We do this by utilising lastEndingCharPos...
-        if ((lastEndingCharPos + 1) != result.length()) {
+        if ((lastEndingCharPos + 1) != end) {
             if (lastEndingCharPos != -1) {
-                result = result.substring(0, lastEndingCharPos + 1);
+                end = lastEndingCharPos + 1;
             } else {
                 // there aren't any ending chars...
                 // best thing we could do is to trim the result to the nearest word...
                 // if there aren't any spaces in the result, then we can do nothing at all.
-                int spacePos = result.lastIndexOf(' ');
+                int spacePos = str.lastIndexOf(' ', end - 1);
 
                 if (spacePos != -1) {
-                    result = result.substring(0, spacePos);
+                    end = spacePos;
                 }
             }
         }
 
         if (anyTags) {
-            return closeTags(result); //Put closing tags and return the result...
+            //Put closing tags and return the result...
+            StringBuffer result = new StringBuffer(end + 16);
+            closeTags(str, end, result);
+
+            return result.toString();
         }
 
-        return result;
+        return str.substring(0, end);
     }
 
     /**
@@ -1273,6 +1363,112 @@ public class TextUtils {
         return result.toString();
     }
 
+    /**
+     * Append the first <code>end</code> chars of <code>str</code> to <code>out</code>, followed by
+     * closing tags for any tags left open. Open tags are kept on a stack of
+     * (start, end) positions of their names in <code>str</code>, so no Strings are built
+     * while scanning.
+     */
+    private final static void closeTags(String str, int end, StringBuffer out) {
+        int[] openTags = new int[16]; // pairs of tag name start and end positions
+        int openTagCount = 0;
+
+        boolean inTag = false;
+        boolean inTagName = false;
+        boolean inOpenTag = true;
+        int tagNameStart = 0;
+        int tagNameEnd = 0;
+
+        for (int i = 0; i < end; i++) {
+            char c = str.charAt(i);
+
+            if (!inTag) // not in a tag
+             {
+                if (c == '<') // start of a tag
+                 {
+                    // reset all state variables at start of each new tag
+                    inTag = true;
+                    inTagName = true;
+                    inOpenTag = true;
+                    tagNameStart = i + 1;
+                }
+            } else // in a tag
+             {
+                int tagNameLength = (inTagName ? i : tagNameEnd) - tagNameStart;
+
+                if ((tagNameLength == 0) && (c == '/')) // start of a close tag
+                 {
+                    inOpenTag = false;
+                    tagNameStart = i + 1;
+                } else if (inTagName && ((c == ' ') || (c == '>') || (c == '/'))) // end of the tagname or tag
+                 {
+                    inTagName = false;
+                    tagNameEnd = i;
+
+                    if (tagNameLength == 0) {
+                        // not really a tag, eg. "a < b"
+                    } else if (inOpenTag && !isSingleTag(str, tagNameStart, i)) {
+                        // push this tag onto the open tags
+                        if ((openTagCount * 2) == openTags.length) {
+                            int[] grown = new int[openTags.length * 2];
+                            System.arraycopy(openTags, 0, grown, 0, openTags.length);
+                            openTags = grown;
+                        }
+
+                        openTags[openTagCount * 2] = tagNameStart;
+                        openTags[(openTagCount * 2) + 1] = i;
+                        openTagCount++;
+                    } else // in close tag
+                     {
+                        // remove the most recently opened tag with this name
+                        for (int j = openTagCount - 1; j >= 0; j--) {
+                            int openStart = openTags[j * 2];
+                            int openLength = openTags[(j * 2) + 1] - openStart;
+
+                            if ((openLength == tagNameLength) && str.regionMatches(openStart, str, tagNameStart, tagNameLength)) {
+                                System.arraycopy(openTags, (j + 1) * 2, openTags, j * 2, (openTagCount - j - 1) * 2);
+                                openTagCount--;
+
+                                break;
+                            }
+                        }
+                    }
+
+                    if (c == '>') // end of tag
+                     {
+                        inTag = false;
+                    }
+                } else if (!inTagName && (c == '>')) // end of tag and there were attributes
+                 {
+                    inTag = false;
+                }
+
+                // while still in the tag name there's nothing to do, it's picked up from str at the end
+            }
+        }
+
+        out.append(str, 0, end);
+
+        // cycle through remaining open tags and close them, innermost first
+        while (openTagCount > 0) {
+            openTagCount--;
+            out.append("</").append(str, openTags[openTagCount * 2], openTags[(openTagCount * 2) + 1]).append('>');
+        }
+    }
+
+    /**
+     * Is the tag name from <code>start</code> to <code>end</code> in <code>str</code> one of the {@link #SINGLE_TAGS}?
+     */
+    private final static boolean isSingleTag(String str, int start, int end) {
+        for (int i = 0; i < SINGLE_TAGS.length; i++) {
+            if ((SINGLE_TAGS[i].length() == (end - start)) && str.regionMatches(true, start, SINGLE_TAGS[i], 0, end - start)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Determine if <code>c</code> is a valid end-of-sentence character.
      * Currently, only English characters are included.
@@ -1285,323 +1481,647 @@ public class TextUtils {
     }
 
     /**
-     * Get the starting index of a URL (either 'abc://' or 'www.')
+     * Parse a floating point number the way {@link Double#parseDouble(String)} or
+     * {@link Float#parseFloat(String)} would, returning 0 where they would throw.
+     * Plain decimals that can be converted exactly with a single multiplication or
+     * division are done here; anything else is checked first and then handed to the JDK.
      */
-    private static final int getStartUrl(StringBuffer str, int startIndex) {
-        int schemeIndex = getSchemeIndex(str, startIndex);
-        final int wwwIndex = str.indexOf("www.", startIndex + 1);
+    private final static double parseFloatingPoint(CharSequence in, int start, int end, boolean single) {
+        // trim, as the JDK does
+        while ((start < end) && (in.charAt(start) <= ' ')) {
+            start++;
+        }
 
-        if ((schemeIndex == -1) && (wwwIndex == -1)) {
-            return -1;
-        } else if (schemeIndex == -1) {
-            return wwwIndex;
-        } else if (wwwIndex == -1) {
-            return schemeIndex;
+        while ((end > start) && (in.charAt(end - 1) <= ' ')) {
+            end--;
         }
 
-        return Math.min(schemeIndex, wwwIndex);
-    }
+        int i = start;
+        boolean negative = false;
 
-    private final static void linkEmail(StringBuffer str) {
-        int lastEndIndex = -1; //Store the index position of the end char of last email address found...
+        if ((i < end) && ((in.charAt(i) == '-') || (in.charAt(i) == '+'))) {
+            negative = in.charAt(i) == '-';
+            i++;
+        }
 
-main: 
-        while (true) {
-            // get index of '@'...
-            int atIndex = str.indexOf("@", lastEndIndex + 1);
+        if (i == end) {
+            return 0;
+        }
 
-            if (atIndex == -1) {
-                break;
-            } else {
-                //Get the whole email address...
-                //Get the part before '@' by moving backwards and taking each character
-                //until we encounter an invalid URL char...
-                String partBeforeAt = "";
-                int linkStartIndex = atIndex;
-                boolean reachedStart = false;
-
-                while (!reachedStart) {
-                    linkStartIndex--;
-
-                    if (linkStartIndex < 0) {
-                        reachedStart = true;
-                    } else {
-                        char c = str.charAt(linkStartIndex);
+        char c = in.charAt(i);
 
-                        //if we find these chars in an email, then it's part of a url, so lets leave it alone
-                        //Are there any other chars we should abort email checking for??
-                        if ((c == '?') || (c == '&') || (c == '=') || (c == '/') || (c == '%')) {
-                            lastEndIndex = atIndex + 1;
+        if (c == 'N') {
+            return rangeEquals(in, i, end, "NaN") ? Double.NaN : 0;
+        } else if (c == 'I') {
+            if (!rangeEquals(in, i, end, "Infinity")) {
+                return 0;
+            }
 
-                            continue main;
-                        }
+            return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        } else if ((c == '0') && ((i + 1) < end) && ((in.charAt(i + 1) == 'x') || (in.charAt(i + 1) == 'X'))) {
+            return isHexFloatingPoint(in, i + 2, end) ? parseValidFloatingPoint(in, start, end, single) : 0;
+        }
 
-                        if (UrlUtils.isValidEmailChar(c)) {
-                            partBeforeAt = c + partBeforeAt;
-                        } else {
-                            reachedStart = true;
-                        }
-                    }
-                }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean seenDigit = false;
+        boolean seenDot = false;
+        boolean exact = true;
 
-                //Increment linkStartIndex back by 1 to reflect the real starting index of the
-                //email address...
-                linkStartIndex++;
+        for (; i < end; i++) {
+            c = in.charAt(i);
 
-                //Get the part after '@' by doing pretty much the same except moving
-                //forward instead of backwards.
-                String partAfterAt = "";
-                int linkEndIndex = atIndex;
-                boolean reachedEnd = false;
+            if ((c >= '0') && (c <= '9')) {
+                seenDigit = true;
 
-                while (!reachedEnd) {
-                    linkEndIndex++;
+                if (digits < 18) {
+                    if ((mantissa != 0) || (c != '0')) {
+                        mantissa = (mantissa * 10) + (c - '0');
+                        digits++;
+                    }
 
-                    if (linkEndIndex == str.length()) {
-                        reachedEnd = true;
-                    } else {
-                        char c = str.charAt(linkEndIndex);
+                    if (seenDot) {
+                        exponent--;
+                    }
+                } else {
+                    // too many digits for the mantissa; the JDK will have to round
+                    exact = exact && (c == '0');
 
-                        if (UrlUtils.isValidEmailChar(c)) {
-                            partAfterAt += c;
-                        } else {
-                            reachedEnd = true;
-                        }
+                    if (!seenDot) {
+                        exponent++;
                     }
                 }
+            } else if ((c == '.') && !seenDot) {
+                seenDot = true;
+            } else {
+                break;
+            }
+        }
 
-                //Decrement linkEndIndex back by 1 to reflect the real ending index of the
-                //email address...
-                linkEndIndex--;
+        if (!seenDigit) {
+            return 0;
+        }
 
-                //Reassemble the whole email address...
-                String emailStr = partBeforeAt + '@' + partAfterAt;
+        if ((i < end) && ((in.charAt(i) == 'e') || (in.charAt(i) == 'E'))) {
+            i++;
 
-                //If the last chars of emailStr is a '.', ':', '-', '/' or '~' then we exclude those chars.
-                //The '.' at the end could be just a fullstop to a sentence and we don't want
-                //that to be part of an email address (which would then be invalid).
-                //Pretty much the same for the other symbols - we don't want them at the end of any email
-                //address cos' this would stuff the address up.
-                while (true) {
-                    char lastChar = emailStr.charAt(emailStr.length() - 1);
+            boolean negativeExponent = false;
 
-                    if ((lastChar == '.') || (lastChar == ':') || (lastChar == '-') || (lastChar == '/') || (lastChar == '~')) {
-                        emailStr = emailStr.substring(0, emailStr.length() - 1);
-                        linkEndIndex--;
-                    } else {
-                        break;
-                    }
+            if ((i < end) && ((in.charAt(i) == '-') || (in.charAt(i) == '+'))) {
+                negativeExponent = in.charAt(i) == '-';
+                i++;
+            }
+
+            int exponentStart = i;
+            int explicitExponent = 0;
+
+            for (; (i < end) && ((c = in.charAt(i)) >= '0') && (c <= '9'); i++) {
+                // anything this large is out of range anyway, leave it to the JDK
+                if (explicitExponent < 100000) {
+                    explicitExponent = (explicitExponent * 10) + (c - '0');
                 }
+            }
+
+            if (i == exponentStart) {
+                return 0;
+            }
+
+            exponent += (negativeExponent ? (-explicitExponent) : explicitExponent);
+        }
+
+        if ((i < end) && (((i + 1) != end) || !isFloatingPointSuffix(in.charAt(i)))) {
+            return 0;
+        }
+
+        if (exact && single && (mantissa <= (1 << 24)) && (exponent >= -10) && (exponent <= 10)) {
+            // both operands are exact floats, so the result is correctly rounded
+            float f = (exponent < 0) ? ((float) mantissa / FLOAT_POWERS_OF_TEN[-exponent]) : ((float) mantissa * FLOAT_POWERS_OF_TEN[exponent]);
+
+            return negative ? (-f) : f;
+        } else if (exact && !single && (mantissa <= (1L << 53)) && (exponent >= -22) && (exponent <= 22)) {
+            double d = (exponent < 0) ? ((double) mantissa / DOUBLE_POWERS_OF_TEN[-exponent]) : ((double) mantissa * DOUBLE_POWERS_OF_TEN[exponent]);
+
+            return negative ? (-d) : d;
+        }
+
+        return parseValidFloatingPoint(in, start, end, single);
+    }
+
+    /**
+     * Parse a number that is known to be valid, so the JDK won't throw.
+     */
+    private final static double parseValidFloatingPoint(CharSequence in, int start, int end, boolean single) {
+        String s = in.subSequence(start, end).toString();
+
+        return single ? Float.parseFloat(s) : Double.parseDouble(s);
+    }
+
+    /**
+     * Check the part of a hexadecimal floating point number after the <code>0x</code>,
+     * for example <code>1.8p1</code>.
+     */
+    private final static boolean isHexFloatingPoint(CharSequence in, int i, int end) {
+        boolean seenDigit = false;
+        boolean seenDot = false;
+
+        for (; i < end; i++) {
+            char c = in.charAt(i);
+
+            if (((c >= '0') && (c <= '9')) || ((c >= 'a') && (c <= 'f')) || ((c >= 'A') && (c <= 'F'))) {
+                seenDigit = true;
+            } else if ((c == '.') && !seenDot) {
+                seenDot = true;
+            } else {
+                break;
+            }
+        }
+
+        // the binary exponent is mandatory
+        if (!seenDigit || (i == end) || ((in.charAt(i) != 'p') && (in.charAt(i) != 'P'))) {
+            return false;
+        }
+
+        i++;
+
+        if ((i < end) && ((in.charAt(i) == '-') || (in.charAt(i) == '+'))) {
+            i++;
+        }
+
+        int exponentStart = i;
+
+        while ((i < end) && (in.charAt(i) >= '0') && (in.charAt(i) <= '9')) {
+            i++;
+        }
+
+        if (i == exponentStart) {
+            return false;
+        }
+
+        return (i == end) || (((i + 1) == end) && isFloatingPointSuffix(in.charAt(i)));
+    }
+
+    private final static boolean isFloatingPointSuffix(char c) {
+        return (c == 'f') || (c == 'F') || (c == 'd') || (c == 'D');
+    }
+
+    /**
+     * Whether the characters from <code>start</code> to <code>end</code> are exactly <code>match</code>.
+     */
+    private final static boolean rangeEquals(CharSequence in, int start, int end, String match) {
+        if ((end - start) != match.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < match.length(); i++) {
+            if (in.charAt(start + i) != match.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the replacement text for <code>c</code>, or null if it doesn't need escaping.
+     * @see #HTML_ESCAPES
+     */
+    private final static String htmlEscape(char c, boolean encodeSpecialChars) {
+        if ((c < '\200') || (encodeSpecialChars && (c < '\377'))) {
+            return HTML_ESCAPES[c];
+        }
+
+        //add other characters back in - to handle charactersets
+        //other than ascii
+        return null;
+    }
+
+    /**
+     * The first half of {@link #plainTextToHtml(String, String, boolean)}: escaping, leading spaces
+     * and line breaks are done in one pass. Hyperlinks are left to a {@link Linker}.
+     */
+    private final static StringBuffer escapePlainText(String str, boolean encodeSpecialChars) {
+        str = noNull(str);
+
+        StringBuffer sb = new StringBuffer((int) (str.length() * 1.1));
+        boolean justAfterLineBreak = true;
 
-                //Verify if email is valid...
-                if (verifyEmail(emailStr)) {
-                    //Construct the hyperlink for the email address...
-                    String emailLink = "<a href='mailto:" + emailStr + "'>" + emailStr + "</a>";
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
 
-                    //Take the part of the str before the email address, the part after, and add
-                    //the emailLink between those two parts, so that in effect the original email
-                    //address is replaced by a hyperlink to it...
-                    str.replace(linkStartIndex, linkEndIndex + 1, emailLink);
+            if (c == '\n') {
+                sb.append("<br/>\n");
+                justAfterLineBreak = true;
+            } else if (justAfterLineBreak && (c == ' ')) {
+                sb.append("&nbsp;");
+            } else {
+                String escape = htmlEscape(c, encodeSpecialChars);
 
-                    //Set lastEndIndex to reflect the position of the end of emailLink
-                    //within the whole string...
-                    lastEndIndex = (linkStartIndex - 1) + emailLink.length();
+                if (escape == null) {
+                    sb.append(c);
                 } else {
-                    //lastEndIndex is different from the one above cos' there's no
-                    //<a href...> tags added...
-                    lastEndIndex = (linkStartIndex - 1) + emailStr.length();
+                    sb.append(escape);
                 }
+
+                justAfterLineBreak = false;
             }
         }
+
+        return sb;
     }
 
-    private final static void linkURL(StringBuffer str, String target) {
-        String urlToDisplay;
+    /**
+     * Hyperlink <code>text</code> into a StringBuffer.
+     */
+    private final static void link(CharSequence text, StringBuffer out, String target, boolean emails, boolean urls) {
+        try {
+            new Linker(text, out, target, emails, urls).link();
+        } catch (IOException e) {
+            // a StringBuffer never throws IOException
+        }
+    }
 
-        int lastEndIndex = -1; //Stores the index position, within the whole string, of the ending char of the last URL found.
+    //~ Inner Classes //////////////////////////////////////////////////////////
 
-        String targetString = ((target == null) || (target.trim().length() == 0)) ? "" : (" target=\"" + target.trim() + '\"');
+    /**
+     * Converts URLs ('abc://' and 'www.abc') and E-mail addresses into hyperlinks in a single
+     * left to right scan of the text. Text between links is appended to the output in runs,
+     * so the cost per character stays the same however many links there are.
+     *
+     * <p>E-mail addresses take precedence over URLs that overlap them, and a URL never runs into
+     * an E-mail address that follows it; this gives the same links as first linking the E-mail
+     * addresses, then the URLs in the result.</p>
+     */
+    private static class Linker {
+        private final Appendable out;
+        private final CharSequence text;
+        private final String targetString;
+        private final StringBuffer url = new StringBuffer();
+        private final boolean linkEmails;
+        private final boolean linkUrls;
+        private final int length;
+
+        // everything before copied has been written to out. lastWritten is the last char written, and
+        // lastSkipped the last URL that wasn't linked, if it was written with its "&amp;"s turned into '&'
+        private String lastSkipped;
+        private char lastWritten;
+        private int copied;
+
+        // where to look for the next URL, and the next 'www.' and '://' at or after it
+        private int pos;
+        private int schemeIndex = -1;
+        private int schemeStart;
+        private int wwwIndex = -1;
+
+        // where to look for the next '@', and the next valid E-mail address found
+        private boolean emailFound;
+        private int emailEnd;
+        private int emailFrom;
+        private int emailStart;
+
+        // E-mail addresses don't extend back before the end of the last one linked
+        private int emailFloor;
+
+        public Linker(CharSequence text, Appendable out, String target, boolean linkEmails, boolean linkUrls) {
+            this.text = text;
+            this.out = out;
+            this.linkEmails = linkEmails;
+            this.linkUrls = linkUrls;
+            this.length = text.length();
+            this.targetString = ((target == null) || (target.trim().length() == 0)) ? "" : (" target=\"" + target.trim() + '\"');
+        }
 
-        while (true) {
-            int linkStartIndex = getStartUrl(str, lastEndIndex);
+        public void link() throws IOException {
+            while (true) {
+                int urlIndex = linkUrls ? nextUrl() : length;
+                int emailIndex = linkEmails ? nextEmail() : length;
 
-            //if no more links found - then end the loop
-            if (linkStartIndex == -1) {
-                break;
-            } else {
-                //Get the whole URL...
-                //We move forward and add each character to the URL string until we encounter
-                //an invalid URL character (we assume that the URL ends there).
-                int linkEndIndex = linkStartIndex;
-                String urlStr = "";
+                if ((emailIndex < length) && (emailIndex <= urlIndex)) {
+                    linkEmail();
+                } else if (urlIndex < length) {
+                    linkURL(urlIndex, emailIndex);
+                } else {
+                    break;
+                }
+            }
 
-                while (true) {
-                    // if char at linkEndIndex is '&' then we look at the next 4 chars
-                    // to see if they make up "&amp;" altogether. This is the html coded
-                    // '&' and will pretty much stuff up an otherwise valid link becos of the ';'.
-                    // We therefore have to remove it before proceeding...
-                    if (str.charAt(linkEndIndex) == '&') {
-                        if (((linkEndIndex + 6) <= str.length()) && "&quot;".equals(str.substring(linkEndIndex, linkEndIndex + 6))) {
-                            break;
-                        } else if (((linkEndIndex + 5) <= str.length()) && "&amp;".equals(str.substring(linkEndIndex, linkEndIndex + 5))) {
-                            str.replace(linkEndIndex, linkEndIndex + 5, "&");
-                        }
-                    }
+            copyTo(length);
+        }
 
-                    if (UrlUtils.isValidURLChar(str.charAt(linkEndIndex))) {
-                        urlStr += str.charAt(linkEndIndex);
-                        linkEndIndex++;
+        private static boolean regionMatches(CharSequence s, int offset, int limit, String match) {
+            if ((offset < 0) || ((offset + match.length()) > limit)) {
+                return false;
+            }
 
-                        if (linkEndIndex == str.length()) { //Reached end of str...
+            for (int i = 0; i < match.length(); i++) {
+                if (s.charAt(offset + i) != match.charAt(i)) {
+                    return false;
+                }
+            }
 
-                            break;
-                        }
-                    } else {
-                        break;
-                    }
+            return true;
+        }
+
+        private static boolean endsWithIgnoreCase(StringBuffer s, int length, String match) {
+            int offset = length - match.length();
+
+            for (int i = 0; i < match.length(); i++) {
+                if (Character.toLowerCase(s.charAt(offset + i)) != match.charAt(i)) {
+                    return false;
                 }
+            }
 
-                //if the characters before the linkStart equal 'href="' then don't link the url - CORE-44
-                if (linkStartIndex >= 6) { //6 = "href\"".length()
+            return true;
+        }
 
-                    String prefix = str.substring(linkStartIndex - 6, linkStartIndex);
+        /**
+         * @return the index of the next occurrence of <code>match</code> at or after <code>from</code>,
+         * or the length of the text if there are no more.
+         */
+        private int indexOf(String match, int from) {
+            char first = match.charAt(0);
+            int last = length - match.length();
+
+            for (int i = from; i <= last; i++) {
+                if ((text.charAt(i) == first) && regionMatches(text, i, length, match)) {
+                    return i;
+                }
+            }
 
-                    if ("href=\"".equals(prefix)) {
-                        lastEndIndex = linkEndIndex;
+            return length;
+        }
 
-                        continue;
-                    }
+        /**
+         * Are the chars before <code>start</code>, as written to out, <code>match</code>?
+         */
+        private boolean precededBy(int start, String match) {
+            int fromText = Math.min(start - copied, match.length());
+            int fromSkipped = match.length() - fromText;
+
+            if (!regionMatches(text, start - fromText, length, match.substring(fromSkipped))) {
+                return false;
+            }
+
+            return (fromSkipped == 0) || ((lastSkipped != null) && lastSkipped.endsWith(match.substring(0, fromSkipped)));
+        }
+
+        private void copyTo(int end) throws IOException {
+            if (end > copied) {
+                out.append(text, copied, end);
+                lastWritten = text.charAt(end - 1);
+                copied = end;
+            }
+        }
+
+        /**
+         * Find the starting index of the next E-mail address, or the length of the text if there are none.
+         * The address is cached until it has been linked.
+         */
+        private int nextEmail() {
+            while (!emailFound && (emailFrom < length)) {
+                int atIndex = indexOf("@", emailFrom);
+
+                if (atIndex == length) {
+                    emailFrom = length;
+
+                    break;
                 }
 
-                //if the characters after the linkEnd are '</a>' then this url is probably already linked - CORE-44
-                if (str.length() >= (linkEndIndex + 4)) { //4 = "</a>".length()
+                //Get the part before '@' by moving backwards until we encounter an invalid email char...
+                int start = atIndex;
+
+                while ((start > Math.max(emailFloor, copied)) && UrlUtils.isValidEmailChar(text.charAt(start - 1))) {
+                    start--;
+                }
 
-                    String suffix = str.substring(linkEndIndex, linkEndIndex + 4);
+                //if we find these chars before an email, then it's part of a url, so lets leave it alone
+                //Are there any other chars we should abort email checking for??
+                if (start > emailFloor) {
+                    char c = text.charAt(start - 1);
 
-                    if ("</a>".equals(suffix)) {
-                        lastEndIndex = linkEndIndex + 4;
+                    if ((c == '?') || (c == '&') || (c == '=') || (c == '/') || (c == '%')) {
+                        emailFrom = atIndex + 2;
 
                         continue;
                     }
                 }
 
-                //Decrement linkEndIndex back by 1 to reflect the real ending index position of the URL...
-                linkEndIndex--;
+                //Get the part after '@' by doing pretty much the same except moving forward
+                int end = atIndex + 1;
 
-                // If the last char of urlStr is a '.' we exclude it. It is most likely a full stop and
-                // we don't want that to be part of an url.
+                while ((end < length) && UrlUtils.isValidEmailChar(text.charAt(end))) {
+                    end++;
+                }
+
+                //If the last chars of the address are a '.', ':', '-', '/' or '~' then we exclude those chars.
+                //The '.' at the end could be just a fullstop to a sentence and we don't want
+                //that to be part of an email address (which would then be invalid).
                 while (true) {
-                    char lastChar = urlStr.charAt(urlStr.length() - 1);
+                    char lastChar = text.charAt(end - 1);
 
-                    if (lastChar == '.') {
-                        urlStr = urlStr.substring(0, urlStr.length() - 1);
-                        linkEndIndex--;
+                    if ((lastChar == '.') || (lastChar == ':') || (lastChar == '-') || (lastChar == '/') || (lastChar == '~')) {
+                        end--;
                     } else {
                         break;
                     }
                 }
 
-                //if the URL had a '(' before it, and has a ')' at the end, trim the last ')' from the url
-                //ie '(www.opensymphony.com)' => '(<a href="http://www.openymphony.com/">www.opensymphony.com</a>)'
-                char lastChar = urlStr.charAt(urlStr.length() - 1);
+                emailFrom = end;
 
-                if (lastChar == ')') {
-                    if ((linkStartIndex > 0) && ('(' == (str.charAt(linkStartIndex - 1)))) {
-                        urlStr = urlStr.substring(0, urlStr.length() - 1);
-                        linkEndIndex--;
-                    }
-                } else if (lastChar == '\'') {
-                    if ((linkStartIndex > 0) && ('\'' == (str.charAt(linkStartIndex - 1)))) {
-                        urlStr = urlStr.substring(0, urlStr.length() - 1);
-                        linkEndIndex--;
-                    }
+                if (verifyEmail(text.subSequence(start, end).toString())) {
+                    emailFound = true;
+                    emailStart = start;
+                    emailEnd = end;
                 }
-                //perhaps we ended with '&gt;', '&lt;' or '&quot;'
-                //We need to strip these
-                //ie '&quot;www.opensymphony.com&quot;' => '&quot;<a href="http://www.openymphony.com/">www.opensymphony.com</a>&quot;'
-                //ie '&lt;www.opensymphony.com&gt;' => '&lt;<a href="http://www.openymphony.com/">www.opensymphony.com</a>&gt;'
-                else if (lastChar == ';') {
-                    // 6 = "&quot;".length()
-                    if ((urlStr.length() > 6) && "&quot;".equalsIgnoreCase(urlStr.substring(urlStr.length() - 6))) {
-                        urlStr = urlStr.substring(0, urlStr.length() - 6);
-                        linkEndIndex -= 6;
-                    }
-                    // 4 = "&lt;".length()  || "&gt;".length()
-                    else if (urlStr.length() > 4) {
-                        final String endingStr = urlStr.substring(urlStr.length() - 4);
+            }
 
-                        if ("&lt;".equalsIgnoreCase(endingStr) || "&gt;".equalsIgnoreCase(endingStr)) {
-                            urlStr = urlStr.substring(0, urlStr.length() - 4);
-                            linkEndIndex -= 4;
-                        }
+            return emailFound ? emailStart : length;
+        }
+
+        /**
+         * Find the starting index of the next URL (either 'abc://' or 'www.') at or after pos,
+         * or the length of the text if there are none.
+         */
+        private int nextUrl() {
+            if (wwwIndex < pos) {
+                wwwIndex = indexOf("www.", pos);
+            }
+
+            if (schemeIndex < pos) {
+                // a '://' at the very start of the text has no scheme, so the URL can only start after it
+                schemeIndex = indexOf(UrlUtils.SCHEME_URL, Math.max(pos, 1));
+
+                //walk backwards through the scheme until we find the first non valid character
+                for (schemeStart = schemeIndex; (schemeStart > 0) && (schemeStart < length); schemeStart--) {
+                    if (!UrlUtils.isValidSchemeChar(text.charAt(schemeStart - 1))) {
+                        break;
                     }
                 }
+            }
 
-                // we got the URL string, now we validate it and convert it into a hyperlink...
-                urlToDisplay = htmlEncode(urlStr);
+            // don't walk back into a link that has already been written
+            return Math.min(wwwIndex, Math.max(schemeStart, copied));
+        }
 
-                if (urlStr.toLowerCase().startsWith("www.")) {
-                    urlStr = "http://" + urlStr;
-                }
+        private void linkEmail() throws IOException {
+            String emailStr = text.subSequence(emailStart, emailEnd).toString();
+
+            copyTo(emailStart);
+            out.append("<a href='mailto:").append(emailStr).append("'>").append(emailStr).append("</a>");
+            lastSkipped = null;
+            lastWritten = '>';
+            copied = emailEnd;
+            emailFloor = emailEnd;
+            emailFound = false;
 
-                if (UrlUtils.verifyHierachicalURI(urlStr, new String[] {
-                                "javascript"
-                            })) {
-                    //Construct the hyperlink for the url...
-                    String urlLink = "<a href=\"" + urlStr + '\"' + targetString + '>' + urlToDisplay + "</a>";
+            // don't look for URLs inside an address that has been linked
+            pos = Math.max(pos, emailEnd);
+        }
 
-                    //Remove the original urlStr from str and put urlLink there instead...
-                    str.replace(linkStartIndex, linkEndIndex + 1, urlLink);
+        /**
+         * Link the URL at <code>start</code>. It can't run past <code>limit</code>, which is the start
+         * of the next E-mail address.
+         */
+        private void linkURL(int start, int limit) throws IOException {
+            //We move forward and add each character to the URL string until we encounter
+            //an invalid URL character (we assume that the URL ends there).
+            url.setLength(0);
+
+            int end = start;
+            boolean ampersands = false;
+
+            while (end < limit) {
+                char c = text.charAt(end);
+
+                // if char at end is '&' then we look at the next 4 chars
+                // to see if they make up "&amp;" altogether. This is the html coded
+                // '&' and will pretty much stuff up an otherwise valid link becos of the ';'.
+                // We therefore have to remove it before proceeding...
+                if (c == '&') {
+                    if (regionMatches(text, end, limit, "&quot;")) {
+                        break;
+                    } else if (regionMatches(text, end, limit, "&amp;")) {
+                        ampersands = true;
+                        url.append('&');
+                        end += 5;
+
+                        continue;
+                    }
+                }
 
-                    //Set lastEndIndex to reflect the position of the end of urlLink
-                    //within the whole string...
-                    lastEndIndex = (linkStartIndex - 1) + urlLink.length();
+                if (UrlUtils.isValidURLChar(c)) {
+                    url.append(c);
+                    end++;
                 } else {
-                    //lastEndIndex is different from the one above cos' there's no
-                    //<a href...> tags added...
-                    lastEndIndex = (linkStartIndex - 1) + urlStr.length();
+                    break;
                 }
             }
-        }
-    }
 
-    /**
-     * Given a string, and the index to start looking at, find the index of the start of the scheme. Eg.
-     * <pre>
-     * getSchemeIndex("notes://abc", 0) -> 0
-     * getSchemeIndex("abc notes://abc", 0) -> 4
-     * </pre>
-     * @param str    The string to search for
-     * @param startIndex   Where to start looking at
-     * @return The location the string was found, ot -1 if the string was not found.
-     */
-    private static int getSchemeIndex(StringBuffer str, int startIndex) {
-        int schemeIndex = str.indexOf(UrlUtils.SCHEME_URL, startIndex + 1);
+            //if the characters before the start equal 'href="' then don't link the url - CORE-44
+            if (precededBy(start, "href=\"")) {
+                skipURL(start, end, ampersands, end + 1);
 
-        //if it was not found, or found at the start of the string, then return 'not found'
-        if (schemeIndex <= 0) {
-            return -1;
-        }
+                return;
+            }
+
+            //if the characters after the end are '</a>' then this url is probably already linked - CORE-44
+            if (regionMatches(text, end, limit, "</a>")) {
+                skipURL(start, end, ampersands, end + 5);
 
-        //walk backwards through the scheme until we find the first non valid character
-        int schemeStart;
+                return;
+            }
 
-        for (schemeStart = schemeIndex - 1; schemeStart >= 0; schemeStart--) {
-            char currentChar = str.charAt(schemeStart);
+            // If the last char of the url is a '.' we exclude it. It is most likely a full stop and
+            // we don't want that to be part of an url.
+            int urlLength = url.length();
 
-            if (!UrlUtils.isValidSchemeChar(currentChar)) {
-                break;
+            while ((urlLength > 0) && (url.charAt(urlLength - 1) == '.')) {
+                urlLength--;
+            }
+
+            if (urlLength == 0) {
+                skipURL(start, end, ampersands, end + 1);
+
+                return;
+            }
+
+            //if the URL had a '(' before it, and has a ')' at the end, trim the last ')' from the url
+            //ie '(www.opensymphony.com)' => '(<a href="http://www.openymphony.com/">www.opensymphony.com</a>)'
+            char lastChar = url.charAt(urlLength - 1);
+            char charBefore = (start > copied) ? text.charAt(start - 1) : ((start > 0) ? lastWritten : 0);
+
+            if (lastChar == ')') {
+                if (charBefore == '(') {
+                    urlLength--;
+                }
+            } else if (lastChar == '\'') {
+                if (charBefore == '\'') {
+                    urlLength--;
+                }
+            }
+            //perhaps we ended with '&gt;', '&lt;' or '&quot;'
+            //We need to strip these
+            //ie '&quot;www.opensymphony.com&quot;' => '&quot;<a href="http://www.openymphony.com/">www.opensymphony.com</a>&quot;'
+            //ie '&lt;www.opensymphony.com&gt;' => '&lt;<a href="http://www.openymphony.com/">www.opensymphony.com</a>&gt;'
+            else if (lastChar == ';') {
+                // 6 = "&quot;".length()
+                if ((urlLength > 6) && endsWithIgnoreCase(url, urlLength, "&quot;")) {
+                    urlLength -= 6;
+                }
+                // 4 = "&lt;".length()  || "&gt;".length()
+                else if ((urlLength > 4) && (endsWithIgnoreCase(url, urlLength, "&lt;") || endsWithIgnoreCase(url, urlLength, "&gt;"))) {
+                    urlLength -= 4;
+                }
+            }
+
+            // we got the URL string, now we validate it and convert it into a hyperlink...
+            String urlStr = url.substring(0, urlLength);
+            String urlToDisplay = htmlEncode(urlStr);
+
+            if (urlStr.toLowerCase().startsWith("www.")) {
+                urlStr = "http://" + urlStr;
+            }
+
+            // the chars trimmed off the end are looked at again, unless they had "&amp;"s in them
+            int next = ampersands ? end : (start + urlLength);
+
+            if (UrlUtils.verifyHierachicalURI(urlStr, new String[] {"javascript"})) {
+                copyTo(start);
+                out.append("<a href=\"").append(urlStr).append('\"').append(targetString).append('>').append(urlToDisplay).append("</a>");
+                lastSkipped = null;
+                lastWritten = '>';
+                copied = start + urlLength;
+
+                if (ampersands) {
+                    // anything trimmed off keeps its "&amp;"s turned into '&'
+                    if (urlLength < url.length()) {
+                        out.append(url, urlLength, url.length());
+                        lastWritten = url.charAt(url.length() - 1);
+                    }
+
+                    copied = end;
+                }
+
+                pos = next;
+            } else {
+                skipURL(start, end, ampersands, next);
             }
         }
 
-        //reset the scheme to the starting character
-        schemeStart++;
+        /**
+         * Leave the URL in <code>url</code> as it is, apart from any "&amp;amp;"s in it that
+         * were turned into '&amp;', and carry on looking for URLs at <code>next</code>.
+         */
+        private void skipURL(int start, int end, boolean ampersands, int next) throws IOException {
+            if (ampersands && (url.length() > 0)) {
+                lastSkipped = url.toString();
+                copyTo(start);
+                out.append(lastSkipped);
+                lastWritten = url.charAt(url.length() - 1);
+                copied = end;
+            }
 
-        // we don't want to do this, otherwise an invalid scheme would ruin the linking for later schemes
-        //        if (UrlUtils.isValidScheme(str.substring(schemeStart, schemeIndex)))
-        //            return schemeStart;
-        //        else
-        //            return -1;
-        return schemeStart;
+            pos = next;
+        }
     }
 }
@@ -8,18 +8,24 @@ import org.xml.sax.*;
 import org.xml.sax.helpers.AttributesImpl;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.beans.IntrospectionException;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 
 import java.io.IOException;
 
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Method;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.WeakHashMap;
 
 
 /**
@@ -27,6 +33,13 @@ import java.util.Vector;
  * this by simulating a SAX XMLReader which an xslt processor can use as
  * a SAXSource.
  *
+ * <p>The object graph is walked without recursion. An object found inside
+ * itself is written as an empty element rather than followed round again,
+ * and {@link #setMaxDepth} can bound how far down the graph is followed.
+ * An Iterator or Enumeration, whether given as the object or returned by a
+ * getter, is consumed an item at a time as its events are written, so it
+ * can stream more items than would fit in memory.</p>
+ *
  * @author <a href="mailto:salaman@qoretech.com">Victor Salaman</a>
  * @version $Revision$
  */
@@ -36,13 +49,31 @@ public class XMLReaderAdapter implements Locator, XMLReader {
     private static final Object[] NULLPARAMS = new Object[0];
     private static final String EMPTYSTRING = null; //new String();
 
+    /**
+     * ClassInfo by class. The classes are weakly held so that they can still be
+     * unloaded, and the ClassInfos, which refer back to their class through their
+     * methods, are softly held.
+     */
+    private static final Map classInfos = new WeakHashMap();
+
     //~ Instance fields ////////////////////////////////////////////////////////
 
     private AttributesImpl atts = new AttributesImpl();
     private ContentHandler contentHandler = new DefaultHandler();
+
+    /**
+     * The objects open on the stack, by identity.
+     */
+    private IdentityHashMap path = new IdentityHashMap();
+
+    /**
+     * Open elements, innermost last.
+     */
+    private List stack = new ArrayList();
     private Object object;
     private String root = null;
     private String systemId;
+    private int maxDepth = Integer.MAX_VALUE;
 
     //~ Constructors ///////////////////////////////////////////////////////////
 
@@ -97,6 +128,19 @@ public class XMLReaderAdapter implements Locator, XMLReader {
         return false;
     }
 
+    /**
+     * Limit how deeply elements are nested, the root being at depth 1. Elements at
+     * the maximum depth are left empty unless they hold a string or a value without
+     * properties. Unlimited by default.
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
     public int getLineNumber() {
         return -1;
     }
@@ -143,11 +187,33 @@ public class XMLReaderAdapter implements Locator, XMLReader {
 
         contentHandler.setDocumentLocator(this);
         contentHandler.startDocument();
-        walk(object, (root == null) ? "data" : root, false);
+        walk(object, (root == null) ? "data" : root);
         contentHandler.endDocument();
     }
 
-    private String getTagName(String tagName) {
+    /**
+     * The cached description of a class, worked out on first use.
+     */
+    private static ClassInfo getClassInfo(Class c) throws IntrospectionException {
+        synchronized (classInfos) {
+            Reference ref = (Reference) classInfos.get(c);
+            ClassInfo info = (ref == null) ? null : (ClassInfo) ref.get();
+
+            if (info != null) {
+                return info;
+            }
+        }
+
+        ClassInfo info = new ClassInfo(c);
+
+        synchronized (classInfos) {
+            classInfos.put(c, new SoftReference(info));
+        }
+
+        return info;
+    }
+
+    private static String getTagName(String tagName) {
         boolean lastWasLower = false;
         int bufIndex = 0;
         int oIndex = tagName.length();
@@ -173,8 +239,13 @@ public class XMLReaderAdapter implements Locator, XMLReader {
         return buff.toString();
     }
 
-    private void walk(Object object, String name, boolean useKey) throws SAXException {
-        boolean accessorsFound;
+    /**
+     * Start the element for an object and write out what it holds, pushing a Frame
+     * for it if it has more to come. With <code>useKey</code> the element is an
+     * <code>item</code> with <code>name</code> as its key.
+     */
+    private void open(Object object, String name, boolean useKey) throws SAXException {
+        String element = name;
 
         if (!useKey) {
             contentHandler.startElement(EMPTYSTRING, name, EMPTYSTRING, atts);
@@ -182,113 +253,256 @@ public class XMLReaderAdapter implements Locator, XMLReader {
             AttributesImpl atts = new AttributesImpl();
             atts.addAttribute(EMPTYSTRING, EMPTYSTRING, "key", "key", name);
             contentHandler.startElement(EMPTYSTRING, "item", EMPTYSTRING, atts);
+            element = "item";
         }
 
-        try {
-            if (object != null) {
-                Class c = object.getClass();
+        if (object == null) {
+            contentHandler.endElement(EMPTYSTRING, element, EMPTYSTRING);
 
-                if (c.isAssignableFrom(String.class)) {
-                    String value = (String) object;
-                    contentHandler.characters(value.toCharArray(), 0, value.length());
-                } else {
-                    PropertyDescriptor[] props = Introspector.getBeanInfo(c, Object.class).getPropertyDescriptors();
-                    accessorsFound = false;
+            return;
+        }
 
-                    for (int i = 0; i < props.length; i++) {
-                        Method m = props[i].getReadMethod();
-                        String s = m.getName();
+        ClassInfo info = classInfo(object.getClass());
 
-                        if ((s.startsWith("get") && (s.length() > 3)) || (s.startsWith("is") && (s.length() > 2))) {
-                            String attributeName = getTagName(s.substring(s.startsWith("is") ? 2 : 3));
-                            Class rt = m.getReturnType();
+        if (info.kind == ClassInfo.STRING) {
+            String value = (String) object;
+            contentHandler.characters(value.toCharArray(), 0, value.length());
+        } else if ((info.readMethods.length > 0) && (stack.size() < (maxDepth - 1)) && !path.containsKey(object)) {
+            stack.add(new Frame(element, object, info));
+            path.put(object, object);
 
-                            if (attributeName.equals("class")) {
-                                continue;
-                            }
+            return;
+        } else if (info.readMethods.length == 0) {
+            String value = object.toString();
+            contentHandler.characters(value.toCharArray(), 0, value.length());
+        }
 
-                            if (m.getParameterTypes().length == 0) {
-                                Object value = m.invoke(object, NULLPARAMS);
+        contentHandler.endElement(EMPTYSTRING, element, EMPTYSTRING);
+    }
 
-                                if (value == null) {
-                                    continue;
-                                }
+    /**
+     * Start the element for a collection, enumeration, iterator or map, whose
+     * contents are written one at a time as <code>item</code> elements.
+     */
+    private void openItems(Object object, int kind, String name) throws SAXException {
+        contentHandler.startElement(EMPTYSTRING, name, EMPTYSTRING, atts);
 
-                                accessorsFound = true;
+        if ((stack.size() < (maxDepth - 1)) && !path.containsKey(object)) {
+            Iterator items;
 
-                                if (Collection.class.isAssignableFrom(value.getClass())) {
-                                    Collection cole = (Collection) value;
-                                    contentHandler.startElement(EMPTYSTRING, attributeName, EMPTYSTRING, atts);
+            switch (kind) {
+            case ClassInfo.COLLECTION:
+                items = ((Collection) object).iterator();
 
-                                    for (Iterator colIter = cole.iterator();
-                                            colIter.hasNext();) {
-                                        Object obj = (Object) colIter.next();
-                                        walk(obj, "item", false);
-                                    }
+                break;
 
-                                    contentHandler.endElement(EMPTYSTRING, attributeName, EMPTYSTRING);
+            case ClassInfo.ENUMERATION:
+                items = new EnumerationIterator((Enumeration) object);
 
-                                    continue;
-                                } else if (Enumeration.class.isAssignableFrom(value.getClass())) {
-                                    Enumeration e = (Enumeration) value;
-                                    contentHandler.startElement(EMPTYSTRING, attributeName, EMPTYSTRING, atts);
+                break;
 
-                                    while (e.hasMoreElements()) {
-                                        Object obj = (Object) e.nextElement();
-                                        walk(obj, "item", false);
-                                    }
+            case ClassInfo.MAP:
+                items = ((Map) object).entrySet().iterator();
 
-                                    contentHandler.endElement(EMPTYSTRING, attributeName, EMPTYSTRING);
+                break;
 
-                                    continue;
-                                } else if (Vector.class.isAssignableFrom(value.getClass())) {
-                                    Vector vec = (Vector) value;
-                                    contentHandler.startElement(EMPTYSTRING, attributeName, EMPTYSTRING, atts);
+            default:
+                items = (Iterator) object;
+            }
 
-                                    for (int ix = 0; ix < vec.size(); ix++) {
-                                        Object obj = (Object) vec.elementAt(ix);
-                                        walk(obj, "item", false);
-                                    }
+            stack.add(new Frame(name, object, items, kind == ClassInfo.MAP));
+            path.put(object, object);
 
-                                    contentHandler.endElement(EMPTYSTRING, attributeName, EMPTYSTRING);
+            return;
+        }
 
-                                    continue;
-                                }
+        contentHandler.endElement(EMPTYSTRING, name, EMPTYSTRING);
+    }
 
-                                if (Map.class.isAssignableFrom(value.getClass())) {
-                                    contentHandler.startElement(EMPTYSTRING, attributeName, EMPTYSTRING, atts);
+    /**
+     * The cached description of a class, as a SAXException if it can't be introspected.
+     */
+    private ClassInfo classInfo(Class c) throws SAXException {
+        try {
+            return getClassInfo(c);
+        } catch (IntrospectionException e) {
+            throw new SAXException(e);
+        }
+    }
 
-                                    Map map = (Map) value;
+    /**
+     * Write out an object graph without recursing, keeping the elements still open
+     * on a stack. An object already open further up is written as an empty element,
+     * and so is any bean or container that would go deeper than the maximum depth.
+     */
+    private void walk(Object object, String name) throws SAXException {
+        stack.clear();
+        path.clear();
 
-                                    for (Iterator iter = map.entrySet().iterator();
-                                            iter.hasNext();) {
-                                        Map.Entry entry = (Map.Entry) iter.next();
-                                        walk(entry.getValue(), (String) entry.getKey(), true);
-                                    }
+        int kind = classInfo(object.getClass()).kind;
 
-                                    contentHandler.endElement(EMPTYSTRING, attributeName, EMPTYSTRING);
+        if ((kind == ClassInfo.ENUMERATION) || (kind == ClassInfo.ITERATOR)) {
+            openItems(object, kind, name);
+        } else {
+            open(object, name, false);
+        }
 
-                                    continue;
-                                } else {
-                                    walk(value, attributeName, false);
-                                }
-                            }
+        try {
+            while (!stack.isEmpty()) {
+                Frame frame = (Frame) stack.get(stack.size() - 1);
+
+                if (frame.items != null) {
+                    if (frame.items.hasNext()) {
+                        Object item = frame.items.next();
+
+                        if (frame.keyed) {
+                            Map.Entry entry = (Map.Entry) item;
+                            open(entry.getValue(), (String) entry.getKey(), true);
+                        } else {
+                            open(item, "item", false);
                         }
-                    }
 
-                    if (!accessorsFound) {
-                        contentHandler.characters(object.toString().toCharArray(), 0, object.toString().length());
+                        continue;
+                    }
+                } else if (frame.next < frame.info.readMethods.length) {
+                    Object value = frame.info.readMethods[frame.next].invoke(frame.object, NULLPARAMS);
+                    String attributeName = frame.info.tagNames[frame.next++];
+
+                    if (value != null) {
+                        frame.accessorsFound = true;
+                        kind = classInfo(value.getClass()).kind;
+
+                        if ((kind == ClassInfo.BEAN) || (kind == ClassInfo.STRING)) {
+                            open(value, attributeName, false);
+                        } else {
+                            openItems(value, kind, attributeName);
+                        }
                     }
+
+                    continue;
+                } else if (!frame.accessorsFound) {
+                    String value = frame.object.toString();
+                    contentHandler.characters(value.toCharArray(), 0, value.length());
                 }
+
+                stack.remove(stack.size() - 1);
+                path.remove(frame.object);
+                contentHandler.endElement(EMPTYSTRING, frame.element, EMPTYSTRING);
             }
+        } catch (SAXException e) {
+            throw e;
         } catch (Exception e) {
             throw new SAXException(e);
         }
+    }
 
-        if (!useKey) {
-            contentHandler.endElement(EMPTYSTRING, name, EMPTYSTRING);
-        } else {
-            contentHandler.endElement(EMPTYSTRING, "item", EMPTYSTRING);
+    //~ Inner Classes //////////////////////////////////////////////////////////
+
+    /**
+     * What walk needs to know about a class: how its values are written out and,
+     * for beans, their getters along with the element name of each.
+     */
+    private static class ClassInfo {
+        static final int BEAN = 0;
+        static final int STRING = 1;
+        static final int COLLECTION = 2;
+        static final int ENUMERATION = 3;
+        static final int MAP = 4;
+        static final int ITERATOR = 5;
+        Method[] readMethods;
+        String[] tagNames;
+        int kind;
+
+        ClassInfo(Class c) throws IntrospectionException {
+            if (c == String.class) {
+                kind = STRING;
+            } else if (Collection.class.isAssignableFrom(c)) {
+                kind = COLLECTION;
+            } else if (Enumeration.class.isAssignableFrom(c)) {
+                kind = ENUMERATION;
+            } else if (Map.class.isAssignableFrom(c)) {
+                kind = MAP;
+            } else if (Iterator.class.isAssignableFrom(c)) {
+                kind = ITERATOR;
+            } else {
+                kind = BEAN;
+            }
+
+            List methods = new ArrayList();
+            List names = new ArrayList();
+
+            if (kind != STRING) {
+                PropertyDescriptor[] props = Introspector.getBeanInfo(c, Object.class).getPropertyDescriptors();
+
+                for (int i = 0; i < props.length; i++) {
+                    Method m = props[i].getReadMethod();
+
+                    if ((m == null) || (m.getParameterTypes().length != 0)) {
+                        continue;
+                    }
+
+                    String s = m.getName();
+
+                    if ((s.startsWith("get") && (s.length() > 3)) || (s.startsWith("is") && (s.length() > 2))) {
+                        String tagName = getTagName(s.substring(s.startsWith("is") ? 2 : 3));
+
+                        if (!tagName.equals("class")) {
+                            methods.add(m);
+                            names.add(tagName);
+                        }
+                    }
+                }
+            }
+
+            readMethods = (Method[]) methods.toArray(new Method[methods.size()]);
+            tagNames = (String[]) names.toArray(new String[names.size()]);
+        }
+    }
+
+    private static class EnumerationIterator implements Iterator {
+        private Enumeration e;
+
+        EnumerationIterator(Enumeration e) {
+            this.e = e;
+        }
+
+        public boolean hasNext() {
+            return e.hasMoreElements();
+        }
+
+        public Object next() {
+            return e.nextElement();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * An element still open while walking: either a bean whose properties are
+     * being written or a container whose items are.
+     */
+    private static class Frame {
+        ClassInfo info;
+        Iterator items;
+        Object object;
+        String element;
+        boolean accessorsFound;
+        boolean keyed;
+        int next;
+
+        Frame(String element, Object object, ClassInfo info) {
+            this.element = element;
+            this.object = object;
+            this.info = info;
+        }
+
+        Frame(String element, Object object, Iterator items, boolean keyed) {
+            this.element = element;
+            this.object = object;
+            this.items = items;
+            this.keyed = keyed;
         }
     }
 }
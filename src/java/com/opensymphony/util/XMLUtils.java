@@ -13,25 +13,38 @@ import org.w3c.dom.*;
 
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 
 import java.io.*;
 
 import java.net.URL;
 
-import java.util.HashMap;
+import java.security.MessageDigest;
+
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
@@ -46,8 +59,8 @@ import javax.xml.transform.stream.StreamSource;
  * <li>Creating blank Documents.
  * <li>Serializing (pretty-printing) Document back to XML stream.
  * <li>Extracting nodes using X-Path expressions.
- * <li>Cloning nodes.
- * <li>Performing XSL transformations.
+ * <li>Cloning and importing nodes.
+ * <li>Performing XSL transformations, including streaming chains of compiled sheets.
  * </ul>
  *
  * <p>This class contains static methods only and is not meant to be instantiated. It also
@@ -60,23 +73,72 @@ import javax.xml.transform.stream.StreamSource;
 public class XMLUtils {
     //~ Static fields/initializers /////////////////////////////////////////////
 
-    private static final XPathProvider xPathProvider;
-    private static final XMLPrinterProvider xmlPrinterProvider;
+    private static final ProviderFactory.Registration xPathProvider;
+    private static final ProviderFactory.Registration xmlPrinterProvider;
 
     static {
         ProviderFactory factory = ProviderFactory.getInstance();
-        xPathProvider = (XPathProvider) factory.getProvider("xpath.provider", com.opensymphony.provider.xpath.XalanXPathProvider.class.getName());
-        xmlPrinterProvider = (XMLPrinterProvider) factory.getProvider("xmlprinter.provider", 
+        xPathProvider = factory.getRegistration("xpath.provider", com.opensymphony.provider.xpath.XalanXPathProvider.class.getName(), XPathProvider.class);
+        xmlPrinterProvider = factory.getRegistration("xmlprinter.provider", 
             //			com.opensymphony.provider.xmlprinter.XalanXMLPrinterProvider.class.getName()
-            com.opensymphony.provider.xmlprinter.DefaultXMLPrinterProvider.class.getName());
+            com.opensymphony.provider.xmlprinter.DefaultXMLPrinterProvider.class.getName(), XMLPrinterProvider.class);
     }
 
+    /**
+     * Document classes found to lack DOM level 2 <code>importNode</code>, weakly held.
+     */
+    private static final Map levelOneDocuments = Collections.synchronizedMap(new WeakHashMap());
+
+    /**
+     * Looking up a factory scans the classpath, so it is only done once. The factory
+     * is only used to make builders, which are then kept per thread.
+     */
+    private static final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+
+    /**
+     * Factory for the namespace aware parsers that feed streaming transforms.
+     */
+    private static final SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
+
+    static {
+        saxParserFactory.setNamespaceAware(true);
+    }
+
+    /**
+     * The idle DocumentBuilder of each thread, if it has one.
+     */
+    private static final ThreadLocal documentBuilders = new ThreadLocal();
+
+    /**
+     * Whether the builders can be reset, and so kept to be used again. Parsers older
+     * than JAXP 1.3 can't.
+     */
+    private static final boolean resettableBuilders = canResetBuilders();
+
+    /**
+     * TransformerFactory isn't thread safe, so each thread has its own.
+     */
+    private static final ThreadLocal transformerFactories = new ThreadLocal() {
+        protected Object initialValue() {
+            return TransformerFactory.newInstance();
+        }
+    };
+
+    /**
+     * Compiled XSL sheets by key, as CachedTemplates. Looking a sheet up takes no
+     * lock; adding sheets and dropping the least recently used hold xslCacheLock.
+     */
+    private static final Map xslCache = new ConcurrentHashMap();
+    private static final AtomicLong cacheEvictions = new AtomicLong();
+    private static final AtomicLong cacheHits = new AtomicLong();
+    private static final AtomicLong cacheMisses = new AtomicLong();
+    private static final Object xslCacheLock = new Object();
+    private static volatile boolean cacheByContent = false;
+
     /**
      * The cache size for the XSL transforms
      */
-    private static int cacheSize = 10;
-    private static HashMap xslCache = new HashMap();
-    private static LinkedList xslKeyList = new LinkedList();
+    private static volatile int cacheSize = 10;
 
     //~ Methods ////////////////////////////////////////////////////////////////
 
@@ -100,100 +162,57 @@ public class XMLUtils {
     /**
      * Clone given Node into target Document. If targe is null, same Document will be used.
      * If deep is specified, all children below will also be cloned.
+     * <p>The tree is copied a node at a time without recursion, so it can be of any depth.
+     * Each node is copied with DOM level 2 <code>importNode</code> where the target supports
+     * it, and by hand where it doesn't.</p>
      */
     public final static Node cloneNode(Node node, Document target, boolean deep) throws DOMException {
-        if ((target == null) || (node.getOwnerDocument() == target)) {
-            // same Document
-            return node.cloneNode(deep);
-        } else {
-            //DOM level 2 provides this in Document, so once xalan switches to that,
-            //we can take out all the below and just call target.importNode(node, deep);
-            //For now, we implement based on the javadocs for importNode
-            Node newNode;
-            int nodeType = node.getNodeType();
-
-            switch (nodeType) {
-            case Node.ATTRIBUTE_NODE:
-                newNode = target.createAttribute(node.getNodeName());
-
-                break;
-
-            case Node.DOCUMENT_FRAGMENT_NODE:
-                newNode = target.createDocumentFragment();
-
-                break;
-
-            case Node.ELEMENT_NODE:
-
-                Element newElement = target.createElement(node.getNodeName());
-                NamedNodeMap nodeAttr = node.getAttributes();
-
-                if (nodeAttr != null) {
-                    for (int i = 0; i < nodeAttr.getLength(); i++) {
-                        Attr attr = (Attr) nodeAttr.item(i);
+        boolean sameDocument = (target == null) || (node.getOwnerDocument() == target);
 
-                        if (attr.getSpecified()) {
-                            Attr newAttr = (Attr) cloneNode(attr, target, true);
-                            newElement.setAttributeNode(newAttr);
-                        }
-                    }
-                }
-
-                newNode = newElement;
-
-                break;
-
-            case Node.ENTITY_REFERENCE_NODE:
-                newNode = target.createEntityReference(node.getNodeName());
-
-                break;
-
-            case Node.PROCESSING_INSTRUCTION_NODE:
-                newNode = target.createProcessingInstruction(node.getNodeName(), node.getNodeValue());
-
-                break;
-
-            case Node.TEXT_NODE:
-                newNode = target.createTextNode(node.getNodeValue());
-
-                break;
-
-            case Node.CDATA_SECTION_NODE:
-                newNode = target.createCDATASection(node.getNodeValue());
-
-                break;
-
-            case Node.COMMENT_NODE:
-                newNode = target.createComment(node.getNodeValue());
+        if (sameDocument && (node.getNodeType() == Node.DOCUMENT_NODE)) {
+            return node.cloneNode(deep);
+        }
 
-                break;
+        Node newNode = copyNode(node, target, sameDocument);
 
-            case Node.NOTATION_NODE:
-            case Node.ENTITY_NODE:
-            case Node.DOCUMENT_TYPE_NODE:
-            case Node.DOCUMENT_NODE:default:
-                throw new IllegalArgumentException("Importing of " + node + " not supported yet");
-            }
+        if (deep) {
+            copyChildren(node, newNode, target, sameDocument);
+        }
 
-            if (deep) {
-                for (Node child = node.getFirstChild(); child != null;
-                        child = child.getNextSibling()) {
-                    newNode.appendChild(cloneNode(child, target, true));
-                }
-            }
+        return newNode;
+    }
 
-            return newNode;
+    /**
+     * Deep clone each of the given Nodes into target Document, appending the copies in
+     * order to a new DocumentFragment. The list may be live, for example the children of
+     * an Element of target, as it is not changed.
+     */
+    public final static DocumentFragment importNodes(NodeList nodes, Document target) throws DOMException {
+        DocumentFragment fragment = target.createDocumentFragment();
+        int length = nodes.getLength();
+
+        for (int i = 0; i < length; i++) {
+            Node node = nodes.item(i);
+            boolean sameDocument = node.getOwnerDocument() == target;
+            Node newNode = copyNode(node, target, sameDocument);
+            copyChildren(node, newNode, target, sameDocument);
+            fragment.appendChild(newNode);
         }
+
+        return fragment;
     }
 
     /**
      * Create blank Document.
      */
     public final static Document newDocument() throws ParserConfigurationException {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
+        DocumentBuilder builder = getDocumentBuilder();
 
-        return builder.newDocument();
+        try {
+            return builder.newDocument();
+        } finally {
+            releaseDocumentBuilder(builder);
+        }
     }
 
     /**
@@ -210,10 +229,13 @@ public class XMLUtils {
      * Parse an InputSource of XML into Document.
      */
     public final static Document parse(InputSource in) throws ParserConfigurationException, IOException, SAXException {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
+        DocumentBuilder builder = getDocumentBuilder();
 
-        return builder.parse(in);
+        try {
+            return builder.parse(in);
+        } finally {
+            releaseDocumentBuilder(builder);
+        }
     }
 
     /**
@@ -256,7 +278,7 @@ public class XMLUtils {
      * Pretty-print a Document to Writer.
      */
     public final static void print(Document document, Writer out) throws IOException {
-        xmlPrinterProvider.print(document, out);
+        ((XMLPrinterProvider) xmlPrinterProvider.getProvider()).print(document, out);
     }
 
     /**
@@ -295,7 +317,7 @@ public class XMLUtils {
      */
     public final static Node xpath(Node base, String xpath) throws TransformerException {
         try {
-            return xPathProvider.getNode(base, xpath);
+            return ((XPathProvider) xPathProvider.getProvider()).getNode(base, xpath);
         } catch (ProviderInvocationException e) {
             try {
                 throw e.getCause();
@@ -314,7 +336,7 @@ public class XMLUtils {
      */
     public final static NodeList xpathList(Node base, String xpath) throws TransformerException {
         try {
-            return xPathProvider.getNodes(base, xpath);
+            return ((XPathProvider) xPathProvider.getProvider()).getNodes(base, xpath);
         } catch (ProviderInvocationException e) {
             try {
                 throw e.getCause();
@@ -333,7 +355,10 @@ public class XMLUtils {
      * @param newCacheSize
      */
     public static void setCacheSize(int newCacheSize) {
-        cacheSize = newCacheSize;
+        synchronized (xslCacheLock) {
+            cacheSize = newCacheSize;
+            trimCache();
+        }
     }
 
     /**
@@ -344,10 +369,53 @@ public class XMLUtils {
         return cacheSize;
     }
 
+    /**
+     * Whether {@link #transform(Reader, Reader, Writer, Map)} should cache XSL sheets by
+     * a hash of their content. By default the key is <code>xsl.toString()</code>, so only
+     * the very same Reader will find its sheet in the cache. Keying by content means the
+     * sheet has to be read into memory first.
+     * @param newCacheByContent
+     */
+    public static void setCacheByContent(boolean newCacheByContent) {
+        cacheByContent = newCacheByContent;
+    }
+
+    /**
+     * Whether XSL sheets read from a Reader are cached by a hash of their content
+     * rather than by <code>xsl.toString()</code>.
+     * @see #setCacheByContent(boolean)
+     */
+    public static boolean isCacheByContent() {
+        return cacheByContent;
+    }
+
+    /**
+     * @return the number of transforms that found their XSL sheet in the cache
+     */
+    public static long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return the number of transforms with a key that had to compile their XSL sheet
+     */
+    public static long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * @return the number of XSL sheets dropped from the cache to keep it within its size
+     */
+    public static long getCacheEvictions() {
+        return cacheEvictions.get();
+    }
+
     /**
      * This method applies an XSL sheet to an XML document.
      * <p>2002/Apr/7, fixed bug 540875, first reported by Erik Weber, and
      * added configurable cache size.
+     * <p>The compiled sheet is cached under <code>xslkey</code>, unless it is null;
+     * each call gets its own Transformer, so this is safe to call from many threads.
      * @param xml the XML source
      * @param xsl the XSL source
      * @param result where to put the response
@@ -357,57 +425,8 @@ public class XMLUtils {
      */
     public final static void transform(Reader xml, Reader xsl, Writer result, Map parameters, String xslkey) throws TransformerException {
         try {
-            Transformer t;
-
-            if ((null != xslkey) && (xslCache.containsKey(xslkey))) {
-                t = (Transformer) xslCache.get(xslkey);
-
-                synchronized (xslKeyList) {
-                    xslKeyList.remove(xslkey);
-                    xslKeyList.add(xslkey);
-                }
-            } else {
-                TransformerFactory factory = TransformerFactory.newInstance();
-                t = factory.newTransformer(new StreamSource(xsl));
-
-                if (null != xslkey) {
-                    xslCache.put(xslkey, t);
-                    xslKeyList.add(xslkey);
-
-                    synchronized (xslKeyList) {
-                        int s = xslKeyList.size();
-                        int cacheSize = getCacheSize();
-                        int iterations = 1;
-
-                        /* if the cache size was adjusted after the cache is initialized,
-                         * we don't want to shrink TOO fast, just to be nice to runtime
-                         * performance
-                         *
-                         * That's my story, and I'm stickin' to it
-                         */
-                        if (s > (cacheSize + 1)) {
-                            iterations = 2;
-                        }
-
-                        while (iterations-- != 0) {
-                            Object removalKey = xslKeyList.get(0);
-                            xslKeyList.remove(0);
-                            xslCache.remove(removalKey);
-                        }
-                    }
-                }
-            }
-
-            if (parameters != null) {
-                Iterator i = parameters.keySet().iterator();
-
-                while (i.hasNext()) {
-                    Object key = i.next();
-                    Object value = parameters.get(key);
-                    t.setParameter(key.toString(), value.toString());
-                }
-            }
-
+            Transformer t = getTemplates(xsl, xslkey).newTransformer();
+            setParameters(t, parameters);
             t.transform(new StreamSource(xml), new StreamResult(result));
         } catch (TransformerConfigurationException tce) {
             throw new TransformerException(tce);
@@ -418,7 +437,28 @@ public class XMLUtils {
      * Perform XSL transformation, with params.
      */
     public final static void transform(Reader xml, Reader xsl, Writer result, Map parameters) throws TransformerException {
-        transform(xml, xsl, result, parameters, xsl.toString());
+        if (!isCacheByContent()) {
+            transform(xml, xsl, result, parameters, xsl.toString());
+
+            return;
+        }
+
+        String content;
+
+        try {
+            StringWriter buffer = new StringWriter();
+            char[] chars = new char[4096];
+
+            for (int n; (n = xsl.read(chars)) != -1;) {
+                buffer.write(chars, 0, n);
+            }
+
+            content = buffer.toString();
+        } catch (IOException e) {
+            throw new TransformerException(e);
+        }
+
+        transform(xml, new StringReader(content), result, parameters, getContentKey(content));
     }
 
     /**
@@ -445,7 +485,7 @@ public class XMLUtils {
     public final static Document transform(Document xml, Document xsl) throws ParserConfigurationException, TransformerException {
         try {
             Document result = newDocument();
-            TransformerFactory factory = TransformerFactory.newInstance();
+            TransformerFactory factory = (TransformerFactory) transformerFactories.get();
             Transformer t = factory.newTransformer(new DOMSource(xsl));
             t.transform(new DOMSource(xml), new DOMResult(result));
 
@@ -454,4 +494,385 @@ public class XMLUtils {
             throw new TransformerException(tce);
         }
     }
+
+    /**
+     * Compile an XSL sheet for use in {@link #transform(Source, Templates[], Result, Map)},
+     * caching it under <code>xslkey</code> unless that is null. The compiled sheet is
+     * thread safe and can be used any number of times.
+     */
+    public final static Templates compile(Reader xsl, String xslkey) throws TransformerException {
+        return getTemplates(xsl, xslkey);
+    }
+
+    /**
+     * Stream XML through a chain of compiled XSL sheets, each one passing its output
+     * on to the next as SAX events. Neither the source, the result nor anything in
+     * between is built as a DOM or serialized, although each sheet still has to keep
+     * the compact tree XSLT needs of its own input. With no sheets at all the source
+     * is copied to the result as it is read.
+     * @param xml the XML source
+     * @param stages the sheets to apply, in order
+     * @param result where to put the output of the last sheet
+     * @param parameters a map of params given to every sheet, may be null
+     * @throws TransformerException
+     */
+    public final static void transform(Source xml, Templates[] stages, Result result, Map parameters) throws TransformerException {
+        SAXTransformerFactory factory = getSAXTransformerFactory();
+
+        if (stages.length == 0) {
+            factory.newTransformer().transform(xml, result);
+
+            return;
+        }
+
+        TransformerHandler first = factory.newTransformerHandler(stages[0]);
+        TransformerHandler last = first;
+        setParameters(first.getTransformer(), parameters);
+
+        for (int i = 1; i < stages.length; i++) {
+            TransformerHandler handler = factory.newTransformerHandler(stages[i]);
+            setParameters(handler.getTransformer(), parameters);
+            last.setResult(new SAXResult(handler));
+            last = handler;
+        }
+
+        last.setResult(result);
+
+        InputSource in = SAXSource.sourceToInputSource(xml);
+
+        if (in == null) {
+            // not a stream, so let the identity transform read it
+            factory.newTransformer().transform(xml, new SAXResult(first));
+
+            return;
+        }
+
+        try {
+            XMLReader reader = (xml instanceof SAXSource) ? ((SAXSource) xml).getXMLReader() : null;
+
+            if (reader == null) {
+                reader = newXMLReader();
+            }
+
+            reader.setContentHandler(first);
+            reader.setDTDHandler(first);
+
+            try {
+                reader.setProperty("http://xml.org/sax/properties/lexical-handler", first);
+            } catch (SAXException e) {
+                // the parser can't report comments, which are then left out
+            }
+
+            reader.parse(in);
+        } catch (SAXException e) {
+            if (e.getException() instanceof TransformerException) {
+                throw (TransformerException) e.getException();
+            }
+
+            throw new TransformerException(e);
+        } catch (IOException e) {
+            throw new TransformerException(e);
+        } catch (ParserConfigurationException e) {
+            throw new TransformerException(e);
+        }
+    }
+
+    /**
+     * Stream XML through a chain of compiled XSL sheets, with params.
+     */
+    public final static void transform(Reader xml, Templates[] stages, Writer result, Map parameters) throws TransformerException {
+        transform(new StreamSource(xml), stages, new StreamResult(result), parameters);
+    }
+
+    /**
+     * Stream XML through a chain of compiled XSL sheets.
+     */
+    public final static void transform(InputStream xml, Templates[] stages, OutputStream result) throws TransformerException {
+        transform(new StreamSource(xml), stages, new StreamResult(result), null);
+    }
+
+    /**
+     * Copy the children of <code>node</code> below <code>newNode</code>, walking down and
+     * along the tree rather than recursing. Attributes are copied whole by
+     * {@link #copyNode}, and nothing is copied below a node whose copy already has
+     * children, such as an entity reference the target Document could resolve itself.
+     */
+    private static void copyChildren(Node node, Node newNode, Document target, boolean sameDocument) {
+        if (newNode.hasChildNodes() || (newNode.getNodeType() == Node.ATTRIBUTE_NODE)) {
+            return;
+        }
+
+        Node child = node.getFirstChild();
+        Node parent = newNode;
+
+        while (child != null) {
+            Node copy = parent.appendChild(copyNode(child, target, sameDocument));
+
+            if ((child.getFirstChild() != null) && !copy.hasChildNodes()) {
+                child = child.getFirstChild();
+                parent = copy;
+
+                continue;
+            }
+
+            while ((child != node) && (child.getNextSibling() == null)) {
+                child = child.getParentNode();
+                parent = parent.getParentNode();
+            }
+
+            child = (child == node) ? null : child.getNextSibling();
+        }
+    }
+
+    /**
+     * Shallow copy of a Node into target Document, attributes included. An attribute
+     * is copied along with its value.
+     */
+    private static Node copyNode(Node node, Document target, boolean sameDocument) {
+        if (sameDocument) {
+            return node.cloneNode(false);
+        }
+
+        int nodeType = node.getNodeType();
+
+        switch (nodeType) {
+        case Node.NOTATION_NODE:
+        case Node.ENTITY_NODE:
+        case Node.DOCUMENT_TYPE_NODE:
+        case Node.DOCUMENT_NODE:
+            throw new IllegalArgumentException("Importing of " + node + " not supported yet");
+        }
+
+        if (!levelOneDocuments.containsKey(target.getClass())) {
+            try {
+                return target.importNode(node, false);
+            } catch (AbstractMethodError e) {
+                // a DOM level 1 implementation, so don't try again
+                levelOneDocuments.put(target.getClass(), Boolean.TRUE);
+            }
+        }
+
+        switch (nodeType) {
+        case Node.ATTRIBUTE_NODE:
+
+            Attr newAttr = target.createAttribute(node.getNodeName());
+            newAttr.setValue(node.getNodeValue());
+
+            return newAttr;
+
+        case Node.DOCUMENT_FRAGMENT_NODE:
+            return target.createDocumentFragment();
+
+        case Node.ELEMENT_NODE:
+
+            Element newElement = target.createElement(node.getNodeName());
+            NamedNodeMap nodeAttr = node.getAttributes();
+
+            if (nodeAttr != null) {
+                for (int i = 0; i < nodeAttr.getLength(); i++) {
+                    Attr attr = (Attr) nodeAttr.item(i);
+
+                    if (attr.getSpecified()) {
+                        newElement.setAttribute(attr.getName(), attr.getValue());
+                    }
+                }
+            }
+
+            return newElement;
+
+        case Node.ENTITY_REFERENCE_NODE:
+            return target.createEntityReference(node.getNodeName());
+
+        case Node.PROCESSING_INSTRUCTION_NODE:
+            return target.createProcessingInstruction(node.getNodeName(), node.getNodeValue());
+
+        case Node.TEXT_NODE:
+            return target.createTextNode(node.getNodeValue());
+
+        case Node.CDATA_SECTION_NODE:
+            return target.createCDATASection(node.getNodeValue());
+
+        case Node.COMMENT_NODE:
+            return target.createComment(node.getNodeValue());
+
+        default:
+            throw new IllegalArgumentException("Importing of " + node + " not supported yet");
+        }
+    }
+
+    /**
+     * Take the idle DocumentBuilder of this thread, or make a new one if it has none,
+     * for example because a parse is already running further up the stack.
+     */
+    private static DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilder builder = (DocumentBuilder) documentBuilders.get();
+
+        if (builder != null) {
+            documentBuilders.set(null);
+
+            return builder;
+        }
+
+        synchronized (documentBuilderFactory) {
+            return documentBuilderFactory.newDocumentBuilder();
+        }
+    }
+
+    /**
+     * Give a DocumentBuilder back to this thread to be used again, if it can be reset.
+     */
+    private static void releaseDocumentBuilder(DocumentBuilder builder) {
+        if (resettableBuilders) {
+            builder.reset();
+            documentBuilders.set(builder);
+        }
+    }
+
+    /**
+     * Try resetting a builder from the factory once, to see whether both the JAXP API
+     * and the parser implementation support it.
+     */
+    private static boolean canResetBuilders() {
+        try {
+            DocumentBuilder.class.getMethod("reset", new Class[0]);
+
+            synchronized (documentBuilderFactory) {
+                documentBuilderFactory.newDocumentBuilder().reset();
+            }
+
+            return true;
+        } catch (NoSuchMethodException e) {
+            // JAXP before 1.3
+            return false;
+        } catch (UnsupportedOperationException e) {
+            // a parser written before JAXP 1.3
+            return false;
+        } catch (ParserConfigurationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A key for an XSL sheet that only depends on its content.
+     */
+    private static String getContentKey(String xsl) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(xsl.getBytes("UTF-8"));
+            StringBuffer key = new StringBuffer("sha1:");
+
+            for (int i = 0; i < digest.length; i++) {
+                key.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+                key.append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+
+            return key.toString();
+        } catch (Exception e) {
+            // SHA-1 and UTF-8 are always there, but just in case
+            return xsl;
+        }
+    }
+
+    /**
+     * Get the compiled XSL sheet for <code>xslkey</code> from the cache, compiling and
+     * caching it if it isn't there. The lock is not held while compiling.
+     */
+    private static Templates getTemplates(Reader xsl, String xslkey) throws TransformerConfigurationException {
+        if (xslkey == null) {
+            return ((TransformerFactory) transformerFactories.get()).newTemplates(new StreamSource(xsl));
+        }
+
+        CachedTemplates cached = (CachedTemplates) xslCache.get(xslkey);
+
+        if (cached != null) {
+            cached.lastUsed = System.nanoTime();
+            cacheHits.incrementAndGet();
+
+            return cached.templates;
+        }
+
+        cacheMisses.incrementAndGet();
+
+        Templates templates = ((TransformerFactory) transformerFactories.get()).newTemplates(new StreamSource(xsl));
+
+        synchronized (xslCacheLock) {
+            xslCache.put(xslkey, new CachedTemplates(templates));
+            trimCache();
+        }
+
+        return templates;
+    }
+
+    /**
+     * The TransformerFactory of this thread, which must be able to chain sheets
+     * through SAX.
+     */
+    private static SAXTransformerFactory getSAXTransformerFactory() throws TransformerConfigurationException {
+        TransformerFactory factory = (TransformerFactory) transformerFactories.get();
+
+        if (!factory.getFeature(SAXTransformerFactory.FEATURE) || !factory.getFeature(SAXResult.FEATURE)) {
+            throw new TransformerConfigurationException(factory.getClass().getName() + " can't transform SAX events");
+        }
+
+        return (SAXTransformerFactory) factory;
+    }
+
+    private static void setParameters(Transformer t, Map parameters) {
+        if (parameters != null) {
+            Iterator i = parameters.keySet().iterator();
+
+            while (i.hasNext()) {
+                Object key = i.next();
+                Object value = parameters.get(key);
+                t.setParameter(key.toString(), value.toString());
+            }
+        }
+    }
+
+    /**
+     * Make a namespace aware reader, as XSLT needs, to feed SAX events to a transform.
+     */
+    private static XMLReader newXMLReader() throws ParserConfigurationException, SAXException {
+        synchronized (saxParserFactory) {
+            return saxParserFactory.newSAXParser().getXMLReader();
+        }
+    }
+
+    /**
+     * Drop the least recently used sheets until the cache fits its size; a size
+     * of 0 or less caches nothing. Must be called holding xslCacheLock.
+     */
+    private static void trimCache() {
+        while (xslCache.size() > Math.max(cacheSize, 0)) {
+            Object oldest = null;
+            long oldestUse = Long.MAX_VALUE;
+
+            for (Iterator i = xslCache.entrySet().iterator(); i.hasNext();) {
+                Map.Entry entry = (Map.Entry) i.next();
+                long lastUsed = ((CachedTemplates) entry.getValue()).lastUsed;
+
+                // nanoTime may wrap, so compare differences
+                if ((oldest == null) || ((lastUsed - oldestUse) < 0)) {
+                    oldest = entry.getKey();
+                    oldestUse = lastUsed;
+                }
+            }
+
+            xslCache.remove(oldest);
+            cacheEvictions.incrementAndGet();
+        }
+    }
+
+    //~ Inner Classes //////////////////////////////////////////////////////////
+
+    /**
+     * A compiled XSL sheet in the cache, with when it was last used.
+     */
+    private static class CachedTemplates {
+        final Templates templates;
+        volatile long lastUsed = System.nanoTime();
+
+        CachedTemplates(Templates templates) {
+            this.templates = templates;
+        }
+    }
 }
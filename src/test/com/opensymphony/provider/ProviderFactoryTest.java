@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.provider;
+
+import com.opensymphony.provider.bean.DefaultBeanProvider;
+
+import com.opensymphony.util.BeanUtils;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * JUnit test case for ProviderFactory
+ *
+ * @version $Revision$
+ */
+public class ProviderFactoryTest extends TestCase {
+    //~ Static fields/initializers /////////////////////////////////////////////
+
+    /**
+     * Names of the Recording providers, as they are destroyed.
+     */
+    static List destroyed = new ArrayList();
+
+    //~ Methods ////////////////////////////////////////////////////////////////
+
+    public void testDestroyWhileInUse() throws Exception {
+        final ProviderFactory factory = new ProviderFactory();
+        final ProviderFactory.Registration registration = factory.getRegistration("test.busy", First.class.getName(), null);
+        final int[] nulls = new int[1];
+        Thread[] readers = new Thread[4];
+
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                        public void run() {
+                            while (!isInterrupted()) {
+                                if (registration.getProvider() == null) {
+                                    synchronized (nulls) {
+                                        nulls[0]++;
+                                    }
+                                }
+                            }
+                        }
+                    };
+            readers[i].start();
+        }
+
+        try {
+            // a reader never sees a provider missing, only the old one or a new one
+            for (int i = 0; i < 20000; i++) {
+                factory.destroy();
+            }
+        } finally {
+            for (int i = 0; i < readers.length; i++) {
+                readers[i].interrupt();
+                readers[i].join();
+            }
+
+            factory.destroy();
+            destroyed.clear();
+        }
+
+        assertEquals(0, nulls[0]);
+    }
+
+    public void testDiscovery() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "providers" + System.currentTimeMillis());
+        File services = new File(dir, "META-INF/services");
+        services.mkdirs();
+
+        File config = new File(services, Recording.class.getName());
+        FileWriter out = new FileWriter(config);
+        out.write("# found before the default\n" + Second.class.getName() + "\n");
+        out.close();
+
+        Thread thread = Thread.currentThread();
+        ClassLoader contextLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(new URLClassLoader(new URL[] {dir.toURI().toURL()}, getClass().getClassLoader()));
+
+        try {
+            ProviderFactory factory = ProviderFactory.getInstance();
+            assertTrue(factory.getProvider("test.discovered", First.class.getName(), Recording.class) instanceof Second);
+
+            // without a type, or with the system property set, there's no looking
+            assertTrue(factory.getProvider("test.undiscovered", First.class.getName()) instanceof First);
+            System.setProperty("test.configured", First.class.getName());
+            assertTrue(factory.getProvider("test.configured", First.class.getName(), Recording.class) instanceof First);
+        } finally {
+            System.getProperties().remove("test.configured");
+            thread.setContextClassLoader(contextLoader);
+            config.delete();
+            services.delete();
+            new File(dir, "META-INF").delete();
+            dir.delete();
+        }
+    }
+
+    public void testRegistry() throws Exception {
+        // a factory of its own, so the shared one isn't destroyed
+        ProviderFactory factory = new ProviderFactory();
+        destroyed.clear();
+
+        Provider first = factory.getProvider("test.first", First.class.getName());
+        assertSame(first, factory.getProvider("test.first", First.class.getName()));
+
+        ProviderFactory.Registration second = factory.getRegistration("test.second", Second.class.getName(), null);
+        Provider loaded = second.getProvider();
+        Provider replacement = new First();
+        assertSame(loaded, factory.setProvider("test.second", replacement));
+        assertSame(replacement, second.getProvider());
+        assertSame(second, factory.getRegistration("test.second", Second.class.getName(), null));
+        assertEquals(1, destroyed.size());
+        assertEquals("second", destroyed.get(0));
+
+        try {
+            factory.setProvider("test.second", null);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+
+        // whoever got it from getProvider() may be holding on to it
+        try {
+            factory.setProvider("test.first", new Second());
+            fail();
+        } catch (IllegalStateException e) {
+        }
+
+        assertSame(first, factory.getProvider("test.first", First.class.getName()));
+
+        // last loaded, first destroyed
+        factory.setProvider("test.early", new Recording("early"));
+        factory.setProvider("test.late", new Recording("late"));
+        destroyed.clear();
+        factory.destroy();
+        assertTrue(destroyed.indexOf("late") > -1);
+        assertTrue(destroyed.indexOf("late") < destroyed.indexOf("early"));
+        assertTrue(destroyed.indexOf("first") > -1);
+
+        // registrations outlive destroy(), loading their providers afresh
+        assertTrue(second.getProvider() instanceof Second);
+        assertNotSame(loaded, second.getProvider());
+        assertNotSame(first, factory.getProvider("test.first", First.class.getName()));
+        assertNull(factory.getRegistration("test.late", null, null).getProvider());
+
+        Provider late = new Recording("late");
+        factory.setProvider("test.late", late);
+        assertSame(late, factory.getRegistration("test.late", null, null).getProvider());
+        factory.destroy();
+    }
+
+    public void testSwap() throws Exception {
+        ProviderFactory factory = ProviderFactory.getInstance();
+        Object bean = new Object();
+        assertNull(BeanUtils.getValue(bean, "answer"));
+
+        // and a copier for Object planned with the current provider
+        assertSame(Object.class, BeanUtils.getValues(bean, null).get("class"));
+
+        Provider old = factory.setProvider("bean.provider", new DefaultBeanProvider() {
+                public Object getProperty(Object object, String property) {
+                    return "answer".equals(property) ? "42" : super.getProperty(object, property);
+                }
+
+                public PropertyPath compilePath(String property) {
+                    return new PropertyPath() {
+                            public boolean setValue(Object object, Object value) {
+                                return false;
+                            }
+
+                            public Object getValue(Object object) {
+                                return "42";
+                            }
+                        };
+                }
+            });
+
+        try {
+            assertEquals("42", BeanUtils.getValue(bean, "answer"));
+            assertEquals("42", BeanUtils.getValues(bean, null).get("class"));
+        } finally {
+            factory.setProvider("bean.provider", old);
+        }
+
+        assertNull(BeanUtils.getValue(bean, "answer"));
+        assertSame(Object.class, BeanUtils.getValues(bean, null).get("class"));
+    }
+
+    //~ Inner Classes //////////////////////////////////////////////////////////
+
+    public static class First extends Recording {
+        public First() {
+            super("first");
+        }
+    }
+
+    public static class Recording implements Provider {
+        private String name;
+
+        Recording(String name) {
+            this.name = name;
+        }
+
+        public void destroy() {
+            destroyed.add(name);
+        }
+
+        public void init() {
+        }
+    }
+
+    public static class Second extends Recording {
+        public Second() {
+            super("second");
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.provider.log;
+
+import com.opensymphony.provider.LogProvider;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * JUnit test case for AsyncLogProvider
+ *
+ * @version $Revision$
+ */
+public class AsyncLogProviderTest extends TestCase {
+    //~ Instance fields ////////////////////////////////////////////////////////
+
+    private PrintStream err;
+
+    //~ Methods ////////////////////////////////////////////////////////////////
+
+    public void testBadEvent() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(out, true));
+
+        Exception bad = new Exception() {
+                public String toString() {
+                    throw new IllegalStateException();
+                }
+            };
+
+        AsyncLogProvider provider = new AsyncLogProvider();
+        provider.init();
+        provider.log("test", LogProvider.INFO, "before", null);
+        provider.log("test", LogProvider.ERROR, "bad", bad);
+        provider.log("test", LogProvider.INFO, "after", null);
+        provider.destroy();
+
+        // and on the calling thread
+        provider.log("test", LogProvider.ERROR, "late", bad);
+
+        // only the bad events are lost, each leaving a line behind
+        String log = out.toString();
+        String error = "[ERROR] " + AsyncLogProvider.class.getName() + " : log event could not be written, java.lang.IllegalStateException";
+        assertTrue(log.indexOf("[INFO ] test : before") > -1);
+        assertTrue(log.indexOf("[INFO ] test : after") > -1);
+        assertTrue(log.indexOf("bad") < 0);
+        assertTrue(log.indexOf("late") < 0);
+        assertTrue(log.indexOf(error) > -1);
+        assertTrue(log.indexOf(error) != log.lastIndexOf(error));
+    }
+
+    public void testLevels() throws Exception {
+        System.setProperty("logger.async.level", "warn");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(out, true));
+
+        AsyncLogProvider provider = new AsyncLogProvider();
+        provider.init();
+        assertTrue(!provider.isEnabled("test", LogProvider.INFO));
+        assertTrue(provider.isEnabled("test", LogProvider.WARN));
+        provider.log("test", LogProvider.INFO, "hidden", null);
+        provider.log("test", LogProvider.ERROR, new StringBuffer("shown"), new Exception("failed"));
+        provider.destroy();
+
+        // written on the calling thread after destroy
+        provider.log("test", LogProvider.FATAL, "late", null);
+
+        String log = out.toString();
+        assertTrue(log.startsWith("[ERROR] test : shown"));
+        assertTrue(log.indexOf("java.lang.Exception: failed") > -1);
+        assertTrue(log.indexOf("hidden") < 0);
+        assertTrue(log.indexOf("[FATAL] test : late") > -1);
+    }
+
+    public void testOrder() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(out, true));
+        System.setProperty("logger.async.buffer", "64");
+
+        final AsyncLogProvider provider = new AsyncLogProvider();
+        provider.init();
+        _log(provider, 4, 5000);
+        provider.destroy();
+
+        // all there, and each thread's in order
+        BufferedReader in = new BufferedReader(new StringReader(out.toString()));
+        int[] next = new int[4];
+        int lines = 0;
+        String line;
+
+        while ((line = in.readLine()) != null) {
+            int thread = line.charAt(line.indexOf("thread") + 6) - '0';
+            assertEquals("[INFO ] thread" + thread + " : " + next[thread], line);
+            next[thread]++;
+            lines++;
+        }
+
+        assertEquals(20000, lines);
+    }
+
+    public void testOverflow() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // holds the writer up until released
+        System.setErr(new PrintStream(new OutputStream() {
+                public void write(int b) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                    }
+
+                    out.write(b);
+                }
+            }));
+        System.setProperty("logger.async.buffer", "4");
+        System.setProperty("logger.async.overflow", "discard");
+
+        AsyncLogProvider provider = new AsyncLogProvider();
+        provider.init();
+
+        for (int i = 0; i < 100; i++) {
+            provider.log("test", LogProvider.INFO, String.valueOf(i), null);
+        }
+
+        assertTrue(provider.getDiscarded() > 90);
+        release.countDown();
+        provider.destroy();
+        assertTrue(out.toString().indexOf("log events discarded") > -1);
+    }
+
+    public void testTimings() throws Exception {
+        System.setErr(new PrintStream(new OutputStream() {
+                public void write(int b) {
+                }
+
+                public void write(byte[] b, int off, int len) {
+                }
+            }));
+
+        FullLogProvider full = new FullLogProvider();
+        long start = System.currentTimeMillis();
+        _log(full, 4, 20000);
+
+        long middle = System.currentTimeMillis();
+        AsyncLogProvider async = new AsyncLogProvider();
+        async.init();
+        _log(async, 4, 20000);
+
+        long logged = System.currentTimeMillis();
+        async.destroy();
+
+        long end = System.currentTimeMillis();
+        System.out.println("Took " + (logged - middle) + "ms, " + (end - middle) + "ms with writing (" + (middle - start) + "ms with FullLogProvider) to log 80000 events from 4 threads");
+    }
+
+    protected void setUp() throws Exception {
+        err = System.err;
+    }
+
+    protected void tearDown() throws Exception {
+        System.setErr(err);
+        System.getProperties().remove("logger.async.level");
+        System.getProperties().remove("logger.async.buffer");
+        System.getProperties().remove("logger.async.overflow");
+    }
+
+    /**
+     * Log <code>count</code> events from each of <code>threads</code> threads at
+     * once, with the thread number as context and a count as message.
+     */
+    private void _log(final LogProvider provider, int threads, final int count) throws Exception {
+        Thread[] loggers = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            final String context = "thread" + i;
+            loggers[i] = new Thread() {
+                        public void run() {
+                            for (int j = 0; j < count; j++) {
+                                provider.log(context, LogProvider.INFO, String.valueOf(j), null);
+                            }
+                        }
+                    };
+            loggers[i].start();
+        }
+
+        for (int i = 0; i < threads; i++) {
+            loggers[i].join();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.provider.xpath;
+
+import junit.framework.TestCase;
+
+
+/**
+ * JUnit test case for XPathCache
+ *
+ * @version $Revision$
+ */
+public class XPathCacheTest extends TestCase {
+    //~ Methods ////////////////////////////////////////////////////////////////
+
+    public void testCacheable() {
+        assertTrue(XPathCache.isCacheable("/root/child[@name='a']"));
+        assertTrue(XPathCache.isCacheable("child::item/following-sibling::*"));
+        assertTrue(!XPathCache.isCacheable("/ns:root"));
+        assertTrue(!XPathCache.isCacheable("child::ns:item"));
+
+        // a colon in a literal isn't a prefix, but one after it is
+        assertTrue(XPathCache.isCacheable("//a[@href='http://example.com']"));
+        assertTrue(XPathCache.isCacheable("//a[@title=\"it's 10:30\"]"));
+        assertTrue(!XPathCache.isCacheable("//a[@href='http://example.com']/ns:b"));
+    }
+
+    public void testEviction() {
+        System.setProperty("xpath.cache.size", "2");
+
+        XPathCache cache = new XPathCache();
+        cache.put("/a", "a");
+        cache.put("/b", "b");
+
+        // using /a leaves /b the least recently used
+        assertEquals("a", cache.get("/a"));
+        cache.put("/c", "c");
+        assertNull(cache.get("/b"));
+        assertEquals("a", cache.get("/a"));
+        assertEquals("c", cache.get("/c"));
+
+        // and now /a, having read /c since
+        cache.put("/d", "d");
+        assertNull(cache.get("/a"));
+        assertEquals("c", cache.get("/c"));
+        assertEquals("d", cache.get("/d"));
+
+        cache.clear();
+        assertNull(cache.get("/c"));
+    }
+
+    protected void tearDown() throws Exception {
+        System.getProperties().remove("xpath.cache.size");
+    }
+}
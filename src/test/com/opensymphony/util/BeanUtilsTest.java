@@ -4,9 +4,28 @@
  */
 package com.opensymphony.util;
 
+import com.opensymphony.provider.PropertyPath;
+import com.opensymphony.provider.PropertyPathProvider;
+import com.opensymphony.provider.BeanProvider;
+import com.opensymphony.provider.bean.DefaultBeanProvider;
+import com.opensymphony.provider.bean.GeneratedBeanProvider;
+import com.opensymphony.provider.bean.OGNLBeanProvider;
+
 import junit.framework.*;
 
+import ognl.Ognl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletRequest;
 
 
 /**
@@ -56,6 +75,358 @@ public class BeanUtilsTest extends TestCase {
         assertEquals("test1", BeanUtils.getValue(a, "b.name"));
     }
 
+    /**
+     * test paths parsed ahead of time, with each provider
+     */
+    public void testCompiledPaths() throws Exception {
+        PropertyPathProvider[] providers = {
+            new DefaultBeanProvider(), new OGNLBeanProvider(),
+            new GeneratedBeanProvider()
+        };
+        C c = new C();
+        c.setA(new A());
+        c.getA().setB(new B());
+
+        for (int i = 0; i < providers.length; i++) {
+            PropertyPath path = providers[i].compilePath("a.b.name");
+            assertTrue(path.setValue(c, "compiled " + i));
+            assertEquals("compiled " + i, c.getA().getB().getName());
+            assertEquals("compiled " + i, path.getValue(c));
+            assertNull(path.getValue(null));
+            assertNull(providers[i].compilePath("a.missing").getValue(c));
+            assertTrue(!providers[i].compilePath("a.missing").setValue(c, "x"));
+        }
+
+        PropertyPath label = BeanUtils.compilePath("label");
+        assertEquals("my sample", label.getValue(sample));
+        assertTrue(label.setValue(sample, "compiled"));
+        assertEquals("compiled", sample.getLabel());
+
+        // the same path on a different class
+        assertNull(label.getValue(c));
+        assertTrue(!label.setValue(c, "x"));
+        assertEquals("compiled", label.getValue(sample));
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < 100000; i++) {
+            BeanUtils.getValue(c, "a.b.name");
+        }
+
+        long middle = System.currentTimeMillis();
+        PropertyPath path = BeanUtils.compilePath("a.b.name");
+
+        for (int i = 0; i < 100000; i++) {
+            path.getValue(c);
+        }
+
+        long end = System.currentTimeMillis();
+        System.out.println("Took " + (end - middle) + "ms (" + (middle - start) + "ms unparsed) for 100000 gets of a compiled path");
+    }
+
+    /**
+     * test setters more than one property down (eg. x.getFoo().getBar().setBaz())
+     */
+    public void testDeepSetters() throws Exception {
+        C c = new C();
+        c.setA(new A());
+        c.getA().setB(new B());
+        assertTrue(BeanUtils.setValue(c, "a.b.name", "deep"));
+        assertEquals("deep", c.getA().getB().getName());
+        assertEquals("deep", BeanUtils.getValue(c, "a.b.name"));
+
+        c.getA().setB(null);
+        assertTrue(!BeanUtils.setValue(c, "a.b.name", "deep"));
+        assertNull(BeanUtils.getValue(c, "a.b.name"));
+    }
+
+    /**
+     * test speed of repeated access, once the accessors are known
+     */
+    public void testAccessorTimings() throws Exception {
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(BeanUtils.setValue(sample, "label", "label"));
+            assertEquals("label", BeanUtils.getValue(sample, "label"));
+            assertNull(BeanUtils.getValue(sample, "missing"));
+        }
+
+        long end = System.currentTimeMillis();
+        System.out.println("Took " + (end - start) + "ms for 100000 sets, gets and misses");
+    }
+
+    /**
+     * test setting and getting several properties at once
+     */
+    public void testBulkValues() throws Exception {
+        Map values = new HashMap();
+        values.put("label", "bulk");
+        values.put("name", "bulk name");
+        values.put("missing", "x");
+        BeanUtils.setValues(sample, values, new String[] {"label", "missing"});
+        assertEquals("bulk", sample.getLabel());
+        assertNull(sample.getName());
+
+        BeanUtils.setValues(sample, values, null);
+        assertEquals("bulk name", sample.getName());
+
+        // nested paths are passed on
+        C c = new C();
+        c.setA(new A());
+        c.getA().setB(new B());
+        values.put("a.b.name", "nested");
+        BeanUtils.setValues(c, values, null);
+        assertEquals("nested", c.getA().getB().getName());
+
+        Map got = BeanUtils.getValues(sample, new String[] {"label", "name", "empty"});
+        assertEquals(2, got.size());
+        assertEquals("bulk", got.get("label"));
+        assertEquals("bulk name", got.get("name"));
+
+        // bean to bean, null values not copied
+        SampleBean copy = new SampleBean();
+        copy.setName("kept");
+        sample.setName(null);
+        sample.setVisible(true);
+        BeanUtils.setValues(copy, sample, new String[] {"label", "name", "visible"});
+        assertEquals("bulk", copy.getLabel());
+        assertEquals("kept", copy.getName());
+        assertTrue(copy.isVisible());
+
+        // the allowed array may change after use
+        String[] allowed = {"label"};
+        BeanUtils.setValues(copy, values, allowed);
+        allowed[0] = "name";
+        BeanUtils.setValues(copy, values, allowed);
+        assertEquals("bulk name", copy.getName());
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < 100000; i++) {
+            BeanUtils.setValues(copy, sample, null);
+        }
+
+        long end = System.currentTimeMillis();
+        System.out.println("Took " + (end - start) + "ms for 100000 bean to bean copies");
+    }
+
+    /**
+     * test binding request parameters, converted to the property types
+     */
+    public void testRequestValues() throws Exception {
+        Map params = new HashMap();
+        params.put("text", new String[] {"hello"});
+        params.put("count", new String[] {"12"});
+        params.put("total", new String[] {"junk"});
+        params.put("size", new String[] {" "});
+        params.put("price", new String[] {"2.5"});
+        params.put("active", new String[] {"yes"});
+        params.put("tags", new String[] {"a", "b"});
+        params.put("ignored", new String[] {"x"});
+
+        Form form = new Form();
+        form.setSize(Long.valueOf(7));
+        BeanUtils.setValues(form, _request(params), null);
+        assertEquals("hello", form.getText());
+        assertEquals(12, form.getCount());
+        assertEquals(0, form.getTotal());
+        assertNull(form.getSize());
+        assertEquals(2.5, form.getPrice(), 0);
+        assertTrue(form.isActive());
+        assertEquals(2, form.getTags().length);
+        assertEquals("b", form.getTags()[1]);
+
+        form = new Form();
+        BeanUtils.setValues(form, _request(params), new String[] {"count"});
+        assertEquals(12, form.getCount());
+        assertNull(form.getText());
+
+        // numbers too big for the property saturate, as they do for int
+        params.put("level", new String[] {"300"});
+        params.put("rank", new String[] {"-40000"});
+        params.put("total", new String[] {"99999999999999999999"});
+        form = new Form();
+        BeanUtils.setValues(form, _request(params), null);
+        assertEquals(Byte.MAX_VALUE, form.getLevel());
+        assertEquals(Short.valueOf(Short.MIN_VALUE), form.getRank());
+        assertEquals(Long.MAX_VALUE, form.getTotal());
+
+        // junk is 0 for wrappers too, only blank is null
+        params.put("rank", new String[] {"abc"});
+        BeanUtils.setValues(form, _request(params), null);
+        assertEquals(Short.valueOf((short) 0), form.getRank());
+        params.put("total", new String[] {"junk"});
+        params.put("level", new String[] {"-12"});
+        params.put("rank", new String[] {"300"});
+        BeanUtils.setValues(form, _request(params), null);
+        assertEquals(-12, form.getLevel());
+        assertEquals(Short.valueOf((short) 300), form.getRank());
+
+        // nested paths are passed on
+        C c = new C();
+        c.setA(new A());
+        c.getA().setB(new B());
+        params.put("a.b.name", new String[] {"nested"});
+        BeanUtils.setValues(c, _request(params), null);
+        assertEquals("nested", c.getA().getB().getName());
+
+        // a 50 field form, of which 8 are bound
+        params.clear();
+
+        for (int i = 0; i < 42; i++) {
+            params.put("field" + i, new String[] {"value " + i});
+        }
+
+        params.put("text", new String[] {"hello"});
+        params.put("count", new String[] {"12"});
+        params.put("total", new String[] {"1234567890123"});
+        params.put("size", new String[] {"3"});
+        params.put("price", new String[] {"2.5"});
+        params.put("active", new String[] {"true"});
+        params.put("tags", new String[] {"a", "b"});
+        params.put("a.b.name", new String[] {"nested"});
+
+        ServletRequest request = _request(params);
+        String[] allowed = {"text", "count", "total", "size", "price", "active", "tags"};
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < 10000; i++) {
+            // as done before binding
+            Map values = new HashMap();
+            Enumeration names = request.getParameterNames();
+
+            while (names.hasMoreElements()) {
+                String name = (String) names.nextElement();
+                values.put(name, request.getParameter(name));
+            }
+
+            BeanUtils.setValues(form, values, allowed);
+        }
+
+        long middle = System.currentTimeMillis();
+
+        for (int i = 0; i < 10000; i++) {
+            BeanUtils.setValues(form, request, allowed);
+        }
+
+        long end = System.currentTimeMillis();
+        assertEquals(1234567890123L, form.getTotal());
+        System.out.println("Took " + (end - middle) + "ms (" + (middle - start) + "ms through a Map) to bind 10000 requests of 50 parameters");
+    }
+
+    /**
+     * test OGNL expressions being parsed once
+     */
+    public void testOgnlCache() throws Exception {
+        final OGNLBeanProvider provider = new OGNLBeanProvider();
+        C c = new C();
+        c.setA(new A());
+        c.getA().setB(new B() {
+                public String getName() {
+                    // evaluated while the outer expression is
+                    return "inner " + provider.getProperty(sample, "label");
+                }
+            });
+
+        assertEquals("inner my sample", provider.getProperty(c, "a.b.name"));
+        assertEquals(2, provider.getCacheMisses());
+        assertEquals(0, provider.getCacheHits());
+        assertEquals("inner my sample", provider.getProperty(c, "a.b.name"));
+        assertEquals(2, provider.getCacheHits());
+        assertEquals(2, provider.getCacheSize());
+
+        assertTrue(provider.setProperty(sample, "label", "ognl"));
+        assertEquals("ognl", sample.getLabel());
+        assertTrue(!provider.setProperty(sample, "missing", "x"));
+        assertNull(provider.getProperty(sample, "(("));
+        assertNull(provider.getProperty(sample, "(("));
+        assertEquals(4, provider.getCacheHits());
+
+        for (int i = 0; i < (OGNLBeanProvider.MAX_EXPRESSIONS * 2); i++) {
+            provider.getProperty(sample, "label + " + i);
+        }
+
+        assertTrue(provider.getCacheSize() <= OGNLBeanProvider.MAX_EXPRESSIONS);
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < 100000; i++) {
+            Ognl.getValue("label", sample);
+        }
+
+        long middle = System.currentTimeMillis();
+
+        for (int i = 0; i < 100000; i++) {
+            provider.getProperty(sample, "label");
+        }
+
+        long end = System.currentTimeMillis();
+        System.out.println("Took " + (end - middle) + "ms (" + (middle - start) + "ms parsing each time) for 100000 OGNL gets");
+    }
+
+    /**
+     * test generated accessors, and the cases they leave to reflection
+     */
+    public void testGeneratedAccessors() throws Exception {
+        BeanProvider provider = new GeneratedBeanProvider();
+        assertEquals("my sample", provider.getProperty(sample, "label"));
+        assertTrue(provider.setProperty(sample, "label", "generated"));
+        assertEquals("generated", sample.getLabel());
+        assertTrue(provider.setProperty(sample, "label", null));
+        assertNull(sample.getLabel());
+
+        // primitives are boxed and unboxed
+        assertTrue(provider.setProperty(sample, "visible", Boolean.TRUE));
+        assertEquals(Boolean.TRUE, provider.getProperty(sample, "visible"));
+        assertTrue(!provider.setProperty(sample, "visible", null));
+        assertTrue(!provider.setProperty(sample, "visible", "yes"));
+        assertTrue(sample.isVisible());
+
+        // values of the wrong type are refused, as by reflection
+        assertTrue(!provider.setProperty(sample, "locale", "en"));
+        assertTrue(provider.setProperty(sample, "locale", Locale.FRENCH));
+        assertEquals(Locale.FRENCH, provider.getProperty(sample, "locale"));
+
+        // misses
+        assertNull(provider.getProperty(sample, "missing"));
+        assertTrue(!provider.setProperty(sample, "missing", "x"));
+
+        // a class generated code can't see is left to reflection
+        Hidden hidden = new Hidden();
+        BeanProvider reflective = new DefaultBeanProvider();
+        assertEquals(reflective.setProperty(hidden, "count", Integer.valueOf(3)), provider.setProperty(hidden, "count", Integer.valueOf(4)));
+        assertEquals(reflective.getProperty(hidden, "count"), provider.getProperty(hidden, "count"));
+    }
+
+    /**
+     * test speed of each provider on simple and nested properties
+     */
+    public void testProviderTimings() throws Exception {
+        PropertyPathProvider[] providers = {
+            new DefaultBeanProvider(), new OGNLBeanProvider(),
+            new GeneratedBeanProvider()
+        };
+        C c = new C();
+        c.setA(new A());
+        c.getA().setB(new B());
+
+        for (int i = 0; i < providers.length; i++) {
+            PropertyPath label = providers[i].compilePath("label");
+            PropertyPath visible = providers[i].compilePath("visible");
+            PropertyPath nested = providers[i].compilePath("a.b.name");
+
+            // once over to look up the accessors
+            _access(label, visible, nested, c, 1000);
+
+            long start = System.currentTimeMillis();
+            _access(label, visible, nested, c, 100000);
+
+            long end = System.currentTimeMillis();
+            System.out.println("Took " + (end - start) + "ms for 100000 gets and sets of simple, primitive and nested properties with " + providers[i].getClass().getName());
+        }
+    }
+
     /**
      * test getters that return null
      */
@@ -154,6 +525,38 @@ public class BeanUtilsTest extends TestCase {
         sample.setLocale(Locale.CANADA);
     }
 
+    private void _access(PropertyPath label, PropertyPath visible, PropertyPath nested, C c, int times) {
+        for (int i = 0; i < times; i++) {
+            assertTrue(label.setValue(sample, "label"));
+            assertEquals("label", label.getValue(sample));
+            assertTrue(visible.setValue(sample, Boolean.TRUE));
+            assertEquals(Boolean.TRUE, visible.getValue(sample));
+            assertTrue(nested.setValue(c, "nested"));
+            assertEquals("nested", nested.getValue(c));
+        }
+    }
+
+    /**
+     * A request with the given parameters, by name, as String arrays.
+     */
+    private ServletRequest _request(final Map params) {
+        return (ServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {ServletRequest.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getParameterNames")) {
+                        return Collections.enumeration(params.keySet());
+                    } else if (method.getName().equals("getParameterValues")) {
+                        return params.get(args[0]);
+                    } else if (method.getName().equals("getParameter")) {
+                        String[] values = (String[]) params.get(args[0]);
+
+                        return (values == null) ? null : values[0];
+                    }
+
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
     /**
      * Check if array contains particular value.
      */
@@ -192,4 +595,112 @@ public class BeanUtilsTest extends TestCase {
             return name;
         }
     }
+
+    public class C {
+        private A a;
+
+        public void setA(A a) {
+            this.a = a;
+        }
+
+        public A getA() {
+            return a;
+        }
+    }
+
+    public class Form {
+        private Long size;
+        private Short rank;
+        private String text;
+        private String[] tags;
+        private boolean active;
+        private byte level;
+        private double price;
+        private int count;
+        private long total;
+
+        public void setActive(boolean active) {
+            this.active = active;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        public void setCount(int count) {
+            this.count = count;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public void setLevel(byte level) {
+            this.level = level;
+        }
+
+        public byte getLevel() {
+            return level;
+        }
+
+        public void setPrice(double price) {
+            this.price = price;
+        }
+
+        public double getPrice() {
+            return price;
+        }
+
+        public void setRank(Short rank) {
+            this.rank = rank;
+        }
+
+        public Short getRank() {
+            return rank;
+        }
+
+        public void setSize(Long size) {
+            this.size = size;
+        }
+
+        public Long getSize() {
+            return size;
+        }
+
+        public void setTags(String[] tags) {
+            this.tags = tags;
+        }
+
+        public String[] getTags() {
+            return tags;
+        }
+
+        public void setText(String text) {
+            this.text = text;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public void setTotal(long total) {
+            this.total = total;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+    }
+
+    private static class Hidden {
+        private int count;
+
+        public void setCount(int count) {
+            this.count = count;
+        }
+
+        public int getCount() {
+            return count;
+        }
+    }
 }
@@ -58,7 +58,13 @@ import com.opensymphony.util.DateUtil;
  */
 import junit.framework.TestCase;
 
+import java.nio.ByteBuffer;
+
+import java.sql.Time;
+import java.sql.Timestamp;
+
 import java.text.ParseException;
+import java.text.SimpleDateFormat;
 
 import java.util.*;
 
@@ -79,6 +85,40 @@ public class DateUtilsTest extends TestCase {
     //~ Methods ////////////////////////////////////////////////////////////////
 
     public void testDateToISO() {
+        Date date = new Date(1040826732333L); // 2002-12-25 14:32:12,333 GMT
+
+        assertEquals("20021225", DateUtil.dateToISO(date));
+        assertEquals("2002-12-25", DateUtil.dateToISO(date, true));
+        assertEquals(_format(DateUtil.ISO_TIME_FORMAT, date), DateUtil.timeToISO(new Time(date.getTime())));
+        assertEquals(_format(DateUtil.ISO_EXPANDED_DATE_TIME_FORMAT, date), DateUtil.timestampToISO(new Timestamp(date.getTime()), true));
+        assertTrue(DateUtil.timestampToISO(new Timestamp(date.getTime()), true).startsWith("2002-12-25T14:32:12,333"));
+    }
+
+    public void testISOMatchesSimpleDateFormat() throws ParseException {
+        long[] times = {
+            0, -1, 951782400000L, 1040826732333L, -12219292800000L, -12219292800001L, // Gregorian cutover
+            -62135769600000L, 253402300799999L, 253402300800000L // years 1 and 10000
+        };
+
+        for (int i = 0; i < times.length; i++) {
+            Date date = new Date(times[i]);
+            String timestamp = _format(DateUtil.ISO_DATE_TIME_FORMAT, date);
+
+            assertEquals(_format(DateUtil.ISO_DATE_FORMAT, date), DateUtil.dateToISO(date));
+            assertEquals(_format(DateUtil.ISO_EXPANDED_TIME_FORMAT, date), DateUtil.timeToISO(new Time(times[i]), true));
+            assertEquals(timestamp, DateUtil.timestampToISO(new Timestamp(times[i])));
+            assertEquals(_formatter(DateUtil.ISO_DATE_TIME_FORMAT).parse(timestamp), DateUtil.isoToTimestamp(timestamp));
+        }
+
+        // lenient input still goes through SimpleDateFormat
+        assertEquals(DateUtil.isoToDate("20030101"), DateUtil.isoToDate("20021232"));
+        assertEquals(DateUtil.isoToDate("20021003"), DateUtil.isoToDate("20021003T000000001-0500"));
+
+        try {
+            DateUtil.isoToDate("October 2002");
+            fail("expected ParseException");
+        } catch (ParseException e) {
+        }
     }
 
     public void testISOtoDate() {
@@ -109,6 +149,80 @@ public class DateUtilsTest extends TestCase {
         assertEquals(2452343.5f, DateUtil.toJulian(c), 0.01f);
     }
 
+    public void testJulianArithmetic() {
+        long noon = 1018440000000L; // 2002-04-10 12:00 GMT
+
+        assertEquals(2452375.0, DateUtil.toJulian(noon), 0);
+        assertEquals(2440587.5, DateUtil.toJulian(0), 0);
+        assertEquals(noon, DateUtil.toMillis(DateUtil.toJulian(noon)));
+        assertEquals(-1, DateUtil.toMillis(DateUtil.toJulian(-1)));
+
+        assertEquals(1, DateUtil.daysBetween(-1, 0));
+        assertEquals(0, DateUtil.daysBetween(0, 86399999));
+        assertEquals(-216, DateUtil.daysBetween(1033603200000L, 1014940800000L));
+
+        assertTrue(DateUtil.isLeapYear(2000));
+        assertTrue(DateUtil.isLeapYear(2004));
+        assertTrue(!DateUtil.isLeapYear(1900));
+        assertTrue(DateUtil.isLeapYear(1500));
+        assertTrue(!DateUtil.isLeapYear(2003));
+
+        long[] millis = {-1, 0, noon};
+        long[] later = {0, 0, noon + (3 * 86400000L)};
+        long[] days = new long[3];
+        long[] julianDays = new long[3];
+        double[] julian = new double[3];
+
+        DateUtil.daysBetween(millis, later, days);
+        DateUtil.millisToJulianDay(millis, julianDays);
+        DateUtil.toJulian(millis, julian);
+
+        for (int i = 0; i < millis.length; i++) {
+            assertEquals(DateUtil.daysBetween(millis[i], later[i]), days[i]);
+            assertEquals(DateUtil.millisToJulianDay(millis[i]), julianDays[i]);
+            assertEquals(DateUtil.toJulian(millis[i]), julian[i], 0);
+        }
+    }
+
+    public void testTimestampColumns() throws ParseException {
+        // enough records to be split between threads on a multi-processor machine
+        long[] millis = new long[100000];
+
+        for (int i = 0; i < millis.length; i++) {
+            millis[i] = (i * 987654321L) - 12345678901234L;
+        }
+
+        int length = DateUtil.getISOTimestampLength(true);
+        char[] chars = new char[2 + (millis.length * length)];
+        DateUtil.timestampsToISO(millis, true, chars, 2);
+
+        ByteBuffer bytes = ByteBuffer.allocate(millis.length * DateUtil.getISOTimestampLength(false));
+        DateUtil.timestampsToISO(millis, false, bytes);
+        assertEquals(bytes.capacity(), bytes.position());
+
+        for (int i = 0; i < millis.length; i += 997) {
+            assertEquals(DateUtil.timestampToISO(new Timestamp(millis[i]), true), new String(chars, 2 + (i * length), length));
+        }
+
+        long[] parsed = new long[millis.length];
+        DateUtil.isoToTimestamps(chars, 2, true, parsed);
+        assertTrue(Arrays.equals(millis, parsed));
+
+        bytes.flip();
+        parsed = new long[millis.length];
+        DateUtil.isoToTimestamps(bytes, false, parsed);
+        assertTrue(Arrays.equals(millis, parsed));
+
+        chars[2 + (5 * length)] = 'x';
+
+        try {
+            DateUtil.isoToTimestamps(chars, 2, true, parsed);
+            fail("expected ParseException");
+        } catch (ParseException e) {
+            assertEquals(5 * length, e.getErrorOffset());
+        }
+    }
+
     /**
      * run test using the new julian date methods
      *
@@ -127,4 +241,15 @@ public class DateUtilsTest extends TestCase {
             fail(e.getMessage());
         }
     }
+
+    private String _format(String pattern, Date date) {
+        return _formatter(pattern).format(date);
+    }
+
+    private SimpleDateFormat _formatter(String pattern) {
+        SimpleDateFormat formatter = new SimpleDateFormat(pattern, DateUtil.dateFormatSymbles);
+        formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        return formatter;
+    }
 }
@@ -6,6 +6,8 @@ package com.opensymphony.util;
 
 import junit.framework.*;
 
+import java.io.StringWriter;
+
 import java.util.Calendar;
 
 /* ====================================================================
@@ -82,17 +84,17 @@ public class TextUtilsTest extends TestCase {
     }
 
     public void testCloseTags() {
-        //		assertEquals( "", TextUtils.closeTags(""));
-        //		assertEquals( "test", TextUtils.closeTags("test"));
-        //		assertEquals( "<b>test</b>", TextUtils.closeTags("<b>test"));
-        //		assertEquals( "<b>test</b>", TextUtils.closeTags("<b>test</b>"));
-        //		assertEquals( "<b><b><b><b>test</b></b></b></b>", TextUtils.closeTags("<b><b><b><b>test"));
-        //		assertEquals( "<b><b><font><b>test</b>test</font></b></b>", TextUtils.closeTags("<b><b><font><b>test</b>test"));
-        //		assertEquals( "<a href=\"\">test</a>", TextUtils.closeTags("<a href=\"\">test"));
-        //		assertEquals( "<a href=\"\" foobar >test</a>", TextUtils.closeTags("<a href=\"\" foobar >test"));
-        //		assertEquals( "<a href=\"\"><b><b>test</b><p>fred<b></b></b></a>", TextUtils.closeTags("<a href=\"\"><b><b>test</b><p>fred<b>"));
-        //		String html = "<A href=\"http://203.111.125.138/aicbeta/r/article/jsp/sid/253905\"><B><FONT size=3>ACA Impressed With Growth of Wireless Industry Over Past Year</FONT></B></A><BR>Dramatic change in Australia?s mobile network infrastructure this year has paved the way for a far more competitive and healthy market in 2001 and beyond, the Australian Communications Authority has concluded in its latest telecommunications industry checkup.";
-        //		assertEquals( html, TextUtils.closeTags(html));
+        assertEquals("", TextUtils.closeTags(""));
+        assertEquals("test", TextUtils.closeTags("test"));
+        assertEquals("<b>test</b>", TextUtils.closeTags("<b>test"));
+        assertEquals("<b>test</b>", TextUtils.closeTags("<b>test</b>"));
+        assertEquals("<b><b><b><b>test</b></b></b></b>", TextUtils.closeTags("<b><b><b><b>test"));
+        assertEquals("<b><b><font><b>test</b>test</font></b></b>", TextUtils.closeTags("<b><b><font><b>test</b>test"));
+        assertEquals("<a href=\"\">test</a>", TextUtils.closeTags("<a href=\"\">test"));
+        assertEquals("<a href=\"\" foobar >test</a>", TextUtils.closeTags("<a href=\"\" foobar >test"));
+        assertEquals("<a href=\"\"><b><b>test</b><p>fred<b></b></b></a>", TextUtils.closeTags("<a href=\"\"><b><b>test</b><p>fred<b>"));
+        String html = "<A href=\"http://203.111.125.138/aicbeta/r/article/jsp/sid/253905\"><B><FONT size=3>ACA Impressed With Growth of Wireless Industry Over Past Year</FONT></B></A><BR>Dramatic change in Australia?s mobile network infrastructure this year has paved the way for a far more competitive and healthy market in 2001 and beyond, the Australian Communications Authority has concluded in its latest telecommunications industry checkup.";
+        assertEquals(html, TextUtils.closeTags(html));
     }
 
     public void testExtractNumber() {
@@ -124,6 +126,24 @@ public class TextUtilsTest extends TestCase {
         String input = "http://www.xxx.com/getStuff?stuff_id=12&readonly=true";
         String expectedResult = "http://www.xxx.com/getStuff?stuff_id=12&amp;readonly=true";
         assertEquals(expectedResult, TextUtils.htmlEncode(input));
+
+        assertEquals("&#x93;curvy&#x94; &#xE9;\u00ff", TextUtils.htmlEncode("\u0093curvy\u0094 \u00e9\u00ff"));
+        assertEquals("\u0093curvy&amp;\u0094", TextUtils.htmlEncode("\u0093curvy&\u0094", false));
+
+        // nothing to escape - the same instance is returned
+        String plain = "nothing to escape \u0445";
+        assertSame(plain, TextUtils.htmlEncode(plain));
+    }
+
+    public void testHtmlEncodeToAppendable() throws Exception {
+        StringWriter out = new StringWriter();
+        TextUtils.htmlEncode("a<b>&\"c\"\u00e9", out);
+        assertEquals("a&lt;b&gt;&amp;&quot;c&quot;&#xE9;", out.toString());
+
+        StringBuffer sb = new StringBuffer("x");
+        TextUtils.htmlEncode(new StringBuffer("\u00e9&"), sb, false);
+        TextUtils.htmlEncode(null, sb);
+        assertEquals("x\u00e9&amp;", sb.toString());
     }
 
     public void testHyperLink() {
@@ -134,6 +154,25 @@ public class TextUtilsTest extends TestCase {
         assertEquals("http://<hostname>/<foo>", TextUtils.hyperlink("http://<hostname>/<foo>"));
     }
 
+    public void testHyperlinkToAppendable() throws Exception {
+        String input = "mail admin@opensymphony.com or (www.opensymphony.com) http://a.com/x?y=1&amp;z=2.";
+        StringWriter out = new StringWriter();
+        TextUtils.hyperlink(input, "_new", out);
+        assertEquals(TextUtils.hyperlink(input, "_new"), out.toString());
+        assertEquals("mail <a href='mailto:admin@opensymphony.com'>admin@opensymphony.com</a> or (<a href=\"http://www.opensymphony.com\" target=\"_new\">www.opensymphony.com</a>) <a href=\"http://a.com/x?y=1&z=2\" target=\"_new\">http://a.com/x?y=1&amp;z=2</a>.", out.toString());
+
+        // lots of links
+        StringBuffer text = new StringBuffer();
+        StringBuffer expected = new StringBuffer();
+
+        for (int i = 0; i < 1000; i++) {
+            text.append("see http://a.com/").append(i).append(" or a").append(i).append("@b.com. ");
+            expected.append("see <a href=\"http://a.com/").append(i).append("\">http://a.com/").append(i).append("</a> or <a href='mailto:a").append(i).append("@b.com'>a").append(i).append("@b.com</a>. ");
+        }
+
+        assertEquals(expected.toString(), TextUtils.hyperlink(text.toString()));
+    }
+
     public void testInnerTrim() {
         assertEquals("", TextUtils.innerTrim("  "));
         assertEquals("hithere", TextUtils.innerTrim(" hithere"));
@@ -208,6 +247,10 @@ public class TextUtilsTest extends TestCase {
         assertEquals("<a href=\"http://www.xyz.com\">www.xyz.com</a> 56a://a abc <a href=\"ftp://b\">ftp://b</a> def ", TextUtils.linkURL("www.xyz.com 56a://a abc ftp://b def ")); //multiple URLs test with invalid URL in middle
         assertEquals("abcdef", TextUtils.linkURL("abcdef")); //No URLs
 
+        //a '://' at the start has no scheme, but what follows it may still be a URL
+        assertEquals("://<a href=\"http://www.xyz.com\">www.xyz.com</a> and <a href=\"http://a\">http://a</a>", TextUtils.linkURL("://www.xyz.com and http://a"));
+        assertEquals("x ://www.xyz.com", TextUtils.linkURL("x ://www.xyz.com"));
+
         //Other schemes - CORE-50
         _testLinkUrl("notes://www.opensymphony.com");
         _testLinkUrl("file:///tmp/opensymphony/files");
@@ -245,6 +288,17 @@ public class TextUtilsTest extends TestCase {
         //        assertEquals("(see <a href=\"http://something.com/ending-in-minus-\">http://something.com/ending-in-minus-</a>)", TextUtils.linkURL("(see http://something.com/ending-in-minus-)"));
     }
 
+    public void testList() throws Exception {
+        assertEquals("", TextUtils.list(null));
+        assertEquals("no list here\nat all", TextUtils.list("no list here\nat all"));
+        assertEquals("<ul><li>one</li><li>two</li></ul>", TextUtils.list("-one\n*two"));
+        assertEquals("intro<ul><li> one</li><li> two</li></ul>after", TextUtils.list("intro\n- one\n- two\nafter"));
+
+        StringWriter out = new StringWriter();
+        TextUtils.list("intro\n- one\n- two\nafter", out);
+        assertEquals("intro<ul><li> one</li><li> two</li></ul>after", out.toString());
+    }
+
     public void testNulls() {
         assertEquals("", TextUtils.noNull(""));
         assertEquals("blah", TextUtils.noNull("blah"));
@@ -275,6 +329,85 @@ public class TextUtilsTest extends TestCase {
         _testParseDate(2050, 1, 1, "2050", null, null);
     }
 
+    public void testParseNumbers() {
+        assertEquals(12, TextUtils.parseInt("12"));
+        assertEquals(-12, TextUtils.parseInt("-12"));
+        assertEquals(12, TextUtils.parseInt(" 12 "));
+        assertEquals(4, TextUtils.parseInt("4.5"));
+        assertEquals(1000, TextUtils.parseInt("1e3"));
+        assertEquals(Integer.MIN_VALUE, TextUtils.parseInt("-2147483648"));
+        assertEquals(Integer.MAX_VALUE, TextUtils.parseInt("2147483648"));
+        assertEquals(16777218, TextUtils.parseInt("16777217.5"));
+        assertEquals(0, TextUtils.parseInt("abc"));
+        assertEquals(0, TextUtils.parseInt("12abc"));
+        assertEquals(0, TextUtils.parseInt("NaN"));
+        assertEquals(0, TextUtils.parseInt(""));
+        assertEquals(0, TextUtils.parseInt(null));
+
+        assertEquals(Long.MIN_VALUE, TextUtils.parseLong("-9223372036854775808"));
+        assertEquals(Long.MAX_VALUE, TextUtils.parseLong("9223372036854775808"));
+        assertEquals(-4L, TextUtils.parseLong("-4.9"));
+        assertEquals(0L, TextUtils.parseLong("-"));
+
+        assertEquals(0.1, TextUtils.parseDouble("0.1"), 0);
+        assertEquals(-1.5e-7, TextUtils.parseDouble("-1.5E-7d"), 0);
+        assertEquals(3.0, TextUtils.parseDouble("0x1.8p1"), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, TextUtils.parseDouble("-Infinity"), 0);
+        assertTrue(Double.isNaN(TextUtils.parseDouble("NaN")));
+        assertEquals(0, TextUtils.parseDouble("1e"), 0);
+        assertEquals(0, TextUtils.parseDouble("1.2.3"), 0);
+        assertEquals(2.5f, TextUtils.parseFloat("2.5f"), 0);
+
+        assertEquals(345, TextUtils.parseInt("12345", 2, 5));
+        assertEquals(-7L, TextUtils.parseLong("x=-7;", 2, 4));
+        assertEquals(1.25, TextUtils.parseDouble(new StringBuffer("[1.25]"), 1, 5), 0);
+    }
+
+    public void testParseNumbersMatchJdk() {
+        String[] inputs = {
+            "0", "-0", "+7", "0.0", "-0.0", "1.", ".5", ".", "1e10", "1E-10", "1e+2f", "9007199254740993",
+            "123456789.123456789e-3", "1e400", "1e-400", "0x1p3", "0x.8P0", "0xp1", "0x1p", "Infinityx", "12ff",
+            "2147483647", "-2147483649", "9223372036854775807", "-9223372036854775809", "\t42\n"
+        };
+
+        for (int i = 0; i < inputs.length; i++) {
+            String in = inputs[i];
+            assertEquals(in, _jdkParseDouble(in), TextUtils.parseDouble(in), 0);
+            assertEquals(in, _jdkParseFloat(in), TextUtils.parseFloat(in), 0);
+            assertEquals(in, _jdkParseInt(in), TextUtils.parseInt(in));
+            assertEquals(in, _jdkParseLong(in), TextUtils.parseLong(in));
+        }
+    }
+
+    public void testParseNumberTimings() {
+        String[][] inputs = {
+            {"12", "-3456", "789012", "2147483647"},
+            {"4.5", "-12.75", "1e3", "0.001"},
+            {"abc", "12abc", "", "1.2.3"}
+        };
+        String[] names = {"valid", "float-looking", "garbage"};
+
+        for (int n = 0; n < inputs.length; n++) {
+            long start = System.currentTimeMillis();
+            long sum = 0;
+
+            for (int i = 0; i < 100000; i++) {
+                sum += TextUtils.parseInt(inputs[n][i % 4]);
+            }
+
+            long middle = System.currentTimeMillis();
+
+            for (int i = 0; i < 100000; i++) {
+                sum -= _jdkParseInt(inputs[n][i % 4]);
+            }
+
+            long end = System.currentTimeMillis();
+
+            assertEquals(0, sum);
+            System.out.println("Took " + (middle - start) + "ms (" + (end - middle) + "ms with exceptions) to parse 100000 " + names[n] + " ints");
+        }
+    }
+
     public void testPlainTextToHtml() {
         //Don't link already valid URLs - CORE-44
         //        String validUrl = "<a href=\"http://www.opensymphony.com\">http://www.opensymphony.com</a>";
@@ -289,6 +422,21 @@ public class TextUtilsTest extends TestCase {
         assertEquals(expectedResult, TextUtils.plainTextToHtml(input));
     }
 
+    public void testPlainTextToHtmlMatchesSeparatePasses() throws Exception {
+        String input = "  Hello <world> & \"friends\"\n  see www.opensymphony.com or mail admin@opensymphony.com.\n\n\u201cquoted\u201d \u00e9 http://a.com/?x=1&y=2";
+
+        String expected = TextUtils.hyperlink(TextUtils.br(TextUtils.leadingSpaces(TextUtils.htmlEncode(input, true))), "_blank");
+        assertEquals(expected, TextUtils.plainTextToHtml(input, "_blank", true));
+
+        StringWriter out = new StringWriter();
+        out.write("prefix:");
+        TextUtils.plainTextToHtml(input, "_blank", true, out);
+        assertEquals("prefix:" + expected, out.toString());
+
+        expected = TextUtils.hyperlink(TextUtils.br(TextUtils.leadingSpaces(TextUtils.htmlEncode(input, false))), null);
+        assertEquals(expected, TextUtils.plainTextToHtml(input, false));
+    }
+
     public void testPlainTextToHtmlNoJavaScriptByDefault() throws Exception {
         String input = "Here is some text that should not encode the javascript://link in anchor tags";
         String expected = input;
@@ -299,6 +447,13 @@ public class TextUtilsTest extends TestCase {
         assertEquals(expected, TextUtils.plainTextToHtml(input));
     }
 
+    public void testTrimToEndingChar() {
+        assertEquals("short", TextUtils.trimToEndingChar("short", 10));
+        assertEquals("One sentence.", TextUtils.trimToEndingChar("One sentence. Another sentence.", 20));
+        assertEquals("no ending", TextUtils.trimToEndingChar("no ending chars here", 12));
+        assertEquals("<b>One <i>sentence.</i></b>", TextUtils.trimToEndingChar("<b>One <i>sentence. Another</i> sentence.</b>", 20));
+    }
+
     public void testVerifyEmail() {
         _testVerifyEmail("joe@truemesh.com", true);
         _testVerifyEmail("asf@aol.com", true);
@@ -334,6 +489,38 @@ public class TextUtilsTest extends TestCase {
         return (ca.get(Calendar.DAY_OF_MONTH) == cb.get(Calendar.DAY_OF_MONTH)) && (ca.get(Calendar.MONTH) == cb.get(Calendar.MONTH)) && (ca.get(Calendar.YEAR) == cb.get(Calendar.YEAR));
     }
 
+    private double _jdkParseDouble(String in) {
+        try {
+            return Double.parseDouble(in);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private float _jdkParseFloat(String in) {
+        try {
+            return Float.parseFloat(in);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private int _jdkParseInt(String in) {
+        try {
+            return Integer.parseInt(in);
+        } catch (NumberFormatException e) {
+            return (int) _jdkParseFloat(in);
+        }
+    }
+
+    private long _jdkParseLong(String in) {
+        try {
+            return Long.parseLong(in);
+        } catch (NumberFormatException e) {
+            return (long) _jdkParseDouble(in);
+        }
+    }
+
     private void _testLinkUrl(String s) {
         assertEquals("<a href=\"" + s + "\">" + s + "</a>", TextUtils.linkURL(s));
     }
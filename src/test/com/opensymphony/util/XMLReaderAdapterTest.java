@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2002-2003 by OpenSymphony
+ * All rights reserved.
+ */
+package com.opensymphony.util;
+
+import junit.framework.*;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+
+
+/**
+ * JUnit test case for XMLReaderAdapter
+ *
+ * @version $Revision$
+ */
+public class XMLReaderAdapterTest extends TestCase {
+    //~ Constructors ///////////////////////////////////////////////////////////
+
+    public XMLReaderAdapterTest(String name) {
+        super(name);
+    }
+
+    //~ Methods ////////////////////////////////////////////////////////////////
+
+    public void testBean() throws Exception {
+        Order order = new Order();
+        order.setCustomerName("joe");
+        order.setItems(Arrays.asList(new String[] {"apple", "pear"}));
+        order.getAttributes().put("gift", "yes");
+
+        String expected = "<order><attributes><item key=\"gift\">yes</item></attributes><count>2</count><customer-name>joe</customer-name><items><item>apple</item><item>pear</item></items></order>";
+        assertEquals(expected, _walk(order, "order"));
+
+        // again, with the class already described
+        assertEquals(expected, _walk(order, "order"));
+        assertEquals("<data>plain</data>", _walk("plain", null));
+    }
+
+    public void testCycles() throws Exception {
+        Link first = new Link("first");
+        Link second = new Link("second");
+        first.setNext(second);
+        second.setNext(first);
+        assertEquals("<data><label>first</label><next><label>second</label><next></next></next></data>", _walk(first, null));
+
+        // shared but not cyclic, so written twice
+        Order order = new Order();
+        List items = new ArrayList();
+        items.add(second);
+        items.add(second);
+        second.setNext(null);
+        order.setItems(items);
+        assertEquals("<data><attributes></attributes><count>2</count><items><item><label>second</label></item><item><label>second</label></item></items></data>", _walk(order, null));
+    }
+
+    public void testDepth() throws Exception {
+        Link first = new Link("0");
+        Link last = first;
+
+        for (int i = 1; i < 20000; i++) {
+            Link link = new Link(String.valueOf(i));
+            last.setNext(link);
+            last = link;
+        }
+
+        String xml = _walk(first, null);
+        assertTrue(xml.indexOf("<next><label>19999</label></next></next>") > -1);
+        assertTrue(xml.endsWith("</next></data>"));
+
+        XMLReaderAdapter adapter = new XMLReaderAdapter(first);
+        adapter.setMaxDepth(3);
+
+        Recorder recorder = new Recorder();
+        adapter.setContentHandler(recorder);
+        adapter.parse();
+        assertEquals("<data><label>0</label><next><label>1</label><next></next></next></data>", recorder.buffer.toString());
+    }
+
+    public void testStreaming() throws Exception {
+        final int[] produced = new int[1];
+        Iterator items = new Iterator() {
+                public boolean hasNext() {
+                    return produced[0] < 100000;
+                }
+
+                public Object next() {
+                    return String.valueOf(produced[0]++);
+                }
+
+                public void remove() {
+                }
+            };
+
+        XMLReaderAdapter adapter = new XMLReaderAdapter(items, "items");
+        adapter.setContentHandler(new DefaultHandler() {
+                int seen = 0;
+
+                public void characters(char[] ch, int start, int length) {
+                    // each item is written before the next one is taken
+                    assertEquals(String.valueOf(seen), new String(ch, start, length));
+                    assertEquals(++seen, produced[0]);
+                }
+            });
+        adapter.parse();
+        assertEquals(100000, produced[0]);
+
+        Vector vector = new Vector();
+        vector.add("a");
+        vector.add("b");
+        assertEquals("<data><item>a</item><item>b</item></data>", _walk(vector.elements(), null));
+    }
+
+    public void testTimings() throws Exception {
+        List orders = new ArrayList();
+
+        for (int i = 0; i < 10000; i++) {
+            Order order = new Order();
+            order.setCustomerName("customer " + i);
+            order.setItems(Arrays.asList(new String[] {"apple", "pear"}));
+            orders.add(order);
+        }
+
+        Order all = new Order();
+        all.setItems(orders);
+
+        long start = System.currentTimeMillis();
+        String xml = _walk(all, "orders");
+        long end = System.currentTimeMillis();
+
+        assertTrue(xml.indexOf("<customer-name>customer 9999</customer-name>") > -1);
+        System.out.println("Took " + (end - start) + "ms to walk 10000 beans");
+    }
+
+    private String _walk(Object object, String root) throws Exception {
+        XMLReaderAdapter adapter = new XMLReaderAdapter(object, root);
+        Recorder recorder = new Recorder();
+        adapter.setContentHandler(recorder);
+        adapter.parse();
+
+        return recorder.buffer.toString();
+    }
+
+    //~ Inner Classes //////////////////////////////////////////////////////////
+
+    public class Link {
+        private Link next;
+        private String label;
+
+        public Link(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public void setNext(Link next) {
+            this.next = next;
+        }
+
+        public Link getNext() {
+            return next;
+        }
+    }
+
+    public class Order {
+        private List items;
+        private Map attributes = new TreeMap();
+        private String customerName;
+
+        public Map getAttributes() {
+            return attributes;
+        }
+
+        public int getCount() {
+            return (items == null) ? 0 : items.size();
+        }
+
+        public void setCustomerName(String customerName) {
+            this.customerName = customerName;
+        }
+
+        public String getCustomerName() {
+            return customerName;
+        }
+
+        public void setItems(List items) {
+            this.items = items;
+        }
+
+        public List getItems() {
+            return items;
+        }
+    }
+
+    /**
+     * Writes out the events it receives as XML.
+     */
+    private static class Recorder extends DefaultHandler {
+        StringBuffer buffer = new StringBuffer();
+
+        public void characters(char[] ch, int start, int length) {
+            buffer.append(ch, start, length);
+        }
+
+        public void endElement(String uri, String localName, String qName) {
+            buffer.append("</").append(localName).append('>');
+        }
+
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            buffer.append('<').append(localName);
+
+            for (int i = 0; i < attributes.getLength(); i++) {
+                buffer.append(' ').append(attributes.getQName(i)).append("=\"").append(attributes.getValue(i)).append('"');
+            }
+
+            buffer.append('>');
+        }
+    }
+}
@@ -4,14 +4,41 @@
  */
 package com.opensymphony.util;
 
+import com.opensymphony.provider.XMLPrinterProvider;
+import com.opensymphony.provider.XPathProvider;
+import com.opensymphony.provider.xmlprinter.DefaultXMLPrinterProvider;
+import com.opensymphony.provider.xmlprinter.SAXXMLPrinter;
+import com.opensymphony.provider.xmlprinter.StreamingXMLPrinterProvider;
+import com.opensymphony.provider.xpath.JAXPXPathProvider;
+import com.opensymphony.provider.xpath.XalanXPathProvider;
+
 import com.opensymphony.util.XMLUtils;
 
 import junit.framework.*;
 
+import org.apache.xpath.XPathAPI;
+
 import org.w3c.dom.*;
 
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Templates;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
 
 /**
  * JUnit test case for XMLUtils
@@ -29,6 +56,7 @@ public class XMLUtilsTest extends TestCase {
     String testDoc2 = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\r\n" + "<document>" + "<foo>bar</foo>" + "</document>";
     String testDoc3 = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\r\n" + "<document>" + "<baz>bar</baz>" + "</document>";
     String testXSL1 = "<?xml version=\"1.0\"?>" + "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" " + "version=\"1.0\" >" + "<xsl:template match=\"/document\">" + "<document>" + "<xsl:apply-templates />" + "</document>" + "</xsl:template>" + "<xsl:template match=\"foo\">" + "<baz>" + "<xsl:apply-templates />" + "</baz>" + "</xsl:template>" + "</xsl:stylesheet>";
+    String testXSL2 = "<?xml version=\"1.0\"?>" + "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" " + "version=\"1.0\" >" + "<xsl:param name=\"suffix\" />" + "<xsl:template match=\"/document\">" + "<document>" + "<xsl:apply-templates />" + "</document>" + "</xsl:template>" + "<xsl:template match=\"baz\">" + "<qux>" + "<xsl:value-of select=\".\" />" + "<xsl:value-of select=\"$suffix\" />" + "</qux>" + "</xsl:template>" + "</xsl:stylesheet>";
 
     //~ Constructors ///////////////////////////////////////////////////////////
 
@@ -69,6 +97,45 @@ public class XMLUtilsTest extends TestCase {
         assertNull(XMLUtils.xpath(body, "p[4]/text()"));
     }
 
+    public void testCloneDeep() throws Exception {
+        Document doc1 = XMLUtils.newDocument("root");
+        Node node = doc1.getDocumentElement();
+
+        for (int i = 0; i < 20000; i++) {
+            Element child = doc1.createElement("n");
+            child.setAttribute("depth", String.valueOf(i));
+            node.appendChild(doc1.createTextNode("before"));
+            node = node.appendChild(child);
+            node.getParentNode().appendChild(doc1.createComment("after"));
+        }
+
+        Document doc2 = XMLUtils.parse(testDoc1);
+        Node clone = XMLUtils.cloneNode(doc1.getDocumentElement(), doc2, true);
+        assertSame(doc2, clone.getOwnerDocument());
+
+        int depth = 0;
+
+        for (node = clone; node.getChildNodes().getLength() == 3; node = node.getChildNodes().item(1)) {
+            assertEquals("before", node.getFirstChild().getNodeValue());
+            assertEquals("after", node.getLastChild().getNodeValue());
+            depth++;
+        }
+
+        assertEquals(20000, depth);
+        assertEquals("19999", ((Element) node).getAttribute("depth"));
+        assertEquals(0, node.getChildNodes().getLength());
+
+        // several at once, in order
+        NodeList children = ((Element) XMLUtils.xpath(doc2, "/html/body")).getChildNodes();
+        Document doc3 = XMLUtils.newDocument("copy");
+        DocumentFragment fragment = XMLUtils.importNodes(children, doc3);
+        assertEquals(children.getLength(), fragment.getChildNodes().getLength());
+        doc3.getDocumentElement().appendChild(fragment);
+        assertEquals("Goodbye moon", ((Text) XMLUtils.xpath(doc3, "/copy/p[2]/text()")).getData());
+        assertEquals("center", ((Attr) XMLUtils.xpath(doc3, "/copy/p[1]/@align")).getValue());
+        assertEquals(2, XMLUtils.xpathList(doc2, "/html/body/p").getLength());
+    }
+
     public void testElementText() throws Exception {
         Document doc = XMLUtils.parse(testDoc1);
         Element h1 = (Element) XMLUtils.xpath(doc, "/html/body/h1");
@@ -114,6 +181,61 @@ public class XMLUtilsTest extends TestCase {
         assertEquals("Goodbye moon", ((Text) XMLUtils.xpath(doc2, "/html/body/p[2]/text()")).getData());
     }
 
+    public void testStreamingPrint() throws Exception {
+        String mixed = "<a x=\"1 &amp; 2\">\n  <b>text &lt; more</b>\n  loose <c/>\n  <?pi data?>\n  <d><e>deep</e>tail</d>\n</a>";
+        String[] docs = new String[] {testDoc1, testDoc2, mixed};
+
+        for (int i = 0; i < docs.length; i++) {
+            String expected = _print(new DefaultXMLPrinterProvider(), XMLUtils.parse(docs[i]));
+            assertEquals(expected, _print(new StreamingXMLPrinterProvider(), XMLUtils.parse(docs[i])));
+
+            StringWriter out = new StringWriter();
+            SAXParserFactory.newInstance().newSAXParser().parse(new InputSource(new StringReader(docs[i])), new SAXXMLPrinter(out));
+            assertEquals(expected, out.toString());
+        }
+
+        // printed without recursion, so depth is limited only by the indentation
+        Document doc = XMLUtils.newDocument("root");
+        Node node = doc.getDocumentElement();
+
+        for (int i = 0; i < 4000; i++) {
+            node = node.appendChild(doc.createElement("n"));
+        }
+
+        node.appendChild(doc.createTextNode("bottom"));
+
+        String str = _print(new StreamingXMLPrinterProvider(), doc);
+        assertTrue(str.indexOf("<n>bottom</n>\n") > -1);
+        assertTrue(str.endsWith("  </n>\n</root>\n\n"));
+
+        // characters outside the encoding become references
+        doc = XMLUtils.newDocument("root");
+        doc.getDocumentElement().appendChild(doc.createTextNode("\u00e9 \u20ac"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new StreamingXMLPrinterProvider().print(doc, bytes, "ISO-8859-1");
+        assertEquals("<?xml version=\"1.0\" encoding=\"ISO-8859-1\" ?>\n<root>\u00e9 &#8364;</root>\n\n", bytes.toString("ISO-8859-1"));
+    }
+
+    public void testParseTimings() throws Exception {
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("document", XMLUtils.parse(testDoc2).getDocumentElement().getTagName());
+        }
+
+        long middle = System.currentTimeMillis();
+
+        for (int i = 0; i < 1000; i++) {
+            DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            assertEquals("document", builder.parse(new InputSource(new StringReader(testDoc2))).getDocumentElement().getTagName());
+        }
+
+        long end = System.currentTimeMillis();
+
+        System.out.println("Took " + (middle - start) + "ms (" + (end - middle) + "ms with a new factory each time) to parse 1000 small documents");
+    }
+
     public void testStringParse() throws Exception {
         Document doc1 = XMLUtils.parse(testDoc1);
         assertEquals("html", doc1.getDocumentElement().getTagName());
@@ -123,22 +245,93 @@ public class XMLUtilsTest extends TestCase {
         assertEquals(2, body1.getElementsByTagName("p").getLength());
     }
 
-    /** We need to fix this. */
     public void testTransform() throws Exception {
-        /*
-        StringReader xmlr=new StringReader(testDoc2);
-        StringReader xslr=new StringReader(testXSL1);
-        StringWriter w=new StringWriter();
+        StringReader xmlr = new StringReader(testDoc2);
+        StringReader xslr = new StringReader(testXSL1);
+        StringWriter w = new StringWriter();
         XMLUtils.transform(xmlr, xslr, w, null);
-        //assertEquals(w.getBuffer().toString(),testDoc3);
-        w=new StringWriter();
+        assertTrue(w.toString(), w.toString().endsWith("<document><baz>bar</baz></document>"));
+
         // This tests the cache. We need to reload the XML, though.
         // if you want to get around the cache, reinitialize xslr.
-        xmlr=new StringReader(testDoc2);
-        //xslr=new StringReader(testXSL1);
+        long hits = XMLUtils.getCacheHits();
+        w = new StringWriter();
+        xmlr = new StringReader(testDoc2);
         XMLUtils.transform(xmlr, xslr, w, null);
-        assertEquals(w.getBuffer().toString(),testDoc3);
-        */
+        assertTrue(w.toString(), w.toString().endsWith("<document><baz>bar</baz></document>"));
+        assertEquals(hits + 1, XMLUtils.getCacheHits());
+    }
+
+    public void testTransformPipeline() throws Exception {
+        Templates[] stages = new Templates[] {XMLUtils.compile(new StringReader(testXSL1), null), XMLUtils.compile(new StringReader(testXSL2), null)};
+        Map parameters = new HashMap();
+        parameters.put("suffix", "!");
+
+        StringWriter w = new StringWriter();
+        XMLUtils.transform(new StringReader(testDoc2), stages, w, parameters);
+        assertTrue(w.toString(), w.toString().endsWith("<document><qux>bar!</qux></document>"));
+
+        w = new StringWriter();
+        XMLUtils.transform(new DOMSource(XMLUtils.parse(testDoc2)), stages, new StreamResult(w), parameters);
+        assertTrue(w.toString(), w.toString().endsWith("<document><qux>bar!</qux></document>"));
+
+        w = new StringWriter();
+        XMLUtils.transform(new StringReader(testDoc2), new Templates[0], w, null);
+        assertTrue(w.toString(), w.toString().endsWith("<document><foo>bar</foo></document>"));
+
+        // the plain copy never holds the document, so its memory use shouldn't grow with it
+        for (int n = 10000; n <= 100000; n *= 10) {
+            long start = System.currentTimeMillis();
+            HeapSampler copy = new HeapSampler();
+            XMLUtils.transform(new RecordReader(n), new Templates[0], copy, null);
+
+            long middle = System.currentTimeMillis();
+            HeapSampler sheets = new HeapSampler();
+            XMLUtils.transform(new RecordReader(n), stages, sheets, parameters);
+
+            long end = System.currentTimeMillis();
+            System.out.println("Took " + (middle - start) + "ms (" + (end - middle) + "ms through two sheets) to stream " + n + " records, peak heap " + (copy.peak / 1024) + "KB (" + (sheets.peak / 1024) + "KB)");
+        }
+    }
+
+    public void testTransformCache() throws Exception {
+        int size = XMLUtils.getCacheSize();
+
+        try {
+            // start from an empty cache, whatever the other tests left in it
+            XMLUtils.setCacheSize(0);
+            XMLUtils.setCacheSize(1);
+            XMLUtils.setCacheByContent(true);
+
+            long hits = XMLUtils.getCacheHits();
+            long misses = XMLUtils.getCacheMisses();
+            long evictions = XMLUtils.getCacheEvictions();
+
+            assertTrue(XMLUtils.transform(testDoc2, testXSL1).endsWith("<document><baz>bar</baz></document>"));
+            assertTrue(XMLUtils.transform(testDoc2, testXSL1).endsWith("<document><baz>bar</baz></document>"));
+            assertEquals(hits + 1, XMLUtils.getCacheHits());
+            assertEquals(misses + 1, XMLUtils.getCacheMisses());
+
+            // a different sheet pushes the first one out
+            XMLUtils.transform(testDoc2, testXSL1 + " ");
+            assertEquals(misses + 2, XMLUtils.getCacheMisses());
+            assertEquals(evictions + 1, XMLUtils.getCacheEvictions());
+
+            // not keyed at all
+            StringWriter w = new StringWriter();
+            XMLUtils.transform(new StringReader(testDoc2), new StringReader(testXSL1), w, null, null);
+            assertTrue(w.toString().endsWith("<document><baz>bar</baz></document>"));
+            assertEquals(misses + 2, XMLUtils.getCacheMisses());
+
+            // a negative size caches nothing, like 0
+            XMLUtils.setCacheSize(-1);
+            assertTrue(XMLUtils.transform(testDoc2, testXSL1).endsWith("<document><baz>bar</baz></document>"));
+            assertTrue(XMLUtils.transform(testDoc2, testXSL1).endsWith("<document><baz>bar</baz></document>"));
+            assertEquals(misses + 4, XMLUtils.getCacheMisses());
+        } finally {
+            XMLUtils.setCacheByContent(false);
+            XMLUtils.setCacheSize(size);
+        }
     }
 
     public void testXPathAttributes() throws Exception {
@@ -195,6 +388,30 @@ public class XMLUtilsTest extends TestCase {
         assertEquals("Goodbye moon", ((Text) XMLUtils.xpath(ps.item(1), "text()")).getData());
     }
 
+    public void testXPathProviders() throws Exception {
+        Document doc = XMLUtils.parse(testDoc1);
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+
+        Document nsDoc = factory.newDocumentBuilder().parse(new InputSource(new StringReader("<a:root xmlns:a=\"urn:a\"><a:item/><a:item/></a:root>")));
+        XPathProvider[] providers = {new XalanXPathProvider(), new JAXPXPathProvider()};
+
+        for (int i = 0; i < providers.length; i++) {
+            providers[i].init();
+
+            // twice, the second time from the cache
+            for (int j = 0; j < 2; j++) {
+                assertEquals("h1", providers[i].getNode(doc, "/html/body/h1").getNodeName());
+                assertEquals(2, providers[i].getNodes(doc, "/html/body/p").getLength());
+                assertEquals("head", providers[i].getNode(doc, "/html/body/preceding-sibling::head").getNodeName());
+                assertEquals(2, providers[i].getNodes(nsDoc, "/a:root/a:item").getLength());
+                assertEquals(XPathAPI.selectNodeList(nsDoc, "/a:root/a:item").getLength(), providers[i].getNodes(nsDoc, "/a:root/a:item").getLength());
+            }
+
+            providers[i].destroy();
+        }
+    }
+
     public void testXPathText() throws Exception {
         Document doc = XMLUtils.parse(testDoc1);
         Text t1 = (Text) XMLUtils.xpath(doc, "/html/body/p[1]/text()");
@@ -203,4 +420,81 @@ public class XMLUtilsTest extends TestCase {
         Text t2 = (Text) XMLUtils.xpath(doc, "/html/body/p[2]/text()");
         assertEquals("Goodbye moon", t2.getData());
     }
+
+    private String _print(XMLPrinterProvider printer, Document doc) throws Exception {
+        StringWriter out = new StringWriter();
+        printer.print(doc, out);
+
+        return out.toString();
+    }
+
+    //~ Inner Classes //////////////////////////////////////////////////////////
+
+    /**
+     * Discards what is written to it, noting the most live heap along the way
+     * beyond what was in use when it was made. The heap is measured after a
+     * collection at most every 50ms.
+     */
+    private static class HeapSampler extends Writer {
+        long peak = 0;
+        private long base = used();
+        private long last = System.currentTimeMillis();
+
+        public void close() {
+        }
+
+        public void flush() {
+        }
+
+        public void write(char[] cbuf, int off, int len) {
+            long now = System.currentTimeMillis();
+
+            if ((now - last) >= 50) {
+                peak = Math.max(peak, used() - base);
+                last = now;
+            }
+        }
+
+        private static long used() {
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+
+    /**
+     * A document of <code>n</code> records, made up as it is read.
+     */
+    private static class RecordReader extends Reader {
+        private String pending = "<document>";
+        private int n;
+        private int next = 0;
+
+        RecordReader(int n) {
+            this.n = n;
+        }
+
+        public void close() {
+        }
+
+        public int read(char[] cbuf, int off, int len) {
+            if (pending.length() == 0) {
+                if (next < n) {
+                    pending = "<foo>record " + next++ + "</foo>\n";
+                } else if (next == n) {
+                    pending = "</document>";
+                    next++;
+                } else {
+                    return -1;
+                }
+            }
+
+            int count = Math.min(len, pending.length());
+            pending.getChars(0, count, cbuf, off);
+            pending = pending.substring(count);
+
+            return count;
+        }
+    }
 }